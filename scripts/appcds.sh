@@ -0,0 +1,42 @@
+#!/bin/sh
+# Dump an AppCDS archive(JDK 13+) for s3java.jar: one training batch runs the
+# common commands against the bundled StubServer, every class it loads is
+# archived, later runs map them instead of loading and verifying them again.
+#
+#   scripts/appcds.sh [target/s3java.jar] [target/s3java.jsa]
+#   java -XX:SharedArchiveFile=target/s3java.jsa -jar target/s3java.jar ...
+set -e
+
+JAR=${1:-target/s3java.jar}
+JSA=${2:-${JAR%.jar}.jsa}
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+PORT=${APPCDS_PORT:-19000}
+WORK=$(mktemp -d)
+
+"$JAVA" -cp "$JAR" org.shvc.s3java.StubServer "$PORT" >/dev/null &
+STUB=$!
+trap 'kill $STUB 2>/dev/null; rm -rf "$WORK"' EXIT
+sleep 1
+
+head -c 65536 /dev/urandom >"$WORK/obj"
+cat >"$WORK/train" <<CMDS
+create-bucket appcds
+upload appcds/obj $WORK/obj
+head appcds/obj
+ls appcds
+ls-v2 appcds
+download appcds/obj
+cat appcds/obj
+mpu appcds/mpu $WORK/obj
+delete appcds/obj
+delete appcds/mpu
+CMDS
+
+rm -f "$JSA"
+JSA=$(cd "$(dirname "$JSA")" && pwd)/$(basename "$JSA")
+JAR=$(cd "$(dirname "$JAR")" && pwd)/$(basename "$JAR")
+# download writes into the working directory
+cd "$WORK"
+"$JAVA" -XX:ArchiveClassesAtExit="$JSA" -jar "$JAR" -e "http://127.0.0.1:$PORT" -a appcds -s appcds \
+	batch "$WORK/train" >/dev/null
+echo "$JSA"
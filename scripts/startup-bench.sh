@@ -0,0 +1,48 @@
+#!/bin/sh
+# Wall time of short s3java commands: the plain jar, the jar with the AppCDS
+# archive(scripts/appcds.sh), with C1 only, and the native image when built.
+#
+#   scripts/startup-bench.sh [runs] -- <s3java args>
+#   scripts/startup-bench.sh 10 -- -e http://127.0.0.1:9000 head bucket/key
+set -e
+
+RUNS=10
+if [ $# -gt 0 ] && [ "$1" != "--" ]; then
+	RUNS=$1
+	shift
+fi
+[ "$1" = "--" ] && shift
+[ $# -gt 0 ] || set -- --version
+
+JAR=${JAR:-target/s3java.jar}
+JSA=${JSA:-${JAR%.jar}.jsa}
+NATIVE=${NATIVE:-target/s3java}
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+# prints "<name> min avg max" in milliseconds over RUNS runs
+run() {
+	name=$1
+	shift
+	min=0 max=0 total=0 i=0
+	while [ $i -lt "$RUNS" ]; do
+		start=$(date +%s%N)
+		"$@" >/dev/null 2>&1 || true
+		ms=$((($(date +%s%N) - start) / 1000000))
+		total=$((total + ms))
+		[ $i -eq 0 ] || [ $ms -lt $min ] && min=$ms
+		[ $ms -gt $max ] && max=$ms
+		i=$((i + 1))
+	done
+	printf '%-12s %8d %8d %8d\n' "$name" "$min" $((total / RUNS)) "$max"
+}
+
+printf '%-12s %8s %8s %8s\n' "ms" min avg max
+run jar "$JAVA" -jar "$JAR" "$@"
+run jar-c1 "$JAVA" -XX:TieredStopAtLevel=1 -jar "$JAR" "$@"
+if [ -f "$JSA" ]; then
+	run appcds "$JAVA" -XX:SharedArchiveFile="$JSA" -jar "$JAR" "$@"
+	run appcds-c1 "$JAVA" -XX:SharedArchiveFile="$JSA" -XX:TieredStopAtLevel=1 -jar "$JAR" "$@"
+fi
+if [ -x "$NATIVE" ]; then
+	run native "$NATIVE" "$@"
+fi
@@ -0,0 +1,70 @@
+package org.shvc.s3java.jmh;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shvc.s3java.S3Cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * single stream download into a file(S3Cli.getObject) and to stdout
+ * (S3Cli.catObject)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetObjectBenchmark {
+	@Param({ "65536", "8388608" })
+	int size;
+
+	S3Cli cli;
+	String key;
+
+	@Setup(Level.Trial)
+	public void setup(StubState stub) {
+		AmazonS3 s3 = stub.client();
+		key = "get/jmh-get-" + size + ".bin";
+		s3.putObject(StubState.BUCKET, key, new ByteArrayInputStream(StubState.payload(size)),
+				metadata(size));
+		cli = new S3Cli(s3);
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanup() {
+		new File(new File(key).getName()).delete();
+	}
+
+	static ObjectMetadata metadata(long size) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(size);
+		return metadata;
+	}
+
+	@Benchmark
+	public boolean getObject() {
+		return cli.getObject(StubState.BUCKET, key, null);
+	}
+
+	@Benchmark
+	public void catObject() {
+		cli.catObject(StubState.BUCKET, key, null);
+	}
+}
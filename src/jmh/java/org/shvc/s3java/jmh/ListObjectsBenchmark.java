@@ -0,0 +1,73 @@
+package org.shvc.s3java.jmh;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.transform.XmlResponsesSaxParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shvc.s3java.S3Cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * parsing of a full(1000 Keys) ListObjectsV2 page, and S3Cli listing of
+ * the page from the stub
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListObjectsBenchmark {
+	private static final int KEYS = 1000;
+	private static final String PREFIX = "list/";
+
+	S3Cli cli;
+	byte[] page;
+
+	@Setup(Level.Trial)
+	public void setup(StubState stub) {
+		AmazonS3 s3 = stub.client();
+		for (int i = 0; i < KEYS; i++) {
+			s3.putObject(StubState.BUCKET, PREFIX + String.format("dir%02d/object-%06d.json", i % 10, i), "{}");
+		}
+		cli = new S3Cli(s3);
+
+		StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+				+ "<ListBucketResult xmlns=\"http://s3.amazonaws.com/doc/2006-03-01/\"><Name>jmh</Name>"
+				+ "<Prefix>list/</Prefix><KeyCount>1000</KeyCount><MaxKeys>1000</MaxKeys>"
+				+ "<IsTruncated>true</IsTruncated><NextContinuationToken>token</NextContinuationToken>");
+		for (int i = 0; i < KEYS; i++) {
+			xml.append("<Contents><Key>").append(String.format("list/dir%02d/object-%06d.json", i % 10, i))
+					.append("</Key><LastModified>2023-06-01T00:00:00.000Z</LastModified>")
+					.append("<ETag>&quot;99914b932bd37a50b983c5e7c90ae93b&quot;</ETag>")
+					.append("<Size>2</Size><StorageClass>STANDARD</StorageClass></Contents>");
+		}
+		xml.append("</ListBucketResult>");
+		page = xml.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public ListObjectsV2Result parsePage() throws IOException {
+		return new XmlResponsesSaxParser().parseListObjectsV2Response(new ByteArrayInputStream(page), false)
+				.getResult();
+	}
+
+	@Benchmark
+	public void listObjectsV2() {
+		cli.listObjectsV2(StubState.BUCKET, PREFIX, false);
+	}
+}
@@ -0,0 +1,69 @@
+package org.shvc.s3java.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shvc.s3java.S3Cli;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * S3Cli.putObject from memory and from a file, the way upload calls it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutObjectBenchmark {
+	@Param({ "65536", "8388608" })
+	int size;
+
+	S3Cli cli;
+	byte[] data;
+	File file;
+
+	@Setup(Level.Trial)
+	public void setup(StubState stub) throws IOException {
+		cli = new S3Cli(stub.client());
+		data = StubState.payload(size);
+		file = File.createTempFile("s3java-jmh", ".bin");
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(data);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void cleanup() {
+		file.delete();
+	}
+
+	@Benchmark
+	public boolean putFromBytes() {
+		return cli.putObject(StubState.BUCKET, "put/bytes", new ByteArrayInputStream(data),
+				"application/octet-stream", null);
+	}
+
+	@Benchmark
+	public boolean putFromFile() throws IOException {
+		try (FileInputStream input = new FileInputStream(file)) {
+			return cli.putObject(StubState.BUCKET, "put/file", input, "application/octet-stream", null);
+		}
+	}
+}
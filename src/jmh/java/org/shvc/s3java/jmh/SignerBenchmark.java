@@ -0,0 +1,81 @@
+package org.shvc.s3java.jmh;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.internal.AWSS3V4Signer;
+import com.amazonaws.services.s3.internal.S3Signer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.shvc.s3java.Main;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SigV4 against SigV2(--v2sign): signing alone, and a whole HEAD Object
+ * round trip to the stub with each signer
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignerBenchmark {
+	private static final String KEY = "sign/jmh";
+
+	@Param({ "v4", "v2" })
+	String signer;
+
+	AmazonS3 s3;
+	BasicAWSCredentials credentials = new BasicAWSCredentials(Main.DEFAULT_ACCESS_KEY, Main.DEFAULT_SECRET_KEY);
+	AWSS3V4Signer v4;
+	URI endpoint;
+
+	@Setup(Level.Trial)
+	public void setup(StubState stub) {
+		s3 = signer.equals("v2") ? stub.client("--v2sign") : stub.client();
+		s3.putObject(StubState.BUCKET, KEY, "jmh");
+		v4 = new AWSS3V4Signer();
+		v4.setServiceName("s3");
+		v4.setRegionName("us-east-1");
+		endpoint = URI.create(stub.endpoint);
+	}
+
+	private DefaultRequest<Void> request() {
+		DefaultRequest<Void> req = new DefaultRequest<Void>("Amazon S3");
+		req.setHttpMethod(HttpMethodName.GET);
+		req.setEndpoint(endpoint);
+		req.setResourcePath("/" + StubState.BUCKET + "/" + KEY);
+		req.addParameter("versionId", "null");
+		return req;
+	}
+
+	@Benchmark
+	public DefaultRequest<Void> sign() {
+		DefaultRequest<Void> req = request();
+		if (signer.equals("v2")) {
+			new S3Signer("GET", "/" + StubState.BUCKET + "/" + KEY).sign(req, credentials);
+		} else {
+			v4.sign(req, credentials);
+		}
+		return req;
+	}
+
+	@Benchmark
+	public boolean headObject() {
+		return s3.doesObjectExist(StubState.BUCKET, KEY);
+	}
+}
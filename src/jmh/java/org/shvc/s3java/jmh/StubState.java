@@ -0,0 +1,76 @@
+package org.shvc.s3java.jmh;
+
+import com.amazonaws.services.s3.AmazonS3;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.shvc.s3java.Main;
+import org.shvc.s3java.StubServer;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-process StubServer on a loopback port plus clients built by Main from
+ * command line options, so the benchmarks measure the client the CLI runs.
+ * stdout is discarded while benchmarks run, S3Cli prints a line per call.
+ */
+@State(Scope.Benchmark)
+public class StubState {
+	public static final String BUCKET = "jmh";
+
+	StubServer stub;
+	String endpoint;
+	private PrintStream stdout;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		stub = new StubServer();
+		stub.start("127.0.0.1", 0);
+		endpoint = "http://127.0.0.1:" + stub.getPort();
+		client().createBucket(BUCKET);
+		stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+			}
+		}));
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() {
+		System.setOut(stdout);
+		stub.stop();
+	}
+
+	/**
+	 * client for the stub as built by s3java with the given global options,
+	 * e.g. --v2sign
+	 */
+	AmazonS3 client(String... options) {
+		List<String> args = new ArrayList<String>(Arrays.asList("-e", endpoint));
+		args.addAll(Arrays.asList(options));
+		Main main = new Main();
+		new CommandLine(main).parseArgs(args.toArray(new String[0]));
+		return main.s3Client();
+	}
+
+	static byte[] payload(int size) {
+		byte[] data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,73 @@
+package org.shvc.s3java;
+
+/**
+ * Concurrency limit adjusted by AIMD, like TCP congestion control: every
+ * successful request raises the limit by 1/limit(about one per round of
+ * requests), a throttling response cuts it by a quarter. Cuts happen at most
+ * once per round, the requests already in flight when the endpoint pushed
+ * back will mostly be throttled too and must not collapse the limit.
+ */
+public class AdaptiveLimiter {
+	private static final double DECREASE = 0.75;
+
+	private final int min;
+	private final int max;
+	private double limit;
+	private int inflight;
+	// requests completed since the last cut
+	private long sinceCut;
+
+	public AdaptiveLimiter(int min, int max) {
+		this.min = Math.max(1, min);
+		this.max = Math.max(this.min, max);
+		this.limit = this.max;
+		this.sinceCut = this.max;
+	}
+
+	// wait until a request may be sent
+	public synchronized void acquire() {
+		boolean interrupted = false;
+		while (inflight >= (int) limit) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		inflight++;
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// a request is done
+	public synchronized void release() {
+		inflight--;
+		notify();
+	}
+
+	/**
+	 * outcome of an attempt
+	 *
+	 * @param throttled the endpoint asked to slow down(503 SlowDown, 429)
+	 */
+	public synchronized void adjust(boolean throttled) {
+		sinceCut++;
+		if (throttled) {
+			if (sinceCut >= (long) limit) {
+				limit = Math.max(min, limit * DECREASE);
+				sinceCut = 0;
+			}
+		} else if (limit < max) {
+			int before = (int) limit;
+			limit = Math.min(max, limit + 1 / limit);
+			if ((int) limit > before) {
+				notify();
+			}
+		}
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+}
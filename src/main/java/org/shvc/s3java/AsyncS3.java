@@ -0,0 +1,61 @@
+package org.shvc.s3java;
+
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Non-blocking subset of the S3 API: every call returns at once and its
+ * future completes on one of a few client threads, so thousands of requests
+ * can be in flight without a thread each. Failed requests complete the
+ * future exceptionally with an AmazonS3Exception(error response) or the I/O
+ * error, possibly wrapped in a CompletionException.
+ */
+public interface AsyncS3 {
+	CompletableFuture<Void> putObject(String bucket, String key, byte[] data, int offset, int length,
+			String contentType);
+
+	/**
+	 * upload file in one PutObject request
+	 */
+	CompletableFuture<Void> putObject(String bucket, String key, File file, String contentType,
+			Map<String, String> metadata);
+
+	/**
+	 * read the Object and throw its content away
+	 *
+	 * @return future of the number of bytes read
+	 */
+	CompletableFuture<Long> getObject(String bucket, String key);
+
+	/**
+	 * write the Object to file, replacing its content
+	 *
+	 * @return future of the Object's metadata, complete once file is written
+	 */
+	CompletableFuture<ObjectMetadata> getObject(String bucket, String key, File file);
+
+	CompletableFuture<ObjectMetadata> headObject(String bucket, String key);
+
+	CompletableFuture<Void> deleteObject(String bucket, String key);
+
+	CompletableFuture<ListObjectsV2Result> listObjectsV2(ListObjectsV2Request request);
+
+	void shutdown();
+
+	/**
+	 * the exception a future of an AsyncS3 failed with
+	 */
+	static Throwable cause(Throwable t) {
+		while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null) {
+			t = t.getCause();
+		}
+		return t;
+	}
+}
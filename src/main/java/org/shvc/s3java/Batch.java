@@ -0,0 +1,247 @@
+package org.shvc.s3java;
+
+import picocli.CommandLine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Run s3java command lines against one already initialized Main, so JVM
+ * startup, the S3 client and its connection pool are paid for once. Lines
+ * are split like a shell would(quotes and backslash escapes, # comments), a
+ * leading "s3java" is ignored. Global options of the batch invocation build
+ * the client; on a line they are parsed but don't rebuild it.
+ * The daemon serves batch sessions on a Unix domain socket, commands of all
+ * sessions run one at a time with stdout and stderr sent to their session,
+ * each followed by an "exit <code>" line.
+ */
+public class Batch {
+	private final CommandLine cmd;
+	private final S3Cli cli;
+
+	public Batch(Main main, S3Cli cli) {
+		// Main.init already ran for this client, only --async is checked again
+		this.cmd = new CommandLine(main).setExecutionStrategy(parseResult -> {
+			main.checkAsync(parseResult);
+			return new CommandLine.RunLast().execute(parseResult);
+		}).setParameterExceptionHandler((ex, args) -> {
+			// one line for a bad command line, not the whole usage
+			ex.getCommandLine().getErr().println(ex.getMessage());
+			return 2;
+		});
+		this.cli = cli;
+	}
+
+	/**
+	 * run every line of in
+	 *
+	 * @return number of failed commands
+	 */
+	public int run(BufferedReader in) throws IOException {
+		int commands = 0;
+		int failed = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			List<String> args;
+			try {
+				args = split(line);
+			} catch (IllegalArgumentException e) {
+				System.err.println(e.getMessage() + ": " + line);
+				failed++;
+				continue;
+			}
+			if (args.isEmpty()) {
+				continue;
+			}
+			commands++;
+			if (execute(args) != 0) {
+				failed++;
+			}
+		}
+		if (failed > 0) {
+			System.err.println(java.time.Clock.systemUTC().instant() + " batch " + commands + " commands, " + failed
+					+ " failed");
+		}
+		return failed;
+	}
+
+	// exit code of a command line: picocli's(2 for a bad one), 1 if it failed
+	private int execute(List<String> args) {
+		String name = args.get(0);
+		if (name.equals("batch") || name.equals("daemon")) {
+			System.err.println(name + " can't run inside a batch");
+			return 2;
+		}
+		int before = cli.getFailures();
+		int code = cmd.execute(args.toArray(new String[0]));
+		System.out.flush();
+		return code != 0 ? code : cli.getFailures() == before ? 0 : 1;
+	}
+
+	/**
+	 * split a command line into arguments: whitespace separated, '...' taken
+	 * literally, "..." and bare words with backslash escapes, # starts a
+	 * comment line
+	 */
+	static List<String> split(String line) {
+		List<String> args = new ArrayList<String>();
+		String trimmed = line.trim();
+		if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+			return args;
+		}
+		StringBuilder arg = new StringBuilder();
+		boolean inArg = false;
+		char quote = 0;
+		for (int i = 0; i < trimmed.length(); i++) {
+			char c = trimmed.charAt(i);
+			if (quote == '\'') {
+				if (c == '\'') {
+					quote = 0;
+				} else {
+					arg.append(c);
+				}
+			} else if (c == '\\' && i + 1 < trimmed.length()) {
+				arg.append(trimmed.charAt(++i));
+				inArg = true;
+			} else if (quote == '"') {
+				if (c == '"') {
+					quote = 0;
+				} else {
+					arg.append(c);
+				}
+			} else if (c == '\'' || c == '"') {
+				quote = c;
+				inArg = true;
+			} else if (Character.isWhitespace(c)) {
+				if (inArg) {
+					args.add(arg.toString());
+					arg.setLength(0);
+					inArg = false;
+				}
+			} else {
+				arg.append(c);
+				inArg = true;
+			}
+		}
+		if (quote != 0) {
+			throw new IllegalArgumentException("unterminated " + quote);
+		}
+		if (inArg) {
+			args.add(arg.toString());
+		}
+		if (!args.isEmpty() && args.get(0).equals("s3java")) {
+			args.remove(0);
+		}
+		return args;
+	}
+
+	/**
+	 * serve batch sessions on a Unix domain socket(Java 16+) until the JVM is
+	 * stopped. The socket file is readable and writable by the owner only.
+	 */
+	public void serve(Path socket) throws IOException {
+		ServerSocketChannel server;
+		SocketAddress address;
+		try {
+			// Java 16 API, looked up at runtime so the build keeps targeting Java 8
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+			address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", Path.class)
+					.invoke(null, socket);
+			server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+					.invoke(null, unix);
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			throw new IOException("Unix domain sockets need Java 16 or later");
+		}
+		if (socket.getParent() != null) {
+			Files.createDirectories(socket.getParent());
+		}
+		// a socket file left by a daemon that was killed
+		Files.deleteIfExists(socket);
+		server.bind(address);
+		socket.toFile().deleteOnExit();
+		try {
+			Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException e) {
+			// not a POSIX file system
+		}
+		System.out.println(java.time.Clock.systemUTC().instant() + " daemon listen on " + socket);
+
+		ExecutorService sessions = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "s3java-session");
+			t.setDaemon(true);
+			return t;
+		});
+		while (true) {
+			SocketChannel channel = server.accept();
+			sessions.execute(() -> session(channel));
+		}
+	}
+
+	private void session(SocketChannel channel) {
+		try (SocketChannel c = channel) {
+			BufferedReader in = new BufferedReader(
+					new InputStreamReader(Channels.newInputStream(c), StandardCharsets.UTF_8));
+			PrintStream out = new PrintStream(Channels.newOutputStream(c), false, "UTF-8");
+			String line;
+			while ((line = in.readLine()) != null) {
+				List<String> args;
+				try {
+					args = split(line);
+				} catch (IllegalArgumentException e) {
+					out.println(e.getMessage() + ": " + line);
+					out.println("exit 2");
+					out.flush();
+					continue;
+				}
+				if (!args.isEmpty()) {
+					executeTo(args, out);
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			// client went away
+		}
+	}
+
+	/**
+	 * System.out and System.err are global, so sessions take turns. The
+	 * output ends with "exit <code>", a client reads up to it to get the
+	 * command's status.
+	 */
+	private synchronized void executeTo(List<String> args, PrintStream out) {
+		PrintStream stdout = System.out;
+		PrintStream stderr = System.err;
+		System.setOut(out);
+		System.setErr(out);
+		cmd.setOut(new PrintWriter(out, true));
+		cmd.setErr(new PrintWriter(out, true));
+		int code = 1;
+		try {
+			code = execute(args);
+		} finally {
+			out.println("exit " + code);
+			out.flush();
+			System.setOut(stdout);
+			System.setErr(stderr);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.shvc.s3java;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collect keys into DeleteObjects batches of at most 1000 keys and keep up to
+ * concurrency batches in flight. add blocks while all batches are in flight,
+ * so a fast key producer can't run ahead of the deletes.
+ */
+public class BatchDeleter {
+	// DeleteObjects accepts at most 1000 keys per request
+	public static final int MAX_BATCH = 1000;
+
+	private final AmazonS3 s3;
+	private final String bucket;
+	private final int concurrency;
+	private final Semaphore inflight;
+	private final ExecutorService executor;
+	private final AtomicLong deleted = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final long start = System.nanoTime();
+	private List<KeyVersion> batch = new ArrayList<KeyVersion>(MAX_BATCH);
+	private MetadataCache cache;
+
+	public BatchDeleter(AmazonS3 s3, String bucket, int concurrency) {
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.concurrency = Math.max(1, concurrency);
+		this.inflight = new Semaphore(this.concurrency);
+		this.executor = TaskRunner.newExecutor(this.concurrency);
+	}
+
+	// drop the deleted keys from the metadata cache, null to disable
+	public void setCache(MetadataCache cache) {
+		this.cache = cache;
+	}
+
+	public void add(String key) {
+		batch.add(new KeyVersion(key));
+		if (batch.size() == MAX_BATCH) {
+			flush();
+		}
+	}
+
+	private void flush() {
+		if (batch.isEmpty()) {
+			return;
+		}
+		List<KeyVersion> keys = batch;
+		batch = new ArrayList<KeyVersion>(MAX_BATCH);
+		inflight.acquireUninterruptibly();
+		executor.execute(() -> {
+			try {
+				delete(keys);
+			} finally {
+				inflight.release();
+			}
+		});
+	}
+
+	private void delete(List<KeyVersion> keys) {
+		DeleteObjectsRequest req = new DeleteObjectsRequest(bucket).withKeys(keys).withQuiet(true);
+		try {
+			// quiet mode only reports errors, SDK throws MultiObjectDeleteException for them
+			s3.deleteObjects(req);
+			deleted.addAndGet(keys.size());
+		} catch (MultiObjectDeleteException e) {
+			deleted.addAndGet(keys.size() - e.getErrors().size());
+			failed.addAndGet(e.getErrors().size());
+			for (MultiObjectDeleteException.DeleteError err : e.getErrors()) {
+				System.err.println(err.getKey() + ": " + err.getCode() + " " + err.getMessage());
+			}
+		} catch (AmazonServiceException e) {
+			failed.addAndGet(keys.size());
+			System.err.println("delete " + keys.size() + " Objects from " + keys.get(0).getKey() + ": "
+					+ e.getErrorMessage());
+		} catch (Exception e) {
+			failed.addAndGet(keys.size());
+			System.err.println("delete " + keys.size() + " Objects from " + keys.get(0).getKey() + ": "
+					+ e.getMessage());
+		} finally {
+			// also after a failure, some keys of the batch may be gone
+			if (cache != null) {
+				for (KeyVersion k : keys) {
+					cache.remove(bucket, k.getKey());
+				}
+			}
+		}
+	}
+
+	/**
+	 * send the last batch, wait for all batches and print throughput
+	 *
+	 * @return number of keys failed to delete
+	 */
+	public long finish() {
+		flush();
+		inflight.acquireUninterruptibly(concurrency);
+		inflight.release(concurrency);
+		executor.shutdown();
+
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		System.out.printf("%s delete %d Objects, %d failed in %.3fs(%.1f Objects/s)%n",
+				java.time.Clock.systemUTC().instant(), deleted.get(), failed.get(), seconds, deleted.get() / seconds);
+		return failed.get();
+	}
+}
@@ -0,0 +1,607 @@
+package org.shvc.s3java;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Closed or open loop load generator over a fixed key space under a prefix.
+ * Every worker draws operations from a weighted put/get/head/delete/list mix
+ * and records their latency in its own LatencyHistogram. With a target rate
+ * operations are scheduled at fixed intervals and latency is measured from
+ * the scheduled start, so a stalled endpoint shows up in the tail instead of
+ * silently lowering the request rate. With an AsyncS3 one thread issues
+ * all operations and up to concurrency of them are in flight at once, their
+ * completions are recorded on the client's threads.
+ */
+public class Bench {
+	enum Op {
+		PUT, GET, HEAD, DELETE, LIST
+	}
+
+	private static final Op[] OPS = Op.values();
+
+	private final AmazonS3 s3;
+	private AsyncS3 async;
+	private final String bucket;
+	private final String prefix;
+	private final int concurrency;
+	private final int[] weights = new int[OPS.length];
+	private int totalWeight;
+	private long[] sizes = { 4 << 10 };
+	private int[] sizeWeights = { 1 };
+	private boolean sizeRange = false;
+	private long durationNanos = 10_000_000_000L;
+	private long maxOps = 0;
+	private double rate = 0;
+	private int objects = 1000;
+	private long intervalNanos = 0;
+	private boolean cleanup = false;
+
+	private AtomicIntegerArray exists;
+	private byte[] payload;
+	private final LongAdder done = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final AtomicLong errorsShown = new AtomicLong();
+
+	public Bench(AmazonS3 s3, String bucket, String prefix, int concurrency) {
+		this.s3 = s3;
+		this.bucket = bucket;
+		this.prefix = prefix;
+		this.concurrency = Math.max(1, concurrency);
+		setMix("put=1,get=1");
+	}
+
+	/**
+	 * operation weights, e.g. put=20,get=70,head=5,delete=5
+	 */
+	public void setMix(String mix) {
+		java.util.Arrays.fill(weights, 0);
+		totalWeight = 0;
+		for (String part : mix.split(",")) {
+			String[] kv = part.trim().split("[=:]");
+			Op op;
+			try {
+				op = Op.valueOf(kv[0].trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("unknown operation in mix: " + kv[0]);
+			}
+			int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+			if (weight < 0) {
+				throw new IllegalArgumentException("negative weight in mix: " + part);
+			}
+			weights[op.ordinal()] += weight;
+			totalWeight += weight;
+		}
+		if (totalWeight == 0) {
+			throw new IllegalArgumentException("empty mix: " + mix);
+		}
+	}
+
+	/**
+	 * Object size distribution: a fixed size(4K), a uniform range(4K-1M) or
+	 * weighted sizes(4K:80,1M:20)
+	 */
+	public void setSizes(String spec) {
+		if (spec.contains("-")) {
+			String[] r = spec.split("-");
+			sizes = new long[] { parseSize(r[0]), parseSize(r[1]) };
+			sizeWeights = new int[] { 1, 1 };
+			sizeRange = true;
+			if (sizes[0] > sizes[1]) {
+				throw new IllegalArgumentException("bad size range: " + spec);
+			}
+			return;
+		}
+		String[] parts = spec.split(",");
+		sizes = new long[parts.length];
+		sizeWeights = new int[parts.length];
+		sizeRange = false;
+		for (int i = 0; i < parts.length; i++) {
+			String[] kv = parts[i].trim().split(":");
+			sizes[i] = parseSize(kv[0]);
+			sizeWeights[i] = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+		}
+	}
+
+	// 512, 4K, 1M, 1G
+	static long parseSize(String s) {
+		s = s.trim().toUpperCase(Locale.ROOT);
+		long unit = 1;
+		if (s.endsWith("B")) {
+			s = s.substring(0, s.length() - 1);
+		}
+		if (s.endsWith("K")) {
+			unit = 1L << 10;
+		} else if (s.endsWith("M")) {
+			unit = 1L << 20;
+		} else if (s.endsWith("G")) {
+			unit = 1L << 30;
+		}
+		if (unit > 1) {
+			s = s.substring(0, s.length() - 1);
+		}
+		long size = Long.parseLong(s) * unit;
+		if (size < 0 || size > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("bad Object size: " + s);
+		}
+		return size;
+	}
+
+	/**
+	 * stop after duration(0: no limit) or maxOps operations(0: no limit),
+	 * whichever comes first
+	 */
+	public void setLimits(long durationMillis, long maxOps) {
+		this.durationNanos = durationMillis * 1_000_000L;
+		this.maxOps = maxOps;
+	}
+
+	/**
+	 * target operations per second over all workers, 0 runs closed loop as
+	 * fast as concurrency allows
+	 */
+	public void setRate(double rate) {
+		this.rate = rate;
+	}
+
+	// size of the key space
+	public void setObjects(int objects) {
+		this.objects = Math.max(1, objects);
+	}
+
+	// print progress every interval, 0 for none
+	public void setInterval(long intervalMillis) {
+		this.intervalNanos = intervalMillis * 1_000_000L;
+	}
+
+	// delete the key space when done
+	public void setCleanup(boolean cleanup) {
+		this.cleanup = cleanup;
+	}
+
+	// run the operations on a non-blocking client, null for thread per operation
+	public void setAsync(AsyncS3 async) {
+		this.async = async;
+	}
+
+	private String key(int slot) {
+		return prefix + String.format("%08d", slot);
+	}
+
+	private long nextSize(Random random) {
+		if (sizeRange) {
+			return sizes[0] + (long) (random.nextDouble() * (sizes[1] - sizes[0] + 1));
+		}
+		if (sizes.length == 1) {
+			return sizes[0];
+		}
+		int total = 0;
+		for (int w : sizeWeights) {
+			total += w;
+		}
+		int r = random.nextInt(total);
+		for (int i = 0; i < sizes.length; i++) {
+			r -= sizeWeights[i];
+			if (r < 0) {
+				return sizes[i];
+			}
+		}
+		return sizes[sizes.length - 1];
+	}
+
+	private Op nextOp(Random random) {
+		int r = random.nextInt(totalWeight);
+		for (Op op : OPS) {
+			r -= weights[op.ordinal()];
+			if (r < 0) {
+				return op;
+			}
+		}
+		return Op.PUT;
+	}
+
+	// a slot holding an Object, or any slot if none is found nearby
+	private int existingSlot(Random random) {
+		int start = random.nextInt(objects);
+		for (int i = 0; i < Math.min(objects, 64); i++) {
+			int slot = (start + i) % objects;
+			if (exists.get(slot) == 1) {
+				return slot;
+			}
+		}
+		return start;
+	}
+
+	// per worker counters, merged when the run is over
+	private static class Stats {
+		final LatencyHistogram[] latency = new LatencyHistogram[OPS.length];
+		final long[] errors = new long[OPS.length];
+		final long[] bytes = new long[OPS.length];
+		final byte[] buffer = new byte[64 << 10];
+
+		Stats() {
+			for (int i = 0; i < latency.length; i++) {
+				latency[i] = new LatencyHistogram();
+			}
+		}
+
+		void add(Stats other) {
+			for (int i = 0; i < latency.length; i++) {
+				latency[i].add(other.latency[i]);
+				errors[i] += other.errors[i];
+				bytes[i] += other.bytes[i];
+			}
+		}
+	}
+
+	// run one operation and return the payload bytes moved
+	private long execute(Op op, Random random, Stats stats) throws IOException {
+		switch (op) {
+			case PUT: {
+				int slot = random.nextInt(objects);
+				return put(slot, nextSize(random));
+			}
+			case GET: {
+				long n = 0;
+				try (S3Object object = s3.getObject(bucket, key(existingSlot(random)))) {
+					S3ObjectInputStream in = object.getObjectContent();
+					int r;
+					while ((r = in.read(stats.buffer)) > 0) {
+						n += r;
+					}
+				}
+				return n;
+			}
+			case HEAD:
+				s3.getObjectMetadata(bucket, key(existingSlot(random)));
+				return 0;
+			case DELETE: {
+				int slot = existingSlot(random);
+				exists.set(slot, 0);
+				s3.deleteObject(bucket, key(slot));
+				return 0;
+			}
+			default: {
+				// one page of the key space
+				s3.listObjectsV2(new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix).withMaxKeys(1000));
+				return 0;
+			}
+		}
+	}
+
+	// start one operation, the future completes with the payload bytes moved
+	private CompletableFuture<Long> executeAsync(Op op, Random random) {
+		switch (op) {
+			case PUT: {
+				int slot = random.nextInt(objects);
+				return putAsync(slot, nextSize(random));
+			}
+			case GET:
+				return async.getObject(bucket, key(existingSlot(random)));
+			case HEAD:
+				return async.headObject(bucket, key(existingSlot(random))).thenApply(m -> 0L);
+			case DELETE: {
+				int slot = existingSlot(random);
+				exists.set(slot, 0);
+				return async.deleteObject(bucket, key(slot)).thenApply(v -> 0L);
+			}
+			default:
+				return async.listObjectsV2(
+						new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix).withMaxKeys(1000))
+						.thenApply(r -> 0L);
+		}
+	}
+
+	private CompletableFuture<Long> putAsync(int slot, long size) {
+		return async.putObject(bucket, key(slot), payload, 0, (int) size, "application/octet-stream").thenApply(v -> {
+			exists.set(slot, 1);
+			return size;
+		});
+	}
+
+	private long put(int slot, long size) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(size);
+		metadata.setContentType("application/octet-stream");
+		s3.putObject(new PutObjectRequest(bucket, key(slot), new ByteArrayInputStream(payload, 0, (int) size),
+				metadata));
+		exists.set(slot, 1);
+		return size;
+	}
+
+	private void error(Op op, Throwable e) {
+		e = AsyncS3.cause(e);
+		errors.increment();
+		// show the first few errors, the summary counts all of them
+		if (errorsShown.incrementAndGet() <= 10) {
+			String message = e instanceof AmazonServiceException ? ((AmazonServiceException) e).getErrorMessage()
+					: e.getMessage();
+			System.err.println(op.name().toLowerCase(Locale.ROOT) + ": " + message);
+		}
+	}
+
+	private long maxSize() {
+		long max = 0;
+		for (long s : sizes) {
+			max = Math.max(max, s);
+		}
+		return max;
+	}
+
+	// fill the key space so get, head, delete and list have Objects to work on
+	private void prepare(ExecutorService pool) throws Exception {
+		boolean reads = false;
+		for (Op op : OPS) {
+			reads |= op != Op.PUT && weights[op.ordinal()] > 0;
+		}
+		if (!reads) {
+			return;
+		}
+		long start = System.nanoTime();
+		if (async != null) {
+			Semaphore inflight = new Semaphore(concurrency);
+			Random random = ThreadLocalRandom.current();
+			for (int slot = 0; slot < objects; slot++) {
+				inflight.acquire();
+				putAsync(slot, nextSize(random)).whenComplete((n, e) -> {
+					if (e != null) {
+						error(Op.PUT, e);
+					}
+					inflight.release();
+				});
+			}
+			inflight.acquire(concurrency);
+			System.out.printf("%s prepare %d Objects in %.3fs%n", java.time.Clock.systemUTC().instant(), objects,
+					(System.nanoTime() - start) / 1e9);
+			return;
+		}
+		AtomicLong next = new AtomicLong();
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (int i = 0; i < concurrency; i++) {
+			futures.add(pool.submit(() -> {
+				Random random = ThreadLocalRandom.current();
+				int slot;
+				while ((slot = (int) next.getAndIncrement()) < objects) {
+					try {
+						put(slot, nextSize(random));
+					} catch (Exception e) {
+						error(Op.PUT, e);
+					}
+				}
+			}));
+		}
+		for (Future<?> f : futures) {
+			f.get();
+		}
+		System.out.printf("%s prepare %d Objects in %.3fs%n", java.time.Clock.systemUTC().instant(), objects,
+				(System.nanoTime() - start) / 1e9);
+	}
+
+	/**
+	 * prepare the key space, run the mix until a limit is reached and print
+	 * the summary
+	 *
+	 * @return number of failed operations
+	 */
+	public long run() throws Exception {
+		exists = new AtomicIntegerArray(objects);
+		payload = new byte[(int) maxSize()];
+		new Random().nextBytes(payload);
+
+		ExecutorService pool = TaskRunner.newExecutor(concurrency);
+		Stats total = new Stats();
+		long start;
+		long elapsed;
+		try {
+			prepare(pool);
+			errors.reset();
+
+			start = System.nanoTime();
+			long deadline = durationNanos > 0 ? start + durationNanos : Long.MAX_VALUE;
+			long period = rate > 0 ? (long) (1e9 / rate) : 0;
+			AtomicLong issued = new AtomicLong();
+			List<Future<Stats>> futures = new ArrayList<Future<Stats>>();
+			for (int i = 0; i < (async != null ? 0 : concurrency); i++) {
+				futures.add(pool.submit(() -> {
+					Stats stats = new Stats();
+					Random random = ThreadLocalRandom.current();
+					while (true) {
+						long n = issued.getAndIncrement();
+						if (maxOps > 0 && n >= maxOps) {
+							break;
+						}
+						long begin = System.nanoTime();
+						if (period > 0) {
+							// open loop: measure from the scheduled start
+							begin = start + n * period;
+							long now;
+							while ((now = System.nanoTime()) < begin) {
+								LockSupport.parkNanos(begin - now);
+							}
+						}
+						if (begin >= deadline) {
+							break;
+						}
+						Op op = nextOp(random);
+						try {
+							stats.bytes[op.ordinal()] += execute(op, random, stats);
+						} catch (Exception e) {
+							stats.errors[op.ordinal()]++;
+							error(op, e);
+						}
+						stats.latency[op.ordinal()].record(System.nanoTime() - begin);
+						done.increment();
+					}
+					return stats;
+				}));
+			}
+			if (async != null) {
+				futures.add(pool.submit(() -> drive(start, deadline, period, issued)));
+			}
+
+			long lastDone = 0;
+			long lastTime = start;
+			for (Future<Stats> f : futures) {
+				while (intervalNanos > 0 && !f.isDone()) {
+					Thread.sleep(Math.min(100, intervalNanos / 1_000_000));
+					long now = System.nanoTime();
+					if (now - lastTime >= intervalNanos) {
+						long d = done.sum();
+						System.out.printf("%s %.0fs %d ops %.1f ops/s %d errors%n",
+								java.time.Clock.systemUTC().instant(), (now - start) / 1e9, d,
+								(d - lastDone) * 1e9 / (now - lastTime), errors.sum());
+						lastDone = d;
+						lastTime = now;
+					}
+				}
+				total.add(f.get());
+			}
+			elapsed = System.nanoTime() - start;
+		} finally {
+			pool.shutdownNow();
+		}
+
+		report(total, elapsed);
+		if (cleanup) {
+			cleanup();
+		}
+		return errors.sum();
+	}
+
+	// issue operations on this thread until a limit is reached, keeping up to
+	// concurrency in flight, and wait for the last of them
+	private Stats drive(long start, long deadline, long period, AtomicLong issued) throws InterruptedException {
+		Semaphore inflight = new Semaphore(concurrency);
+		List<Stats> all = new ArrayList<Stats>();
+		// completions run on a few client threads, each records into its own Stats
+		ThreadLocal<Stats> local = ThreadLocal.withInitial(() -> {
+			Stats stats = new Stats();
+			synchronized (all) {
+				all.add(stats);
+			}
+			return stats;
+		});
+		Random random = ThreadLocalRandom.current();
+		while (true) {
+			long n = issued.getAndIncrement();
+			if (maxOps > 0 && n >= maxOps) {
+				break;
+			}
+			long begin;
+			if (period > 0) {
+				// open loop: waiting for a free slot counts as latency
+				begin = start + n * period;
+				long now;
+				while ((now = System.nanoTime()) < begin) {
+					LockSupport.parkNanos(begin - now);
+				}
+				if (begin >= deadline) {
+					break;
+				}
+				inflight.acquire();
+			} else {
+				inflight.acquire();
+				begin = System.nanoTime();
+				if (begin >= deadline) {
+					inflight.release();
+					break;
+				}
+			}
+			Op op = nextOp(random);
+			long scheduled = begin;
+			CompletableFuture<Long> f;
+			try {
+				f = executeAsync(op, random);
+			} catch (RuntimeException e) {
+				f = new CompletableFuture<Long>();
+				f.completeExceptionally(e);
+			}
+			f.whenComplete((bytes, e) -> {
+				Stats stats = local.get();
+				if (e != null) {
+					stats.errors[op.ordinal()]++;
+					error(op, e);
+				} else {
+					stats.bytes[op.ordinal()] += bytes;
+				}
+				stats.latency[op.ordinal()].record(System.nanoTime() - scheduled);
+				done.increment();
+				inflight.release();
+			});
+		}
+		inflight.acquire(concurrency);
+		Stats total = new Stats();
+		synchronized (all) {
+			for (Stats stats : all) {
+				total.add(stats);
+			}
+		}
+		return total;
+	}
+
+	private void report(Stats stats, long elapsed) {
+		double seconds = Math.max(elapsed, 1) / 1e9;
+		LatencyHistogram all = new LatencyHistogram();
+		long allErrors = 0;
+		long allBytes = 0;
+		System.out.printf("%-7s %10s %8s %10s %9s %9s %9s %9s %9s %9s%n", "op", "ops", "errors", "ops/s", "MB/s",
+				"mean(ms)", "p50(ms)", "p99(ms)", "p999(ms)", "max(ms)");
+		for (Op op : OPS) {
+			LatencyHistogram h = stats.latency[op.ordinal()];
+			if (h.getCount() == 0) {
+				continue;
+			}
+			all.add(h);
+			allErrors += stats.errors[op.ordinal()];
+			allBytes += stats.bytes[op.ordinal()];
+			line(op.name().toLowerCase(Locale.ROOT), h, stats.errors[op.ordinal()], stats.bytes[op.ordinal()],
+					seconds);
+		}
+		line("total", all, allErrors, allBytes, seconds);
+		System.out.printf("%s bench %d ops in %.3fs, concurrency %d%s%n", java.time.Clock.systemUTC().instant(),
+				all.getCount(), seconds, concurrency, (async != null ? " async" : "") + (rate > 0 ? String.format(", target %.1f ops/s", rate) : ""));
+	}
+
+	private static void line(String name, LatencyHistogram h, long errors, long bytes, double seconds) {
+		System.out.printf("%-7s %10d %8d %10.1f %9.2f %9.3f %9.3f %9.3f %9.3f %9.3f%n", name, h.getCount(), errors,
+				h.getCount() / seconds, bytes / seconds / (1 << 20), h.getMean() / 1e6, h.percentile(50) / 1e6,
+				h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.getMax() / 1e6);
+	}
+
+	private void cleanup() {
+		BatchDeleter deleter = new BatchDeleter(s3, bucket, concurrency);
+		ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+		ListObjectsV2Result result;
+		do {
+			result = s3.listObjectsV2(req);
+			for (S3ObjectSummary o : result.getObjectSummaries()) {
+				deleter.add(o.getKey());
+			}
+			req.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+		deleter.finish();
+	}
+}
@@ -0,0 +1,313 @@
+package org.shvc.s3java;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.SSEAlgorithm;
+import com.amazonaws.util.Base64;
+import com.amazonaws.util.BinaryUtils;
+import org.apache.commons.codec.digest.PureJavaCrc32C;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Streaming content checksum fed by the transfer loops, so verifying a
+ * download never reads the data a second time: MD5(the ETag of a single
+ * part upload), CRC32C or SHA-256(x-amz-checksum-*). Multipart Objects carry
+ * composite values, the checksum of the concatenated part checksums and
+ * "-N"; {@link Parts} keeps one checksum per part so ranges aligned to the
+ * part size are checked in parallel.
+ */
+public class Checksum {
+	public enum Algorithm {
+		MD5(null), CRC32C("x-amz-checksum-crc32c"), SHA256("x-amz-checksum-sha256");
+
+		// response header of the algorithm, null for the ETag
+		final String header;
+
+		Algorithm(String header) {
+			this.header = header;
+		}
+	}
+
+	private static final Pattern MD5_ETAG = Pattern.compile("([0-9a-f]{32})(?:-(\\d+))?");
+	private static final Pattern CHECKSUM = Pattern.compile("([A-Za-z0-9+/=]+)(?:-(\\d+))?");
+	// java.util.zip.CRC32C(Java 9+) is intrinsified, Java 8 gets the pure Java one
+	private static final Class<?> CRC32C_CLASS;
+
+	static {
+		Class<?> c;
+		try {
+			c = Class.forName("java.util.zip.CRC32C");
+		} catch (ClassNotFoundException e) {
+			c = null;
+		}
+		CRC32C_CLASS = c;
+	}
+
+	private final Algorithm algorithm;
+	private final MessageDigest digest;
+	private final java.util.zip.Checksum crc;
+	private byte[] scratch;
+
+	public Checksum(Algorithm algorithm) {
+		this.algorithm = algorithm;
+		try {
+			switch (algorithm) {
+				case CRC32C:
+					digest = null;
+					crc = CRC32C_CLASS != null ? (java.util.zip.Checksum) CRC32C_CLASS.getDeclaredConstructor().newInstance()
+							: new PureJavaCrc32C();
+					break;
+				case SHA256:
+					digest = MessageDigest.getInstance("SHA-256");
+					crc = null;
+					break;
+				default:
+					digest = MessageDigest.getInstance("MD5");
+					crc = null;
+			}
+		} catch (NoSuchAlgorithmException | ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	public void update(byte[] b, int off, int len) {
+		if (digest != null) {
+			digest.update(b, off, len);
+		} else {
+			crc.update(b, off, len);
+		}
+	}
+
+	// the remaining bytes of buf, its position is left alone
+	public void update(ByteBuffer buf) {
+		int position = buf.position();
+		if (digest != null) {
+			digest.update(buf);
+		} else if (CRC32C_CLASS != null) {
+			crc.update(buf);
+		} else if (buf.hasArray()) {
+			crc.update(buf.array(), buf.arrayOffset() + position, buf.remaining());
+		} else {
+			if (scratch == null) {
+				scratch = new byte[64 << 10];
+			}
+			while (buf.hasRemaining()) {
+				int n = Math.min(scratch.length, buf.remaining());
+				buf.get(scratch, 0, n);
+				crc.update(scratch, 0, n);
+			}
+		}
+		((Buffer) buf).position(position);
+	}
+
+	// the checksum of the bytes so far, and start over
+	public byte[] digest() {
+		if (digest != null) {
+			return digest.digest();
+		}
+		long value = crc.getValue();
+		crc.reset();
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+
+	// hex like an ETag for MD5, base64 like x-amz-checksum-* for the others
+	static String encode(Algorithm algorithm, byte[] value) {
+		return algorithm == Algorithm.MD5 ? BinaryUtils.toHex(value) : Base64.encodeAsString(value);
+	}
+
+	/**
+	 * the checksum to verify an Object's content with: an x-amz-checksum-*
+	 * header(returned for x-amz-checksum-mode: ENABLED), else an MD5 ETag;
+	 * null if there is none, e.g. the ETag of an SSE-KMS or SSE-C Object
+	 *
+	 * @param size Object size
+	 */
+	static Parts expected(ObjectMetadata meta, long size) {
+		for (Algorithm algorithm : Algorithm.values()) {
+			if (algorithm.header == null) {
+				continue;
+			}
+			String value = header(meta.getRawMetadata(), algorithm.header);
+			Matcher m = value == null ? null : CHECKSUM.matcher(value);
+			if (m != null && m.matches()) {
+				return new Parts(algorithm, m.group(1), m.group(2) == null ? 0 : Integer.parseInt(m.group(2)), size);
+			}
+		}
+		if (meta.getETag() == null || meta.getSSECustomerAlgorithm() != null
+				|| SSEAlgorithm.KMS.getAlgorithm().equals(meta.getSSEAlgorithm())) {
+			return null;
+		}
+		Matcher m = MD5_ETAG.matcher(meta.getETag().toLowerCase(Locale.ROOT));
+		if (!m.matches()) {
+			return null;
+		}
+		return new Parts(Algorithm.MD5, m.group(1), m.group(2) == null ? 0 : Integer.parseInt(m.group(2)), size);
+	}
+
+	/**
+	 * ETag of a multipart Object made of parts with these MD5 ETags, null if
+	 * one isn't an MD5
+	 */
+	static String compositeETag(Collection<PartETag> parts) {
+		Checksum md5 = new Checksum(Algorithm.MD5);
+		for (PartETag p : parts) {
+			String etag = p.getETag().replace("\"", "").toLowerCase(Locale.ROOT);
+			if (!MD5_ETAG.matcher(etag).matches() || etag.contains("-")) {
+				return null;
+			}
+			byte[] d = BinaryUtils.fromHex(etag);
+			md5.update(d, 0, d.length);
+		}
+		return encode(Algorithm.MD5, md5.digest()) + "-" + parts.size();
+	}
+
+	private static String header(Map<String, Object> headers, String name) {
+		for (Map.Entry<String, Object> h : headers.entrySet()) {
+			if (h.getKey().equalsIgnoreCase(name) && h.getValue() != null) {
+				return h.getValue().toString();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Expected checksum of an Object and the checksums computed while it is
+	 * read, one per part of a multipart Object. Every {@link Cursor} reads one
+	 * range starting on a part boundary, ranges may be read in parallel.
+	 */
+	static final class Parts {
+		final Algorithm algorithm;
+		final String expected;
+		// parts of a composite value, 0 for a checksum of the whole Object
+		final int count;
+		final long size;
+		private long partSize;
+		private byte[][] digests;
+
+		Parts(Algorithm algorithm, String expected, int count, long size) {
+			this.algorithm = algorithm;
+			this.expected = expected;
+			this.count = count;
+			this.size = size;
+			this.partSize = Math.max(1, size);
+			this.digests = new byte[1][];
+		}
+
+		boolean isComposite() {
+			return count > 0;
+		}
+
+		long getPartSize() {
+			return partSize;
+		}
+
+		/**
+		 * size of every part but the last, from the first part of the Object
+		 *
+		 * @return false if the parts can't have been that size
+		 */
+		boolean setPartSize(long partSize) {
+			int n = partSize <= 0 ? 1 : (int) Math.max(1, (size + partSize - 1) / partSize);
+			if (isComposite() && n != count) {
+				return false;
+			}
+			this.partSize = Math.max(1, partSize);
+			this.digests = new byte[n][];
+			return true;
+		}
+
+		// checksums of a range starting at position, on a part boundary
+		Cursor cursor(long position) {
+			return new Cursor(position);
+		}
+
+		final class Cursor {
+			private final Checksum checksum = new Checksum(algorithm);
+			private long position;
+			private long partEnd;
+
+			Cursor(long position) {
+				this.position = position;
+				this.partEnd = Math.min(size, position + partSize);
+			}
+
+			void update(ByteBuffer buf) {
+				int start = buf.position();
+				int limit = buf.limit();
+				while (buf.position() < limit) {
+					int n = (int) Math.min(limit - buf.position(), partEnd - position);
+					if (n <= 0) {
+						// more than the Object size, check() reports the mismatch
+						digests[0] = null;
+						break;
+					}
+					((Buffer) buf).limit(buf.position() + n);
+					checksum.update(buf);
+					((Buffer) buf).position(buf.limit());
+					position += n;
+					if (position == partEnd) {
+						digests[(int) ((partEnd - 1) / partSize)] = checksum.digest();
+						partEnd = Math.min(size, position + partSize);
+					}
+					((Buffer) buf).limit(limit);
+				}
+				((Buffer) buf).position(start);
+			}
+		}
+
+		/**
+		 * compare what was read with the expected checksum
+		 *
+		 * @throws IOException on a mismatch or a part that wasn't read
+		 */
+		void check() throws IOException {
+			if (size == 0) {
+				// nothing was read
+				digests[0] = new Checksum(algorithm).digest();
+			}
+			byte[] value;
+			if (!isComposite()) {
+				value = digests[0];
+			} else {
+				Checksum all = new Checksum(algorithm);
+				for (byte[] d : digests) {
+					if (d == null) {
+						throw new IOException("checksum: part not read");
+					}
+					all.update(d, 0, d.length);
+				}
+				value = all.digest();
+			}
+			if (value == null) {
+				throw new IOException("checksum: not read");
+			}
+			String actual = encode(algorithm, value);
+			if (!actual.equals(expected)) {
+				throw new IOException(
+						"checksum mismatch: " + name() + " " + actual + suffix() + ", expected " + expected + suffix());
+			}
+		}
+
+		String name() {
+			return algorithm == Algorithm.MD5 ? "ETag(MD5)" : algorithm.header.substring("x-amz-checksum-".length());
+		}
+
+		private String suffix() {
+			return isComposite() ? "-" + count : "";
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package org.shvc.s3java;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression stage of uploads and downloads. An upload is cut into blocks
+ * compressed in parallel, each a complete gzip member, zstd or lz4 frame:
+ * the concatenation is a valid stream of the codec and is decompressed in
+ * one pass. The codec is recorded in the user metadata, downloads
+ * decompress what carries it.
+ */
+public class Compression {
+	// x-amz-meta-s3java-compress
+	public static final String METADATA = "s3java-compress";
+	// x-amz-meta-s3java-size, the uncompressed size of a file upload
+	public static final String SIZE_METADATA = "s3java-size";
+	public static final int DEFAULT_BLOCK_SIZE = 4 << 20;
+
+	public enum Codec {
+		gzip, zstd, lz4;
+
+		OutputStream compress(OutputStream out) throws IOException {
+			switch (this) {
+				case gzip:
+					return new GZIPOutputStream(out, 64 << 10);
+				case zstd:
+					return new ZstdOutputStream(out);
+				default:
+					return new LZ4FrameOutputStream(out, LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB);
+			}
+		}
+
+		// reads all concatenated members/frames
+		InputStream decompress(InputStream in) throws IOException {
+			switch (this) {
+				case gzip:
+					return new GZIPInputStream(in, 64 << 10);
+				case zstd:
+					return new ZstdInputStream(in);
+				default:
+					return new LZ4FrameInputStream(in);
+			}
+		}
+
+		byte[] compress(byte[] b, int len) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, len / 4));
+			try (OutputStream c = compress(out)) {
+				c.write(b, 0, len);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * codec an Object was uploaded with, null if it isn't compressed or the
+	 * codec is unknown
+	 */
+	static Codec of(ObjectMetadata meta) {
+		String value = meta.getUserMetaDataOf(METADATA);
+		if (value == null) {
+			return null;
+		}
+		try {
+			return Codec.valueOf(value.trim().toLowerCase(Locale.ROOT));
+		} catch (IllegalArgumentException e) {
+			System.err.println("unknown " + METADATA + ": " + value + ", not decompressed");
+			return null;
+		}
+	}
+
+	/**
+	 * uncompressed size recorded with a compressed Object, -1 if there is
+	 * none(not compressed, or a stream of unknown size)
+	 */
+	static long size(ObjectMetadata meta) {
+		String value = meta.getUserMetaDataOf(SIZE_METADATA);
+		if (value == null || of(meta) == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * the compressed content of in, blocks of blockSize bytes are compressed
+	 * on pool with at most ahead blocks in flight
+	 */
+	static InputStream compressing(Codec codec, InputStream in, ExecutorService pool, int blockSize, int ahead) {
+		return new Compressor(codec, in, pool, blockSize, ahead);
+	}
+
+	private static final class Compressor extends InputStream {
+		private final Codec codec;
+		private final InputStream in;
+		private final ExecutorService pool;
+		private final int blockSize;
+		private final int ahead;
+		private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		private boolean eof;
+		private boolean empty = true;
+		private byte[] current;
+		private int position;
+
+		Compressor(Codec codec, InputStream in, ExecutorService pool, int blockSize, int ahead) {
+			this.codec = codec;
+			this.in = in;
+			this.pool = pool;
+			this.blockSize = blockSize;
+			this.ahead = Math.max(1, ahead);
+		}
+
+		// the next compressed block, false at the end
+		private boolean next() throws IOException {
+			while (!eof && pending.size() < ahead) {
+				byte[] raw = new byte[blockSize];
+				int n = StreamUpload.readFully(in, raw);
+				if (n < raw.length) {
+					eof = true;
+				}
+				// an empty input is still one(empty) frame, a stream the codec can read
+				if (n > 0 || empty) {
+					empty = false;
+					pending.add(pool.submit(() -> codec.compress(raw, n)));
+				}
+			}
+			Future<byte[]> f = pending.poll();
+			if (f == null) {
+				return false;
+			}
+			try {
+				current = f.get();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause().getMessage(), e.getCause());
+			}
+			position = 0;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (current == null || position == current.length) {
+				if (!next()) {
+					return -1;
+				}
+			}
+			int n = Math.min(len, current.length - position);
+			System.arraycopy(current, position, b, off, n);
+			position += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (Future<byte[]> f : pending) {
+				f.cancel(true);
+			}
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,278 @@
+package org.shvc.s3java;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Object count, bytes and size classes of a Bucket prefix, per prefix down to
+ * depth delimiter levels. Delimiter listings fan out over the common
+ * prefixes of the first fanout levels with at most concurrency requests in
+ * flight, deeper subtrees are listed flat. Every page is counted into plain
+ * long counters of its row, rows are rolled up into their parents at the
+ * end like du.
+ */
+public class DiskUsage {
+	public static final String DELIMITER = "/";
+	// upper bounds of the size classes, the last class is everything larger
+	static final long[] CLASSES = { 0, 1L << 10, 16L << 10, 256L << 10, 1L << 20, 16L << 20, 128L << 20, 1L << 30,
+			5L << 30 };
+	static final String[] CLASS_NAMES = { "0", "<=1K", "<=16K", "<=256K", "<=1M", "<=16M", "<=128M", "<=1G", "<=5G",
+			">5G" };
+
+	private final AmazonS3 s3;
+	private final int concurrency;
+	private final int depth;
+	private final int fanout;
+	private final Semaphore inflight;
+	private final ConcurrentHashMap<String, Usage> rows = new ConcurrentHashMap<String, Usage>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong pending = new AtomicLong();
+	private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+	private String bucket;
+	private String root;
+	private ExecutorService pool;
+
+	/**
+	 * @param depth  report prefixes down to this many levels below the root, 0
+	 *               for the total only
+	 * @param fanout list the common prefixes of this many levels concurrently
+	 */
+	public DiskUsage(AmazonS3 s3, int concurrency, int depth, int fanout) {
+		this.s3 = s3;
+		this.concurrency = Math.max(1, concurrency);
+		this.depth = Math.max(0, depth);
+		this.fanout = Math.max(0, fanout);
+		this.inflight = new Semaphore(this.concurrency);
+	}
+
+	/**
+	 * counters of a row, updated by one page at a time
+	 */
+	static final class Usage {
+		long objects;
+		long bytes;
+		final long[] classes = new long[CLASS_NAMES.length];
+
+		void add(long size) {
+			objects++;
+			bytes += size;
+			classes[sizeClass(size)]++;
+		}
+
+		synchronized void add(Usage u) {
+			objects += u.objects;
+			bytes += u.bytes;
+			for (int i = 0; i < classes.length; i++) {
+				classes[i] += u.classes[i];
+			}
+		}
+	}
+
+	static int sizeClass(long size) {
+		for (int i = 0; i < CLASSES.length; i++) {
+			if (size <= CLASSES[i]) {
+				return i;
+			}
+		}
+		return CLASSES.length;
+	}
+
+	/**
+	 * the row of a Key: the root plus at most depth levels of the Key
+	 */
+	String row(String key) {
+		return row(root, depth, key);
+	}
+
+	static String row(String root, int depth, String key) {
+		int end = root.length();
+		for (int level = 0; level < depth; level++) {
+			int slash = key.indexOf(DELIMITER, end);
+			if (slash < 0) {
+				break;
+			}
+			end = slash + 1;
+		}
+		return key.substring(0, end);
+	}
+
+	/**
+	 * list everything under prefix and return the rows with the totals of
+	 * their subtrees, in key order; the root prefix row is the total
+	 */
+	public Map<String, Usage> run(String bucket, String prefix) throws Exception {
+		this.bucket = bucket;
+		this.root = prefix;
+		this.pool = TaskRunner.newExecutor(concurrency);
+		try {
+			submit(prefix, 0);
+			synchronized (this) {
+				while (pending.get() > 0) {
+					wait();
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return rollUp();
+	}
+
+	private void submit(String prefix, int level) {
+		pending.incrementAndGet();
+		pool.execute(() -> {
+			try {
+				if (failure.get() == null) {
+					list(prefix, level);
+				}
+			} catch (Exception e) {
+				failure.compareAndSet(null, e);
+			} finally {
+				if (pending.decrementAndGet() == 0) {
+					synchronized (this) {
+						notifyAll();
+					}
+				}
+			}
+		});
+	}
+
+	private void list(String prefix, int level) throws InterruptedException {
+		ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+		boolean delimited = level < fanout;
+		if (delimited) {
+			req.setDelimiter(DELIMITER);
+		}
+		ListObjectsV2Result result;
+		do {
+			inflight.acquire();
+			try {
+				result = s3.listObjectsV2(req);
+			} finally {
+				inflight.release();
+			}
+			requests.incrementAndGet();
+			count(result.getObjectSummaries());
+			if (delimited) {
+				for (String p : result.getCommonPrefixes()) {
+					submit(p, level + 1);
+				}
+			}
+			req.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated() && failure.get() == null);
+	}
+
+	// a page's Keys are sorted, consecutive Keys mostly share a row
+	private void count(List<S3ObjectSummary> page) {
+		Map<String, Usage> local = new HashMap<String, Usage>();
+		String last = null;
+		boolean full = false;
+		Usage usage = null;
+		for (S3ObjectSummary o : page) {
+			String key = o.getKey();
+			// below the last row, which is depth levels deep or the Key has no deeper level
+			if (last == null || !key.startsWith(last) || !full && key.indexOf(DELIMITER, last.length()) >= 0) {
+				last = row(key);
+				full = levels(last) >= depth;
+				usage = local.computeIfAbsent(last, k -> new Usage());
+			}
+			usage.add(o.getSize());
+		}
+		for (Map.Entry<String, Usage> e : local.entrySet()) {
+			rows.computeIfAbsent(e.getKey(), k -> new Usage()).add(e.getValue());
+		}
+	}
+
+	// levels of a row below the root
+	private int levels(String row) {
+		int n = 0;
+		for (int i = root.length(); (i = row.indexOf(DELIMITER, i)) >= 0; i++) {
+			n++;
+		}
+		return n;
+	}
+
+	// every row adds to itself and its ancestors up to the root
+	private Map<String, Usage> rollUp() {
+		TreeMap<String, Usage> total = new TreeMap<String, Usage>();
+		total.put(root, new Usage());
+		for (Map.Entry<String, Usage> e : rows.entrySet()) {
+			String row = e.getKey();
+			while (true) {
+				total.computeIfAbsent(row, k -> new Usage()).add(e.getValue());
+				if (row.length() <= root.length()) {
+					break;
+				}
+				int slash = row.lastIndexOf(DELIMITER, row.length() - 2);
+				row = slash < root.length() ? root : row.substring(0, slash + 1);
+			}
+		}
+		return total;
+	}
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * one line per row: bytes, Objects and the prefix, then the total and
+	 * its size classes; histogram adds the size classes of every row
+	 */
+	static void print(PrintWriter out, String bucket, String root, Map<String, Usage> rows, boolean human,
+			boolean histogram) {
+		for (Map.Entry<String, Usage> e : rows.entrySet()) {
+			if (e.getKey().equals(root)) {
+				continue;
+			}
+			line(out, bucket + "/" + e.getKey(), e.getValue(), human);
+			if (histogram) {
+				classes(out, e.getValue());
+			}
+		}
+		Usage total = rows.get(root);
+		line(out, bucket + "/" + root, total, human);
+		classes(out, total);
+	}
+
+	private static void line(PrintWriter out, String name, Usage u, boolean human) {
+		out.printf("%12s %12d  %s%n", human ? human(u.bytes) : Long.toString(u.bytes), u.objects, name);
+	}
+
+	private static void classes(PrintWriter out, Usage u) {
+		for (int i = 0; i < CLASS_NAMES.length; i++) {
+			if (u.classes[i] > 0) {
+				out.printf("  %-7s %12d Objects%n", CLASS_NAMES[i], u.classes[i]);
+			}
+		}
+	}
+
+	static String human(long bytes) {
+		String units = "KMGTPE";
+		if (bytes < 1024) {
+			return bytes + "B";
+		}
+		double v = bytes;
+		int u = -1;
+		while (v >= 1024 && u < units.length() - 1) {
+			v /= 1024;
+			u++;
+		}
+		return String.format("%.1f%c", v, units.charAt(u));
+	}
+}
@@ -0,0 +1,463 @@
+package org.shvc.s3java;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.auth.AWS4Signer;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.internal.ResettableInputStream;
+import com.amazonaws.services.s3.internal.AWSS3V4Signer;
+import com.amazonaws.services.s3.internal.S3Signer;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.transform.XmlResponsesSaxParser;
+import com.amazonaws.services.s3.request.S3HandlerContextKeys;
+import com.amazonaws.util.DateUtils;
+import com.amazonaws.util.SdkHttpUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * AsyncS3 on the Java 11 HttpClient. Requests are signed by the SDK's own
+ * SigV4(or V2) signers on the calling thread and sent without blocking;
+ * responses are handled on a small executor, error bodies are turned into
+ * AmazonS3Exception like the blocking client does. Only loaded when the
+ * async backend is selected, the rest of the tool keeps running on Java 8.
+ */
+public class HttpClientS3 implements AsyncS3 {
+	private static final byte[] EMPTY = new byte[0];
+	private static final Pattern ERROR_FIELD = Pattern.compile("<(Code|Message|RequestId)>([^<]*)</");
+
+	private final URI endpoint;
+	private final String region;
+	private final AWSCredentials credentials;
+	private final boolean pathStyle;
+	private final boolean signV2;
+	private final ExecutorService executor;
+	private final HttpClient client;
+	private Map<String, String> headers;
+	private Duration requestTimeout;
+	private int maxRetries;
+	private Throttle throttle;
+	private Metrics metrics;
+	private final ThreadLocal<AWS4Signer> signers = new ThreadLocal<AWS4Signer>();
+
+	/**
+	 * @param threads threads handling responses, 0 for one per processor
+	 */
+	public HttpClientS3(String endpoint, String region, AWSCredentials credentials, boolean pathStyle, boolean signV2,
+			int connectionTimeout, int threads) {
+		this.endpoint = URI.create(endpoint.contains("://") ? endpoint : "http://" + endpoint);
+		this.region = region;
+		this.credentials = credentials;
+		this.pathStyle = pathStyle;
+		this.signV2 = signV2;
+		if (signV2 && System.getProperty("jdk.httpclient.allowRestrictedHeaders") == null) {
+			// S3Signer signs a Date header, HttpClient only sends it when allowed(Java 12+)
+			System.setProperty("jdk.httpclient.allowRestrictedHeaders", "date");
+		}
+		this.executor = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+				r -> {
+					Thread t = new Thread(r, "s3java-http");
+					t.setDaemon(true);
+					return t;
+				});
+		HttpClient.Builder builder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).executor(executor);
+		if (connectionTimeout > 0) {
+			builder.connectTimeout(Duration.ofMillis(connectionTimeout));
+		}
+		this.client = builder.build();
+	}
+
+	// extra headers sent with every request(-H)
+	public void setHeaders(Map<String, String> headers) {
+		this.headers = headers;
+	}
+
+	// time limit of a whole request, 0 for none
+	public void setRequestTimeout(int millis) {
+		this.requestTimeout = millis > 0 ? Duration.ofMillis(millis) : null;
+	}
+
+	/**
+	 * retry I/O errors, 5xx and throttling responses up to maxRetries times
+	 * with full jitter backoff; throttle, if not null, limits the rate and
+	 * concurrency and holds the retry budget
+	 */
+	public void setRetries(int maxRetries, Throttle throttle) {
+		this.maxRetries = Math.max(0, maxRetries);
+		this.throttle = throttle;
+	}
+
+	// record every request, null for none
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+	private DefaultRequest<Void> request(HttpMethodName method, String bucket, String key) {
+		DefaultRequest<Void> request = new DefaultRequest<Void>(AmazonWebServiceRequest.NOOP, "Amazon S3");
+		request.setHttpMethod(method);
+		String path = key == null ? "" : key;
+		if (pathStyle) {
+			path = bucket + "/" + path;
+			request.setEndpoint(endpoint);
+		} else {
+			request.setEndpoint(URI.create(endpoint.getScheme() + "://" + bucket + "." + endpoint.getAuthority()));
+		}
+		// encoded once, like the blocking client; S3 signers don't encode again
+		request.setResourcePath(SdkHttpUtils.urlEncode(path, true));
+		request.addHandlerContext(S3HandlerContextKeys.IS_PAYLOAD_SIGNING_ENABLED, Boolean.TRUE);
+		request.addHandlerContext(S3HandlerContextKeys.IS_CHUNKED_ENCODING_DISABLED, Boolean.TRUE);
+		if (headers != null) {
+			for (Map.Entry<String, String> h : headers.entrySet()) {
+				if (!h.getKey().isEmpty() && !h.getValue().isEmpty()) {
+					request.addHeader(h.getKey(), h.getValue());
+				}
+			}
+		}
+		return request;
+	}
+
+	private HttpRequest sign(DefaultRequest<Void> request, String bucket, String key, byte[] data, int offset,
+			int length) {
+		return sign(request, bucket, key, new ByteArrayInputStream(data, offset, length),
+				length == 0 ? HttpRequest.BodyPublishers.noBody()
+						: HttpRequest.BodyPublishers.ofByteArray(data, offset, length));
+	}
+
+	// content is read(SigV4 payload hash) while signing, body is what gets sent
+	private HttpRequest sign(DefaultRequest<Void> request, String bucket, String key, InputStream content,
+			HttpRequest.BodyPublisher body) {
+		request.setContent(content);
+		if (signV2) {
+			new S3Signer(request.getHttpMethod().name(), "/" + bucket + "/" + (key == null ? "" : key))
+					.sign(request, credentials);
+		} else {
+			// signers keep a signing key cache and are cheap to reuse per thread
+			AWS4Signer signer = signers.get();
+			if (signer == null) {
+				signer = new AWSS3V4Signer();
+				signer.setServiceName("s3");
+				signer.setRegionName(region);
+				signers.set(signer);
+			}
+			signer.sign(request, credentials);
+		}
+
+		String uri = SdkHttpUtils.appendUri(request.getEndpoint().toString(), request.getResourcePath(), true);
+		StringBuilder query = new StringBuilder();
+		for (Map.Entry<String, List<String>> p : request.getParameters().entrySet()) {
+			for (String value : p.getValue()) {
+				// %20 rather than form encoding's '+', which not every server decodes
+				query.append(query.length() == 0 ? '?' : '&').append(SdkHttpUtils.urlEncode(p.getKey(), false))
+						.append('=').append(SdkHttpUtils.urlEncode(value, false));
+			}
+		}
+		HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(uri + query));
+		for (Map.Entry<String, String> h : request.getHeaders().entrySet()) {
+			// set by HttpClient itself from the URI and the body
+			String name = h.getKey().toLowerCase(Locale.ROOT);
+			if (!name.equals("host") && !name.equals("content-length")) {
+				builder.header(h.getKey(), h.getValue());
+			}
+		}
+		if (requestTimeout != null) {
+			builder.timeout(requestTimeout);
+		}
+		return builder.method(request.getHttpMethod().name(), body).build();
+	}
+
+	private HttpRequest sign(DefaultRequest<Void> request, String bucket, String key) {
+		return sign(request, bucket, key, EMPTY, 0, 0);
+	}
+
+	/**
+	 * send with retries, the future completes with the body of a successful
+	 * response or fails with the last error. A Throttle slot is held from
+	 * the first attempt to the last, retries only wait for rate tokens.
+	 */
+	private <T> CompletableFuture<T> send(String op, HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+		long length = Math.max(0, request.bodyPublisher().map(HttpRequest.BodyPublisher::contentLength).orElse(0L));
+		CompletableFuture<T> result = new CompletableFuture<T>();
+		if (throttle != null) {
+			throttle.before(length);
+			result.whenComplete((body, e) -> throttle.release());
+		}
+		Timing timing = new Timing();
+		if (metrics != null) {
+			result.whenComplete((body, e) -> timing.record(metrics, op,
+					body instanceof Long ? (Long) body
+						: body instanceof ObjectMetadata ? ((ObjectMetadata) body).getContentLength()
+								: e == null ? length : 0,
+				e != null));
+		}
+		attempt(request, handler, length, 0, timing, result);
+		return result;
+	}
+
+	// phases of a request for Metrics
+	private static final class Timing {
+		final long start = System.nanoTime();
+		volatile long attempt = start;
+		volatile long headers;
+		volatile int retries;
+
+		void record(Metrics metrics, String op, long bytes, boolean error) {
+			long end = System.nanoTime();
+			long h = headers;
+			metrics.record(op, (h > 0 ? h : end) - start, h > 0 ? h - attempt : -1,
+					h > 0 && op.equals("GetObject") ? end - h : -1, bytes, retries, error);
+		}
+	}
+
+	private <T> void attempt(HttpRequest request, HttpResponse.BodyHandler<T> handler, long length, int retries,
+			Timing timing, CompletableFuture<T> result) {
+		timing.attempt = System.nanoTime();
+		timing.retries = retries;
+		client.sendAsync(request, info -> {
+			timing.headers = System.nanoTime();
+			if (info.statusCode() / 100 == 2) {
+				return handler.apply(info);
+			}
+			// error responses fail the future
+			return HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofByteArray(), body -> {
+				throw error(info.statusCode(), info.headers(), body);
+			});
+		}).whenComplete((response, e) -> {
+			Throwable cause = e == null ? null : serviceError(e);
+			int status = response != null ? response.statusCode()
+					: cause instanceof AmazonServiceException ? ((AmazonServiceException) cause).getStatusCode() : 0;
+			boolean throttled = Throttle.isThrottling(status, cause);
+			if (throttle != null) {
+				long received = e == null && request.method().equals("GET")
+						? response.headers().firstValueAsLong("Content-Length").orElse(0)
+						: 0;
+				throttle.attempted(throttled, e == null, received);
+			}
+			if (e == null) {
+				result.complete(response.body());
+			} else if (retries < maxRetries && (cause instanceof IOException || status >= 500 || throttled)
+					&& (throttle == null || throttle.retry(cause))) {
+				long delay = TimeUnit.MILLISECONDS.toNanos(Throttle.backoff(retries, throttled))
+						+ (throttle == null ? 0 : throttle.reserve(length));
+				CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, executor)
+						.execute(() -> attempt(request, handler, length, retries + 1, timing, result));
+			} else {
+				result.completeExceptionally(cause);
+			}
+		});
+	}
+
+	// the AmazonS3Exception of an error response, otherwise the I/O error
+	private static Throwable serviceError(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof AmazonServiceException) {
+				return t;
+			}
+		}
+		return AsyncS3.cause(e);
+	}
+
+	static AmazonS3Exception error(int status, HttpHeaders headers, byte[] body) {
+		String code = null;
+		String message = null;
+		String requestId = headers.firstValue("x-amz-request-id").orElse(null);
+		Matcher m = ERROR_FIELD.matcher(new String(body, StandardCharsets.UTF_8));
+		while (m.find()) {
+			if (m.group(1).equals("Code")) {
+				code = m.group(2);
+			} else if (m.group(1).equals("Message")) {
+				message = m.group(2);
+			} else {
+				requestId = m.group(2);
+			}
+		}
+		AmazonS3Exception e = new AmazonS3Exception(message != null ? message : reason(status));
+		e.setStatusCode(status);
+		e.setErrorCode(code != null ? code : status + " " + reason(status));
+		e.setRequestId(requestId);
+		e.setServiceName("Amazon S3");
+		return e;
+	}
+
+	private static String reason(int status) {
+		switch (status) {
+			case 403:
+				return "Forbidden";
+			case 404:
+				return "Not Found";
+			case 503:
+				return "Service Unavailable";
+			default:
+				return "Error";
+		}
+	}
+
+	@Override
+	public CompletableFuture<Void> putObject(String bucket, String key, byte[] data, int offset, int length,
+			String contentType) {
+		DefaultRequest<Void> request = request(HttpMethodName.PUT, bucket, key);
+		request.addHeader("Content-Type", contentType);
+		request.addHeader("Content-Length", Integer.toString(length));
+		return send("PutObject", sign(request, bucket, key, data, offset, length),
+				HttpResponse.BodyHandlers.discarding());
+	}
+
+	@Override
+	public CompletableFuture<Void> putObject(String bucket, String key, File file, String contentType,
+			Map<String, String> metadata) {
+		DefaultRequest<Void> request = request(HttpMethodName.PUT, bucket, key);
+		request.addHeader("Content-Type", contentType);
+		request.addHeader("Content-Length", Long.toString(file.length()));
+		if (metadata != null) {
+			for (Map.Entry<String, String> m : metadata.entrySet()) {
+				request.addHeader("x-amz-meta-" + m.getKey(), m.getValue());
+			}
+		}
+		HttpRequest signed;
+		// SigV4 hashes the file once on the calling thread, HttpClient reads it again to send
+		try (ResettableInputStream content = new ResettableInputStream(file)) {
+			signed = sign(request, bucket, key, content, HttpRequest.BodyPublishers.ofFile(file.toPath()));
+		} catch (IOException e) {
+			CompletableFuture<Void> failed = new CompletableFuture<Void>();
+			failed.completeExceptionally(e);
+			return failed;
+		}
+		return send("PutObject", signed, HttpResponse.BodyHandlers.discarding());
+	}
+
+	@Override
+	public CompletableFuture<ObjectMetadata> getObject(String bucket, String key, File file) {
+		return send("GetObject", sign(request(HttpMethodName.GET, bucket, key), bucket, key),
+				info -> HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofFile(file.toPath()),
+						path -> metadata(info.headers())));
+	}
+
+	@Override
+	public CompletableFuture<Long> getObject(String bucket, String key) {
+		return send("GetObject", sign(request(HttpMethodName.GET, bucket, key), bucket, key),
+				info -> HttpResponse.BodySubscribers.fromSubscriber(new Counter(), Counter::getCount));
+	}
+
+	@Override
+	public CompletableFuture<ObjectMetadata> headObject(String bucket, String key) {
+		return send("GetObjectMetadata", sign(request(HttpMethodName.HEAD, bucket, key), bucket, key),
+				info -> HttpResponse.BodySubscribers.replacing(metadata(info.headers())));
+	}
+
+	private static ObjectMetadata metadata(HttpHeaders headers) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		for (Map.Entry<String, List<String>> h : headers.map().entrySet()) {
+			String name = h.getKey().toLowerCase(Locale.ROOT);
+			String value = h.getValue().get(0);
+			if (name.startsWith("x-amz-meta-")) {
+				metadata.addUserMetadata(name.substring("x-amz-meta-".length()), value);
+			} else if (name.equals("content-length")) {
+				metadata.setContentLength(Long.parseLong(value));
+			} else if (name.equals("last-modified")) {
+				metadata.setLastModified(DateUtils.parseRFC822Date(value));
+			} else if (name.equals("etag")) {
+				metadata.setHeader("ETag", value.replace("\"", ""));
+			} else {
+				metadata.setHeader(h.getKey(), value);
+			}
+		}
+		return metadata;
+	}
+
+	@Override
+	public CompletableFuture<Void> deleteObject(String bucket, String key) {
+		return send("DeleteObject", sign(request(HttpMethodName.DELETE, bucket, key), bucket, key),
+				HttpResponse.BodyHandlers.discarding());
+	}
+
+	@Override
+	public CompletableFuture<ListObjectsV2Result> listObjectsV2(ListObjectsV2Request req) {
+		String bucket = req.getBucketName();
+		DefaultRequest<Void> request = request(HttpMethodName.GET, bucket, null);
+		request.addParameter("list-type", "2");
+		if (req.getPrefix() != null) {
+			request.addParameter("prefix", req.getPrefix());
+		}
+		if (req.getDelimiter() != null) {
+			request.addParameter("delimiter", req.getDelimiter());
+		}
+		if (req.getContinuationToken() != null) {
+			request.addParameter("continuation-token", req.getContinuationToken());
+		}
+		if (req.getStartAfter() != null) {
+			request.addParameter("start-after", req.getStartAfter());
+		}
+		if (req.getMaxKeys() != null) {
+			request.addParameter("max-keys", req.getMaxKeys().toString());
+		}
+		return send("ListObjectsV2", sign(request, bucket, null), HttpResponse.BodyHandlers.ofByteArray())
+				.thenApply(body -> {
+					try {
+						return new XmlResponsesSaxParser()
+								.parseListObjectsV2Response(new ByteArrayInputStream(body), false).getResult();
+					} catch (IOException e) {
+						throw new CompletionException(e);
+					}
+				});
+	}
+
+	// counts and drops the body, getObject only wants to know how much came
+	private static final class Counter implements Flow.Subscriber<List<ByteBuffer>> {
+		private long count;
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> buffers) {
+			for (ByteBuffer b : buffers) {
+				count += b.remaining();
+			}
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+		}
+
+		@Override
+		public void onComplete() {
+		}
+
+		long getCount() {
+			return count;
+		}
+	}
+}
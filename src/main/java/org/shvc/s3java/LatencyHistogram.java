@@ -0,0 +1,102 @@
+package org.shvc.s3java;
+
+/**
+ * Fixed-size log-linear histogram of nanosecond latencies in the spirit of
+ * HdrHistogram: values below 128 are counted exactly, larger values in 64
+ * linear sub-buckets per power of two, so every recorded value is within
+ * 1/64(~1.6%) of its bucket bounds. Recording is a shift and an increment
+ * and never allocates; it is not thread-safe, give every thread its own
+ * histogram and add them up when done.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 6;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int LINEAR = SUB_BUCKETS << 1;
+	// shift 1..57 covers every positive long
+	private static final int SIZE = LINEAR + (64 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final long[] counts = new long[SIZE];
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	static int index(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	// highest value that lands in bucket index
+	static long highestValue(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts[index(nanos)]++;
+		count++;
+		sum += nanos;
+		if (nanos < min) {
+			min = nanos;
+		}
+		if (nanos > max) {
+			max = nanos;
+		}
+	}
+
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < SIZE; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		sum += other.sum;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMin() {
+		return count == 0 ? 0 : min;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	public double getMean() {
+		return count == 0 ? 0 : (double) sum / count;
+	}
+
+	/**
+	 * value at percentile(0-100), reported as the highest value of its bucket
+	 * but never above the recorded maximum
+	 */
+	public long percentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100 * count);
+		rank = Math.max(1, Math.min(count, rank));
+		long seen = 0;
+		for (int i = 0; i < SIZE; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max);
+			}
+		}
+		return max;
+	}
+}
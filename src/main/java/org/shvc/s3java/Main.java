@@ -1,11 +1,14 @@
 package org.shvc.s3java;
 
 import com.amazonaws.ClientConfiguration;
+import com.amazonaws.HttpMethod;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.AnonymousAWSCredentials;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.retry.PredefinedRetryPolicies;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.Region;
@@ -14,10 +17,15 @@ import picocli.CommandLine.*;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 @Command(name = "s3java", mixinStandardHelpOptions = true, version = { "s3java: 1.0",
 		"JVM: ${java.version} (${java.vendor} ${java.vm.name} ${java.vm.version})" }, subcommands = {
@@ -27,6 +35,8 @@ public class Main implements Runnable {
 	public static final String DEFAULT_ACCESS_KEY = "root";
 	public static final String DEFAULT_SECRET_KEY = "ChangeMe";
 	public static final long DEFAULT_PART_SIZE = 5;
+	// MB, CopyObject up to it, UploadPartCopy parts of it above
+	public static final long DEFAULT_COPY_THRESHOLD = 64;
 
 	@Spec
 	CommandLine.Model.CommandSpec spec;
@@ -117,11 +127,86 @@ public class Main implements Runnable {
 			"--query" }, showDefaultValue = CommandLine.Help.Visibility.ON_DEMAND, arity = "0..*", paramLabel = "Key=Value", description = "S3 Client request query parameter")
 	private Map<String, String> query;
 
+	@Option(names = {
+			"--parallel" }, showDefaultValue = CommandLine.Help.Visibility.ALWAYS, description = "run per-key operations(download, head, upload) with N concurrent workers")
+	private int parallel = 1;
+
+	@Option(names = {
+			"--cache" }, description = "cache Object metadata on disk, head answers from it and listings refresh it")
+	private boolean cache = false;
+
+	@Option(names = {
+			"--cache-ttl" }, paramLabel = "<seconds>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, description = "seconds a cached entry is used before it is revalidated")
+	private long cacheTTL = 300;
+
+	@Option(names = {
+			"--cache-size" }, paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, description = "max cached Objects per endpoint")
+	private int cacheSize = 100000;
+
+	@Option(names = {
+			"--cache-dir" }, paramLabel = "<dir>", description = "metadata cache directory, default ~/.s3java/cache")
+	private File cacheDir;
+
+	@Option(names = {
+			"--max-ops-rate" }, paramLabel = "<ops/s>", description = "limit requests(every retry included) to ops per second")
+	private double maxOpsRate = 0;
+
+	@Option(names = {
+			"--max-bandwidth" }, paramLabel = "<size>", description = "limit request and response payload to size per second, e.g. 100M")
+	private String maxBandwidth;
+
+	@Option(names = {
+			"--adaptive" }, paramLabel = "<max>", description = "at most max requests in flight, a quarter less on throttling(503 SlowDown, 429) and one more per round of successes")
+	private int adaptive = 0;
+
+	@Option(names = {
+			"--retry-budget" }, paramLabel = "<tokens>", description = "retries share a budget: a retry takes 5 tokens(10 after a timeout), a success returns 1")
+	private long retryBudget = 0;
+
+	private Throttle throttle;
+
+	@Option(names = {
+			"--metrics" }, paramLabel = "<format>", description = "record per operation latency phases(latency, ttfb, send, wait, body), bytes, retries and pool stats: ${COMPLETION-CANDIDATES}")
+	private Metrics.Format metricsFormat;
+
+	@Option(names = {
+			"--metrics-file" }, paramLabel = "<file>", description = "write metrics to file instead of stderr, a prometheus file is replaced on every write")
+	private File metricsFile;
+
+	@Option(names = {
+			"--metrics-interval" }, paramLabel = "<seconds>", description = "also write metrics every N seconds, not only at exit; json lines then cover one interval each")
+	private long metricsInterval = 0;
+
+	private Metrics metrics;
+
+	@Option(names = {
+			"--async" }, description = "send bench requests, list(V2), and download, upload, head and delete of Keys(--parallel in flight), through the non-blocking Java 11 HttpClient backend, a few threads for any number in flight")
+	private boolean async = false;
+
+	TaskRunner runner = null;
+
+	// commands run from batch or daemon, keep the JVM alive on failures
+	private boolean batch = false;
+
+	// commands with a path through the AsyncS3 client, the others reject --async
+	private static final Set<String> ASYNC_COMMANDS = new HashSet<String>(
+			Arrays.asList("bench", "list", "list-v2", "download", "upload", "head", "delete", "batch", "daemon", "help"));
+
 	private int executionStrategy(CommandLine.ParseResult parseResult) {
 		init(); // custom initialization to be done before executing any command or subcommand
+		checkAsync(parseResult);
 		return new CommandLine.RunLast().execute(parseResult); // default execution strategy
 	}
 
+	// fail a command that would silently send its requests through the blocking client
+	void checkAsync(CommandLine.ParseResult parseResult) {
+		CommandLine.ParseResult sub = parseResult.subcommand();
+		if (cli.getAsync() != null && sub != null && !ASYNC_COMMANDS.contains(sub.commandSpec().name())) {
+			throw new CommandLine.ParameterException(sub.commandSpec().commandLine(),
+					"--async isn't supported by " + sub.commandSpec().name());
+		}
+	}
+
 	private void init() {
 		if (noProxy) {
 			System.setProperty("http.proxyHost", "");
@@ -130,7 +215,66 @@ public class Main implements Runnable {
 			System.setProperty("https.proxyPort", "");
 		}
 
+		if (metricsFormat != null) {
+			metrics = new Metrics(metricsFormat, metricsFile == null ? null : metricsFile.toPath());
+			metrics.start(metricsInterval);
+		}
 		cli = new S3Cli(s3Client(), this.presign, this.presignExp);
+		cli.setThrottle(throttle);
+		if (presign) {
+			cli.setPresigner(presigner());
+		}
+		if (cache) {
+			try {
+				MetadataCache metadataCache = new MetadataCache(
+						cacheDir == null ? MetadataCache.defaultDir() : cacheDir, endpoint, cacheTTL * 1000, cacheSize);
+				// also flushes the log when a command exits the JVM on error
+				Runtime.getRuntime().addShutdownHook(new Thread(metadataCache::close));
+				cli.setCache(metadataCache);
+			} catch (java.io.IOException e) {
+				System.err.println("cache disabled: " + e.getMessage());
+			}
+		}
+		if (async) {
+			try {
+				Class.forName("java.net.http.HttpClient");
+			} catch (ClassNotFoundException e) {
+				throw new CommandLine.ParameterException(spec.commandLine(), "--async needs Java 11 or later");
+			}
+			cli.setAsync(asyncClient());
+		}
+		if (parallel > 1) {
+			// report per-key failures and carry on with the rest of the batch
+			cli.setExitOnError(false);
+			runner = new TaskRunner(parallel);
+		}
+	}
+
+	// run a per-key operation, on the shared TaskRunner in --parallel mode
+	private void submit(String name, java.util.concurrent.Callable<Boolean> task) {
+		if (runner == null) {
+			try {
+				task.call();
+			} catch (Exception e) {
+				System.err.println(name + ": " + e.getMessage());
+			}
+		} else {
+			runner.submit(name, task);
+		}
+	}
+
+	// wait for the per-key operations submitted in --parallel mode
+	private void await() {
+		if (runner != null && runner.await() > 0 && !batch) {
+			System.exit(1);
+		}
+	}
+
+	// exit like await() when a per-key operation through the async backend failed
+	private void awaitAsync(boolean ok) {
+		if (!ok && !batch) {
+			System.exit(1);
+		}
 	}
 
 	@Override
@@ -196,44 +340,132 @@ public class Main implements Runnable {
 			cfg.setSignerOverride("S3SignerType");
 		}
 
-		AWSCredentials cred;
-		if (accessKey.equals("") && secretKey.equals("")) {
-			cred = new AnonymousAWSCredentials();
-		} else {
-			cred = new BasicAWSCredentials(accessKey, secretKey);
+		Throttle throttle = throttle();
+		if (throttle != null) {
+			cfg.setRetryPolicy(throttle.retryPolicy(maxErrorRetry));
+			// the retry budget replaces the SDK's own retry quota
+			cfg.setUseThrottleRetries(false);
 		}
 
-		return AmazonS3ClientBuilder.standard()
+		AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard();
+		java.util.List<RequestHandler2> handlers = new java.util.ArrayList<RequestHandler2>();
+		if (throttle != null) {
+			handlers.add(throttle);
+		}
+		if (metrics != null) {
+			builder.withMetricsCollector(metrics);
+			handlers.add(metrics.handler());
+		}
+		builder.setRequestHandlers(handlers.toArray(new RequestHandler2[0]));
+		return builder
 				.withClientConfiguration(cfg)
 				.withPathStyleAccessEnabled(pathStyle)
 				.enablePayloadSigning()
 				.withChunkedEncodingDisabled(!chunkedEncoding)
 				.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region))
-				.withCredentials(new AWSStaticCredentialsProvider(cred))
+				.withCredentials(new AWSStaticCredentialsProvider(credentials()))
 				.build();
 	}
 
+	// client side flow control shared by the blocking and async clients, null if not asked for
+	Throttle throttle() {
+		if (throttle == null && (maxOpsRate > 0 || maxBandwidth != null || adaptive > 0 || retryBudget > 0)) {
+			throttle = new Throttle();
+			throttle.setOpsRate(maxOpsRate);
+			if (maxBandwidth != null) {
+				try {
+					throttle.setBytesRate(Bench.parseSize(maxBandwidth));
+				} catch (IllegalArgumentException e) {
+					throw new CommandLine.ParameterException(spec.commandLine(), "bad --max-bandwidth: " + maxBandwidth);
+				}
+			}
+			throttle.setAdaptive(adaptive);
+			throttle.setRetryBudget(retryBudget);
+		}
+		return throttle;
+	}
+
+	private AWSCredentials credentials() {
+		if (accessKey.equals("") && secretKey.equals("")) {
+			return new AnonymousAWSCredentials();
+		}
+		return new BasicAWSCredentials(accessKey, secretKey);
+	}
+
+	// URLs for the endpoint, region, credentials and signer of s3Client()
+	Presigner presigner() {
+		try {
+			return new Presigner(endpoint, region, credentials(), pathStyle, signV2, presignExp);
+		} catch (IllegalArgumentException e) {
+			throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
+		}
+	}
+
+	// same endpoint, credentials, signer and headers as s3Client()
+	AsyncS3 asyncClient() {
+		HttpClientS3 client = new HttpClientS3(endpoint, region, credentials(), pathStyle, signV2, connectionTimeout, 0);
+		client.setHeaders(header);
+		client.setRequestTimeout(requestTimeout);
+		client.setRetries(maxErrorRetry >= 0 ? maxErrorRetry : PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY,
+				throttle());
+		client.setMetrics(metrics);
+		return client;
+	}
+
 	@Command(name = "list-v2", aliases = { "ls-v2" }, description = "list Bucket(Objects V2)")
 	void listV2(@Option(names = { "--all" }, description = "list all Objects") boolean all,
+			@Option(names = {
+					"--shards" }, paramLabel = "<N>", description = "list all Objects with up to N concurrent prefix shards(bounded by --max-connections)") int shards,
+			@Option(names = { "--unordered" }, description = "print sharded listing as it arrives instead of in key order") boolean unordered,
 			@Parameters(arity = "0..1", paramLabel = "Bucket", description = "list Bucket(Objects V2)") String[] args) {
 		if (args == null) {
 			cli.listMyBuckets();
 		} else {
 			String bucket = keyInStr(args[0], '/');
 			String prefix = valueInStr(args[0], '/');
-			cli.listObjectsV2(bucket, prefix, all);
+			if (shards > 0) {
+				cli.listObjectsV2(bucket, prefix, Math.min(shards, maxConnections), !unordered);
+			} else if (cli.getAsync() != null) {
+				cli.listObjectsV2Async(bucket, prefix, all);
+			} else {
+				cli.listObjectsV2(bucket, prefix, all);
+			}
 		}
 	}
 
+	@Command(name = "du", description = "Object count and bytes of a Bucket or Prefix, per Prefix down to --depth levels")
+	void du(@Option(names = {
+			"--depth" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "1", description = "print Prefixes down to N levels(delimiter /) below, 0 for the total only") int depth,
+			@Option(names = {
+					"--fanout" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "3", description = "list the Prefixes of the first N levels concurrently, deeper ones flat") int fanout,
+			@Option(names = {
+					"--concurrency" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "32", description = "list requests in flight(bounded by --max-connections)") int concurrency,
+			@Option(names = { "--human-readable" }, description = "print sizes in K, M, G...") boolean human,
+			@Option(names = { "--histogram" }, description = "print the size classes of every Prefix, not only of the total") boolean histogram,
+			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket[/Prefix]>", description = "Bucket and Prefix") String bucketKey) {
+		cli.diskUsage(keyInStr(bucketKey, '/'), valueInStr(bucketKey, '/'), depth, fanout,
+				Math.min(concurrency, maxConnections), human, histogram);
+	}
+
 	@Command(name = "list", aliases = { "ls" }, description = "list Bucket(Objects)")
 	void list(@Option(names = { "--all" }, description = "list all Objects") boolean all,
+			@Option(names = {
+					"--shards" }, paramLabel = "<N>", description = "list all Objects(V2) with up to N concurrent prefix shards(bounded by --max-connections)") int shards,
+			@Option(names = { "--unordered" }, description = "print sharded listing as it arrives instead of in key order") boolean unordered,
 			@Parameters(arity = "0..1", paramLabel = "Bucket", description = "list Bucket(Objects)") String[] args) {
 		if (args == null) {
 			cli.listMyBuckets();
 		} else {
 			String bucket = keyInStr(args[0], '/');
 			String prefix = valueInStr(args[0], '/');
-			cli.listObjects(bucket, prefix, all);
+			if (shards > 0) {
+				cli.listObjectsV2(bucket, prefix, Math.min(shards, maxConnections), !unordered);
+			} else if (cli.getAsync() != null) {
+				// the async backend only lists V2
+				cli.listObjectsV2Async(bucket, prefix, all);
+			} else {
+				cli.listObjects(bucket, prefix, all);
+			}
 		}
 	}
 
@@ -243,44 +475,119 @@ public class Main implements Runnable {
 			@Parameters(arity = "0..*", index = "1+", paramLabel = "Key", description = "other Object(Key) to head") String[] keys) {
 		String bucket = keyInStr(bucketKey, '/');
 		String key = valueInStr(bucketKey, '/');
-		cli.head(bucket, key);
+		if (cli.getAsync() != null && !presign) {
+			List<String> all = new ArrayList<String>();
+			if (key.equals("")) {
+				cli.head(bucket, key);
+			} else {
+				all.add(key);
+			}
+			if (keys != null) {
+				all.addAll(Arrays.asList(keys));
+			}
+			awaitAsync(cli.headAsync(bucket, all, parallel));
+			return;
+		}
+		submit(bucketKey, () -> cli.head(bucket, key));
 		if (keys != null) {
 			for (String k : keys) {
-				cli.head(bucket, k);
+				submit(k, () -> cli.head(bucket, k));
 			}
 		}
+		await();
 	}
 
 	@Command(name = "download", aliases = { "get" }, description = "download Object(s)")
-	void download(
+	void download(@Option(names = {
+			"--part-size" }, arity = "1", paramLabel = "<partSize>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+					+ DEFAULT_PART_SIZE, description = "Range size in MB") long partSize,
+			@Option(names = {
+					"--concurrency" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "1", description = "download an Object with N concurrent Range requests") int concurrency,
+			@Option(names = {
+					"--buffer-size" }, arity = "1", paramLabel = "<KB>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ (S3Cli.DEFAULT_TRANSFER_BUFFER_SIZE >> 10), description = "copy buffer size in KB") int bufferSize,
+			@Option(names = { "--fsync" }, description = "fsync downloaded file before reporting it done") boolean fsync,
+			@Option(names = { "--verify" }, description = "verify the content against x-amz-checksum-* or the MD5 ETag, multipart Objects part by part") boolean verify,
+			@Option(names = { "--raw" }, description = "keep Objects uploaded with --compress compressed") boolean raw,
 			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket/Key>", description = "Bucket/Key name") String bucketKey,
 			@Parameters(arity = "0..*", index = "1+", paramLabel = "Key", description = "other Object(Key) to delete") String[] keys) {
 		String bucket = keyInStr(bucketKey, '/');
 		String key = valueInStr(bucketKey, '/');
-		cli.getObject(bucket, key, query);
-		if (keys != null) {
-			for (String k : keys) {
-				cli.getObject(bucket, k, query);
+		cli.setTransferOptions(bufferSize << 10, fsync);
+		cli.setDecompress(!raw);
+		if (cli.getAsync() != null && !presign && concurrency <= 1) {
+			if (verify) {
+				throw new CommandLine.ParameterException(spec.commandLine(), "--verify isn't supported with --async");
+			}
+			List<String> all = new ArrayList<String>();
+			all.add(key);
+			if (keys != null) {
+				all.addAll(Arrays.asList(keys));
+			}
+			awaitAsync(cli.downloadAsync(bucket, all, parallel));
+			return;
+		}
+		cli.setVerify(verify);
+		try {
+			submit(key, () -> cli.getObject(bucket, key, query, partSize << 20, concurrency));
+			if (keys != null) {
+				for (String k : keys) {
+					submit(k, () -> cli.getObject(bucket, k, query, partSize << 20, concurrency));
+				}
 			}
+			await();
+		} finally {
+			cli.setVerify(false);
 		}
 	}
 
 	@Command(name = "cat", description = "Print a Object content")
-	void cat(
+	void cat(@Option(names = {
+			"--range" }, paramLabel = "<start-end>", description = "print bytes start-end, start- or -suffixLength of the Object") String range,
+			@Option(names = { "--tail" }, paramLabel = "<N>", description = "print the last N bytes of the Object") long tail,
+			@Option(names = { "--raw" }, description = "keep Objects uploaded with --compress compressed") boolean raw,
 			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket/Key>", description = "Bucket/Key name") String bucketKey) {
+		if (range != null && tail > 0) {
+			throw new CommandLine.ParameterException(spec.commandLine(), "--range and --tail are mutually exclusive");
+		}
 		String bucket = keyInStr(bucketKey, '/');
 		String key = valueInStr(bucketKey, '/');
-		cli.catObject(bucket, key, query);
+		cli.setDecompress(!raw);
+		cli.catObject(bucket, key, query, range, tail);
 	}
 
 	@Command(name = "delete", aliases = { "rm" }, description = "delete Object(s)")
-	void delete(
+	void delete(@Option(names = {
+			"--prefix" }, description = "delete all Objects with the Prefix of <Bucket/Prefix>") boolean prefix,
+			@Option(names = {
+					"--from-file" }, paramLabel = "<file>", description = "delete Objects(one Key per line) listed in file, - for stdin") String fromFile,
+			@Option(names = {
+					"--concurrency" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "4", description = "delete batches(1000 Keys) in flight for --prefix and --from-file") int concurrency,
 			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket/Key>", description = "Bucket/Key name") String bucketKey,
 			@Parameters(arity = "0..*", index = "1+", paramLabel = "Key", description = "other Object(Key) to delete") String[] keys) {
 		String bucket = keyInStr(bucketKey, '/');
 		String key = valueInStr(bucketKey, '/');
-		if (keys == null && key.equals("")) {
+		boolean async = cli.getAsync() != null && !presign;
+		if (async && (prefix || fromFile != null)) {
+			// DeleteObjects batches of 1000 Keys beat one async DeleteObject per Key
+			throw new CommandLine.ParameterException(spec.commandLine(),
+					"--async deletes Keys one by one, not with --prefix or --from-file");
+		}
+		if (prefix) {
+			cli.deletePrefix(bucket, key, concurrency);
+		} else if (fromFile != null) {
+			cli.deleteFromFile(bucket, fromFile, concurrency);
+		} else if (keys == null && key.equals("")) {
 			cli.deleteBucket(bucket);
+		} else if (async) {
+			List<String> all = new ArrayList<String>();
+			if (!key.equals("")) {
+				all.add(key);
+			}
+			if (keys != null) {
+				all.addAll(Arrays.asList(keys));
+			}
+			awaitAsync(cli.deleteAsync(bucket, all, parallel));
 		} else if (keys == null) {
 			cli.deleteObject(bucket, key);
 		} else {
@@ -288,6 +595,75 @@ public class Main implements Runnable {
 		}
 	}
 
+	@Command(name = "presign", description = "presign URLs of many Objects, one per line, Keys from a file, stdin or a listing")
+	void presign(@Option(names = {
+			"--method" }, showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "GET", description = "GET, PUT, HEAD or DELETE URLs") HttpMethod method,
+			@Option(names = {
+					"--prefix" }, description = "presign every Object with the Prefix of <Bucket/Prefix>") boolean prefix,
+			@Option(names = {
+					"--from-file" }, paramLabel = "<file>", description = "presign the Keys(one per line) listed in file, - for stdin") String fromFile,
+			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket/Key>", description = "Bucket/Key name") String bucketKey,
+			@Parameters(arity = "0..*", index = "1+", paramLabel = "Key", description = "other Object(Key) to presign") String[] keys) {
+		String bucket = keyInStr(bucketKey, '/');
+		String key = valueInStr(bucketKey, '/');
+		if (!prefix && fromFile == null && keys == null && key.equals("")) {
+			throw new CommandLine.ParameterException(spec.commandLine(), "no Key to presign");
+		}
+		cli.setPresigner(presigner());
+		if (prefix || fromFile != null) {
+			cli.presignObjects(method, bucket, key, prefix, fromFile, null);
+		} else {
+			java.util.List<String> all = new java.util.ArrayList<String>();
+			if (!key.equals("")) {
+				all.add(key);
+			}
+			if (keys != null) {
+				all.addAll(java.util.Arrays.asList(keys));
+			}
+			cli.presignObjects(method, bucket, null, false, null, all.toArray(new String[0]));
+		}
+	}
+
+	@Command(name = "cp", aliases = { "copy" }, description = "server side copy of an Object or a Prefix")
+	void cp(@Option(names = {
+			"--prefix" }, description = "copy all Objects with the Prefix of <Bucket/Prefix> to the destination Prefix") boolean prefix,
+			@Option(names = {
+					"--threshold" }, arity = "1", paramLabel = "<MB>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ DEFAULT_COPY_THRESHOLD, description = "larger Objects are copied in parts(UploadPartCopy)") long threshold,
+			@Option(names = {
+					"--part-size" }, arity = "1", paramLabel = "<partSize>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ DEFAULT_COPY_THRESHOLD, description = "copy partSize in MB") long partSize,
+			@Option(names = {
+					"--threads" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ S3Cli.DEFAULT_MPU_THREADS, description = "part copies in flight") int threads,
+			@Option(names = {
+					"--concurrency" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "16", description = "Object copies in flight for --prefix") int concurrency,
+			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket/Key>", description = "source Bucket/Key or Bucket/Prefix") String src,
+			@Parameters(arity = "1", index = "1", paramLabel = "<Bucket[/Key]>", description = "destination Bucket/Key or Bucket/Prefix") String dst) {
+		cli.copyObjects(keyInStr(src, '/'), valueInStr(src, '/'), keyInStr(dst, '/'), valueInStr(dst, '/'), prefix,
+				false, threshold << 20, partSize << 20, threads, concurrency);
+	}
+
+	@Command(name = "mv", aliases = { "move" }, description = "server side copy of an Object or a Prefix, then delete the source")
+	void mv(@Option(names = {
+			"--prefix" }, description = "move all Objects with the Prefix of <Bucket/Prefix> to the destination Prefix") boolean prefix,
+			@Option(names = {
+					"--threshold" }, arity = "1", paramLabel = "<MB>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ DEFAULT_COPY_THRESHOLD, description = "larger Objects are copied in parts(UploadPartCopy)") long threshold,
+			@Option(names = {
+					"--part-size" }, arity = "1", paramLabel = "<partSize>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ DEFAULT_COPY_THRESHOLD, description = "copy partSize in MB") long partSize,
+			@Option(names = {
+					"--threads" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ S3Cli.DEFAULT_MPU_THREADS, description = "part copies in flight") int threads,
+			@Option(names = {
+					"--concurrency" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "16", description = "Object copies in flight for --prefix") int concurrency,
+			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket/Key>", description = "source Bucket/Key or Bucket/Prefix") String src,
+			@Parameters(arity = "1", index = "1", paramLabel = "<Bucket[/Key]>", description = "destination Bucket/Key or Bucket/Prefix") String dst) {
+		cli.copyObjects(keyInStr(src, '/'), valueInStr(src, '/'), keyInStr(dst, '/'), valueInStr(dst, '/'), prefix,
+				true, threshold << 20, partSize << 20, threads, concurrency);
+	}
+
 	@Command(name = "create-bucket", aliases = { "cb" }, description = "create Bucket")
 	void create(
 			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket>", description = "Bucket name") String bucket) {
@@ -295,24 +671,48 @@ public class Main implements Runnable {
 		cli.createBucket(bucket);
 	}
 
-	@Command(name = "upload", aliases = { "put" }, description = "upload file(s)")
+	@Command(name = "upload", aliases = { "put" }, description = "upload file(s), - for stdin")
 	void upload(@Option(names = {
 			"--content-type" }, paramLabel = "<Content-Type>", defaultValue = "application/octet-stream") String contentType,
 			@Option(names = { "--metadata",
 					"--md" }, arity = "1..*", paramLabel = "<Key=Value>") Map<String, String> metadata,
 			@Option(names = { "--data" }, paramLabel = "<Content>") String content,
+			@Option(names = {
+					"--part-size" }, arity = "1", paramLabel = "<partSize>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ DEFAULT_PART_SIZE, description = "stdin longer than this(MB) is a multipart upload of parts this size") long partSize,
+			@Option(names = {
+					"--threads" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ S3Cli.DEFAULT_MPU_THREADS, description = "parts in flight of a multipart upload") int threads,
+			@Option(names = {
+					"--compress" }, paramLabel = "<codec>", description = "compress(${COMPLETION-CANDIDATES}) in parallel blocks, the codec is kept in the metadata") Compression.Codec compress,
 			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket[/Key]>", description = "Bucket/Key or Bucket/Prefix") String bucketKey,
 			@Parameters(arity = "0..*", index = "0+", paramLabel = "file", description = "locale file(s) to upload") String[] files)
 			throws FileNotFoundException {
 		String bucket = keyInStr(bucketKey, '/');
 		String key = valueInStr(bucketKey, '/');
-		if (files == null) {
+		if (files == null && compress != null) {
+			cli.putStream(bucket, key, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), contentType,
+					metadata, partSize << 20, threads, compress);
+		} else if (files == null) {
 			cli.putObject(bucket, key, new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8)), contentType,
 					metadata);
+		} else if (files.length == 1 && files[0].equals("-")) {
+			if (key.equals("") || key.endsWith("/")) {
+				throw new CommandLine.ParameterException(spec.commandLine(), "stdin needs a Bucket/Key");
+			}
+			cli.putStream(bucket, key, System.in, contentType, metadata, partSize << 20, threads, compress);
 		} else if (files.length == 1) {
-			cli.putObject(bucket, key, new FileInputStream(new File(files[0])), contentType, metadata);
+			File fd = new File(files[0]);
+			if (!fd.isFile()) {
+				throw new FileNotFoundException(files[0]);
+			}
+			if (key.equals("") || key.endsWith("/")) {
+				key = key + fd.getName();
+			}
+			cli.putObject(bucket, key, fd, contentType, metadata, partSize << 20, threads, compress);
 		} else {
 			// Bucket/Prefix mode
+			Map<String, File> small = new LinkedHashMap<String, File>();
 			for (String file : files) {
 				File fd = new File(file);
 				String newKey = fd.getName();
@@ -320,13 +720,24 @@ public class Main implements Runnable {
 					newKey = key + newKey;
 				}
 
-				cli.putObject(bucket, newKey, new FileInputStream(fd), contentType, metadata);
+				final String objectKey = newKey;
+				if (cli.getAsync() != null && !presign && compress == null && fd.isFile()
+						&& fd.length() <= S3Cli.MAX_PUT_SIZE) {
+					// single PUTs go through the async backend, the rest below
+					small.put(objectKey, fd);
+					continue;
+				}
+				submit(file, () -> cli.putObject(bucket, objectKey, fd, contentType, metadata, partSize << 20, threads,
+						compress));
 			}
+			boolean ok = small.isEmpty() || cli.uploadAsync(bucket, small, contentType, metadata, parallel);
+			await();
+			awaitAsync(ok);
 		}
 	}
 
 	// min part size: TransferManagerConfiguration.DEFAULT_MINIMUM_UPLOAD_PART_SIZE
-	@Command(name = "mpu", description = "mpu file")
+	@Command(name = "mpu", description = "mpu file(s) and directories")
 	void mpu(@Option(names = {
 			"--content-type" }, paramLabel = "<Content-Type>", defaultValue = "application/octet-stream") String contentType,
 			@Option(names = { "--metadata",
@@ -334,11 +745,173 @@ public class Main implements Runnable {
 			@Option(names = {
 					"--part-size" }, arity = "1", paramLabel = "<partSize>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
 							+ DEFAULT_PART_SIZE, description = "partSize in MB") long partSize,
-			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket[/Key]>", description = "Bucket/Key") String bucketKey,
-			@Parameters(arity = "1", index = "1", paramLabel = "file", description = "locale file to upload") String filename) {
+			@Option(names = {
+					"--threads" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ S3Cli.DEFAULT_MPU_THREADS, description = "TransferManager threads(parts in flight)") int threads,
+			@Option(names = {
+					"--files" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ S3Cli.DEFAULT_MPU_FILES, description = "files in flight") int files,
+			@Option(names = {
+					"--resume" }, description = "journal finished parts and resume an interrupted upload, one file at a time") boolean resume,
+			@Option(names = {
+					"--abort" }, description = "abort the journaled and all other unfinished uploads of the Key(s)") boolean abort,
+			@Option(names = {
+					"--journal-dir" }, paramLabel = "<dir>", description = "upload journal directory, default ~/.s3java/mpu") File journalDir,
+			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket[/Key]>", description = "Bucket/Key or Bucket/Prefix") String bucketKey,
+			@Parameters(arity = "1..*", index = "1+", paramLabel = "file", description = "locale file(s) or directories to upload") String[] filenames) {
 		String bucket = keyInStr(bucketKey, '/');
 		String key = valueInStr(bucketKey, '/');
-		cli.mpuObject(bucket, key, filename, contentType, metadata, partSize << 20);
+		if (resume || abort) {
+			cli.mpuResumable(bucket, key, filenames, contentType, metadata, partSize << 20, threads,
+					journalDir == null ? ResumableUpload.defaultJournalDir() : journalDir, abort);
+		} else {
+			cli.mpuObjects(bucket, key, filenames, contentType, metadata, partSize << 20, threads, files);
+		}
+	}
+
+	@Command(name = "bench", description = "benchmark put/get/head/delete/list on an endpoint")
+	void bench(@Option(names = {
+			"--mix" }, paramLabel = "<op=weight,...>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "put=20,get=60,head=15,delete=5", description = "operation mix of put, get, head, delete and list") String mix,
+			@Option(names = {
+					"--size" }, paramLabel = "<size>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "4K", description = "Object size: 4K, range 4K-1M or weighted 4K:80,1M:20") String size,
+			@Option(names = {
+					"--concurrency" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "16", description = "operations in flight") int concurrency,
+			@Option(names = {
+					"--rate" }, arity = "1", paramLabel = "<ops/s>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "0", description = "target operations per second, 0 for as fast as possible") double rate,
+			@Option(names = {
+					"--duration" }, arity = "1", paramLabel = "<seconds>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "10", description = "stop after seconds, 0 for no limit") long duration,
+			@Option(names = {
+					"--ops" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "0", description = "stop after N operations, 0 for no limit") long ops,
+			@Option(names = {
+					"--objects" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "1000", description = "Objects(Keys) in the working set") int objects,
+			@Option(names = {
+					"--interval" }, arity = "1", paramLabel = "<seconds>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "0", description = "print progress every seconds, 0 for none") long interval,
+			@Option(names = { "--cleanup" }, description = "delete the benchmark Objects when done") boolean cleanup,
+			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket[/Prefix]>", description = "Bucket and Prefix of the benchmark Objects, default Prefix s3java-bench/") String bucketKey) {
+		String bucket = keyInStr(bucketKey, '/');
+		String prefix = valueInStr(bucketKey, '/');
+		if (prefix.equals("")) {
+			prefix = "s3java-bench/";
+		}
+		if (duration <= 0 && ops <= 0) {
+			throw new CommandLine.ParameterException(spec.commandLine(), "--duration or --ops is required");
+		}
+		Bench bench = new Bench(cli.getS3(), bucket, prefix, concurrency);
+		try {
+			bench.setMix(mix);
+			bench.setSizes(size);
+		} catch (IllegalArgumentException e) {
+			throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
+		}
+		bench.setLimits(duration * 1000, ops);
+		bench.setRate(rate);
+		bench.setObjects(objects);
+		bench.setInterval(interval * 1000);
+		bench.setCleanup(cleanup);
+		bench.setAsync(cli.getAsync());
+		cli.bench(bench);
+	}
+
+	@Command(name = "sync", description = "mirror a directory to a Bucket prefix, or a prefix to a directory with --download")
+	void sync(@Option(names = { "--download" }, description = "mirror the Bucket prefix to the directory") boolean download,
+			@Option(names = { "--delete" }, description = "delete files or Objects missing at the source") boolean delete,
+			@Option(names = { "--checksum" }, description = "compare MD5 with ETag instead of mtime when sizes match") boolean checksum,
+			@Option(names = { "--dry-run" }, description = "print what would be transferred and deleted") boolean dryRun,
+			@Option(names = { "--verify" }, description = "verify downloads against x-amz-checksum-* or the MD5 ETag") boolean verify,
+			@Option(names = {
+					"--concurrency" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "8", description = "files in flight") int concurrency,
+			@Option(names = {
+					"--part-size" }, arity = "1", paramLabel = "<partSize>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ DEFAULT_PART_SIZE, description = "upload partSize in MB") long partSize,
+			@Option(names = {
+					"--threads" }, arity = "1", paramLabel = "<N>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = ""
+							+ S3Cli.DEFAULT_MPU_THREADS, description = "TransferManager threads(parts in flight)") int threads,
+			@Parameters(arity = "1", index = "0", paramLabel = "<Bucket[/Prefix]>", description = "Bucket and Prefix") String bucketKey,
+			@Parameters(arity = "1", index = "1", paramLabel = "<dir>", description = "local directory") File dir) {
+		String bucket = keyInStr(bucketKey, '/');
+		String prefix = valueInStr(bucketKey, '/');
+		if (!download && !dir.isDirectory()) {
+			throw new CommandLine.ParameterException(spec.commandLine(), dir + " is not a directory");
+		}
+		Sync sync = new Sync(cli, bucket, prefix, dir, concurrency);
+		sync.setPartSize(partSize << 20, threads);
+		sync.setDelete(delete);
+		sync.setChecksum(checksum);
+		sync.setDryRun(dryRun);
+		cli.setVerify(verify);
+		// files are compared with the uncompressed size of --compress uploads
+		cli.setDecompress(true);
+		try {
+			cli.sync(sync, download);
+		} finally {
+			cli.setVerify(false);
+		}
+	}
+
+	@Command(name = "batch", description = "run s3java commands, one per line, from a file or stdin with one client")
+	void batch(
+			@Parameters(arity = "0..1", paramLabel = "<file>", description = "command file, default(or -) stdin") String file)
+			throws java.io.IOException {
+		batch = true;
+		cli.setExitOnError(false);
+		int failed;
+		try (java.io.BufferedReader in = file == null || file.equals("-")
+				? new java.io.BufferedReader(new java.io.InputStreamReader(System.in, StandardCharsets.UTF_8))
+				: java.nio.file.Files.newBufferedReader(java.nio.file.Paths.get(file), StandardCharsets.UTF_8)) {
+			failed = new Batch(this, cli).run(in);
+		}
+		if (failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	@Command(name = "daemon", description = "serve batch sessions(command lines) on a Unix domain socket, needs Java 16+")
+	void daemon(@Option(names = {
+			"--socket" }, paramLabel = "<path>", description = "socket path, default ~/.s3java/s3java.sock") File socket)
+			throws java.io.IOException {
+		batch = true;
+		cli.setExitOnError(false);
+		if (socket == null) {
+			socket = new File(System.getProperty("user.home"), ".s3java" + File.separator + "s3java.sock");
+		}
+		new Batch(this, cli).serve(socket.toPath());
+	}
+
+	@Command(name = "serve", description = "run an S3 compatible stub server(path style, no authentication) to benchmark and test against")
+	void serve(@Option(names = {
+			"--listen" }, paramLabel = "<host:port>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "127.0.0.1:9000", description = "address to listen on, port 0 for any free port") String listen,
+			@Option(names = {
+					"--latency" }, paramLabel = "<ms>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "0", description = "delay every reply by ms milliseconds") long latency,
+			@Option(names = {
+					"--throttle" }, paramLabel = "<fraction>", showDefaultValue = CommandLine.Help.Visibility.ALWAYS, defaultValue = "0", description = "answer this fraction(0-1) of requests with 503 SlowDown") double throttle,
+			@Option(names = {
+					"--mmap" }, paramLabel = "<dir>", description = "keep Object data in memory mapped files under dir instead of the heap") File mmap,
+			@Parameters(arity = "0..*", paramLabel = "Bucket", description = "Buckets to create") String[] buckets)
+			throws java.io.IOException {
+		int colon = listen.lastIndexOf(':');
+		if (colon < 0 || !listen.substring(colon + 1).matches("[0-9]+")) {
+			throw new CommandLine.ParameterException(spec.commandLine(), "bad --listen: " + listen);
+		}
+		if (throttle < 0 || throttle > 1) {
+			throw new CommandLine.ParameterException(spec.commandLine(), "--throttle out of range(0-1): " + throttle);
+		}
+		if (mmap != null && !mmap.isDirectory()) {
+			throw new CommandLine.ParameterException(spec.commandLine(), "--mmap is not a directory: " + mmap);
+		}
+		StubServer stub = new StubServer();
+		stub.setLatency(latency);
+		stub.setThrottle(throttle);
+		stub.setStorage(mmap);
+		if (buckets != null) {
+			for (String bucket : buckets) {
+				stub.createBucket(bucket);
+			}
+		}
+		String host = listen.substring(0, colon);
+		// start() turns on TCP_NODELAY, --latency is then the only delay a small reply gets
+		stub.start(host, Integer.parseInt(listen.substring(colon + 1)));
+		// the server threads keep the JVM running
+		System.out.println(java.time.Clock.systemUTC().instant() + " serve http://" + host + ":" + stub.getPort());
 	}
 
 }
@@ -0,0 +1,250 @@
+package org.shvc.s3java;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of Object metadata(size, ETag, Last-Modified, or "does not
+ * exist") for one endpoint. Every change is appended to a log file, which is
+ * read back into an access ordered map on open and rewritten when most of it
+ * is garbage. Entries older than ttl are stale: callers revalidate them with
+ * a conditional request on the ETag instead of trusting them. The map keeps
+ * at most maxEntries, least recently used first out.
+ */
+public class MetadataCache {
+	private static final String MAGIC = "s3java-cache 1";
+
+	static final class Entry {
+		final boolean exists;
+		final long size;
+		final String etag;
+		final long lastModified;
+		long cachedAt;
+
+		Entry(boolean exists, long size, String etag, long lastModified, long cachedAt) {
+			this.exists = exists;
+			this.size = size;
+			this.etag = etag;
+			this.lastModified = lastModified;
+			this.cachedAt = cachedAt;
+		}
+	}
+
+	private final File file;
+	private final long ttl;
+	private final LinkedHashMap<String, MetadataCache.Entry> entries;
+	private Writer log;
+	private long records;
+
+	/**
+	 * @param dir        cache directory, one log per endpoint
+	 * @param ttl        milliseconds an entry is answered without revalidation
+	 * @param maxEntries LRU bound of the cache
+	 */
+	public MetadataCache(File dir, String endpoint, long ttl, int maxEntries) throws IOException {
+		this.file = new File(dir, md5(endpoint) + ".log");
+		this.ttl = ttl;
+		this.entries = new LinkedHashMap<String, MetadataCache.Entry>(1024, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, MetadataCache.Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can't create cache directory " + dir);
+		}
+		load();
+		// a log more than twice the live entries is mostly overwritten records
+		if (records > 2L * entries.size() + 1024) {
+			compact();
+		}
+	}
+
+	public static File defaultDir() {
+		return new File(System.getProperty("user.home"), ".s3java" + File.separator + "cache");
+	}
+
+	private static String id(String bucket, String key) {
+		return bucket + "/" + key;
+	}
+
+	/**
+	 * cached entry of bucket/key, null if not cached
+	 */
+	public synchronized Entry get(String bucket, String key) {
+		return entries.get(id(bucket, key));
+	}
+
+	public boolean isFresh(Entry e) {
+		return System.currentTimeMillis() - e.cachedAt < ttl;
+	}
+
+	public synchronized void put(String bucket, String key, long size, String etag, long lastModified) {
+		Entry e = new Entry(true, size, etag, lastModified, System.currentTimeMillis());
+		entries.put(id(bucket, key), e);
+		append(bucket, key, e);
+	}
+
+	// remember that bucket/key does not exist
+	public synchronized void putMissing(String bucket, String key) {
+		Entry e = new Entry(false, -1, "", 0, System.currentTimeMillis());
+		entries.put(id(bucket, key), e);
+		append(bucket, key, e);
+	}
+
+	// a revalidated entry is fresh again
+	public synchronized void touch(String bucket, String key, Entry e) {
+		e.cachedAt = System.currentTimeMillis();
+		append(bucket, key, e);
+	}
+
+	public synchronized void remove(String bucket, String key) {
+		if (entries.remove(id(bucket, key)) != null) {
+			write("R\t" + escape(bucket) + "\t" + escape(key) + "\n");
+		}
+	}
+
+	private void append(String bucket, String key, Entry e) {
+		write(record(bucket, key, e));
+	}
+
+	private static String record(String bucket, String key, Entry e) {
+		return (e.exists ? "P" : "N") + "\t" + escape(bucket) + "\t" + escape(key) + "\t" + e.cachedAt + "\t"
+				+ e.size + "\t" + escape(e.etag) + "\t" + e.lastModified + "\n";
+	}
+
+	private void write(String record) {
+		try {
+			if (log == null) {
+				boolean exists = file.length() > 0;
+				log = new BufferedWriter(
+						new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 1 << 16);
+				if (!exists) {
+					log.write(MAGIC + "\n");
+				}
+			}
+			log.write(record);
+			records++;
+		} catch (IOException e) {
+			// the cache is an optimization, carry on without it
+			System.err.println("cache " + file + ": " + e.getMessage());
+		}
+	}
+
+	private void load() throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		try (BufferedReader r = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+			if (!MAGIC.equals(r.readLine())) {
+				// unknown format, start over
+				file.delete();
+				return;
+			}
+			String line;
+			while ((line = r.readLine()) != null) {
+				records++;
+				String[] f = line.split("\t", -1);
+				try {
+					if (f[0].equals("R") && f.length == 3) {
+						entries.remove(id(unescape(f[1]), unescape(f[2])));
+					} else if ((f[0].equals("P") || f[0].equals("N")) && f.length == 7) {
+						long cachedAt = Long.parseLong(f[3]);
+						String id = id(unescape(f[1]), unescape(f[2]));
+						// entries far beyond ttl won't be revalidated any more, drop them
+						if (now - cachedAt > ttl * 10) {
+							entries.remove(id);
+							continue;
+						}
+						entries.put(id, new Entry(f[0].equals("P"), Long.parseLong(f[4]), unescape(f[5]),
+								Long.parseLong(f[6]), cachedAt));
+					}
+				} catch (NumberFormatException e) {
+					// torn record from an interrupted run
+				}
+			}
+		}
+	}
+
+	// rewrite the log with the live entries only
+	private void compact() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		try (Writer w = new BufferedWriter(
+				new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8), 1 << 16)) {
+			w.write(MAGIC + "\n");
+			for (Map.Entry<String, MetadataCache.Entry> me : entries.entrySet()) {
+				// Bucket names have no '/'
+				int slash = me.getKey().indexOf('/');
+				w.write(record(me.getKey().substring(0, slash), me.getKey().substring(slash + 1), me.getValue()));
+			}
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		records = entries.size();
+	}
+
+	public synchronized void close() {
+		if (log != null) {
+			try {
+				log.close();
+			} catch (IOException e) {
+				System.err.println("cache " + file + ": " + e.getMessage());
+			}
+			log = null;
+		}
+	}
+
+	// keys may hold any character, keep records on one line
+	static String escape(String s) {
+		if (s.indexOf('\\') < 0 && s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0) {
+			return s;
+		}
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	static String unescape(String s) {
+		if (s.indexOf('\\') < 0) {
+			return s;
+		}
+		StringBuilder sb = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\' && i + 1 < s.length()) {
+				char n = s.charAt(++i);
+				sb.append(n == 't' ? '\t' : n == 'n' ? '\n' : n == 'r' ? '\r' : n);
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String md5(String s) {
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,490 @@
+package org.shvc.s3java;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.HandlerContextKey;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetrics.Field;
+import com.amazonaws.util.TimingInfo;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per operation request metrics of a client. Every request is split into
+ * phases so a slow tail can be pinned to the client, the network or the
+ * server:
+ * <ul>
+ * <li>latency: the whole call, retries and backoff included, up to the
+ * response headers</li>
+ * <li>ttfb: the last attempt from sending the request to the response
+ * headers</li>
+ * <li>send: writing the request and its payload</li>
+ * <li>wait: from the request written to the response headers(server time
+ * and a round trip)</li>
+ * <li>body: reading a GetObject body, bytes over body time is the transfer
+ * rate</li>
+ * </ul>
+ * plus requests, errors, retries, payload bytes and the connection pool.
+ * The blocking client reports through the SDK's RequestMetricCollector and
+ * the RequestHandler2 of {@link #handler()}, the async backend calls
+ * {@link #record}.
+ */
+public class Metrics extends RequestMetricCollector {
+	enum Format {
+		summary, json, prometheus
+	}
+
+	static final String[] PHASES = { "latency", "ttfb", "send", "wait", "body" };
+	private static final int LATENCY = 0;
+	private static final int TTFB = 1;
+	private static final int SEND = 2;
+	private static final int WAIT = 3;
+	private static final int BODY = 4;
+	// the SDK drops Content-Length from the request once sent
+	private static final HandlerContextKey<Long> REQUEST_BYTES = new HandlerContextKey<Long>("s3java.RequestBytes");
+
+	private final Format format;
+	private final Path file;
+	private final Map<String, Stats> ops = new ConcurrentHashMap<String, Stats>();
+	private final Pool pool = new Pool();
+	private ScheduledExecutorService timer;
+
+	/**
+	 * @param file where to write, null for stderr; summaries and json lines
+	 *             are appended, the prometheus text file is replaced
+	 */
+	public Metrics(Format format, Path file) {
+		this.format = format;
+		this.file = file;
+	}
+
+	static final class Stats {
+		final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+		long requests;
+		long errors;
+		long retries;
+		long bytes;
+
+		Stats() {
+			for (int i = 0; i < phases.length; i++) {
+				phases[i] = new LatencyHistogram();
+			}
+		}
+
+		synchronized void record(int phase, long nanos) {
+			if (nanos >= 0) {
+				phases[phase].record(nanos);
+			}
+		}
+
+		synchronized void request(boolean error, long retries, long bytes) {
+			requests++;
+			if (error) {
+				errors++;
+			}
+			this.retries += retries;
+			this.bytes += bytes;
+		}
+
+		synchronized void body(long nanos, long bytes) {
+			phases[BODY].record(nanos);
+			this.bytes += bytes;
+		}
+
+		// a copy of the counts so far, which start over
+		synchronized Stats drain() {
+			Stats s = new Stats();
+			s.add(this);
+			for (int i = 0; i < phases.length; i++) {
+				phases[i] = new LatencyHistogram();
+			}
+			requests = 0;
+			errors = 0;
+			retries = 0;
+			bytes = 0;
+			return s;
+		}
+
+		synchronized void add(Stats other) {
+			for (int i = 0; i < phases.length; i++) {
+				phases[i].add(other.phases[i]);
+			}
+			requests += other.requests;
+			errors += other.errors;
+			retries += other.retries;
+			bytes += other.bytes;
+		}
+	}
+
+	// connection pool of the blocking client, sampled before every attempt
+	static final class Pool {
+		long available;
+		long leased;
+		long pending;
+		long leasedMax;
+		long pendingMax;
+		boolean sampled;
+
+		synchronized void sample(long available, long leased, long pending) {
+			this.available = available;
+			this.leased = leased;
+			this.pending = pending;
+			leasedMax = Math.max(leasedMax, leased);
+			pendingMax = Math.max(pendingMax, pending);
+			sampled = true;
+		}
+
+		synchronized Pool copy() {
+			Pool p = new Pool();
+			p.available = available;
+			p.leased = leased;
+			p.pending = pending;
+			p.leasedMax = leasedMax;
+			p.pendingMax = pendingMax;
+			p.sampled = sampled;
+			return p;
+		}
+	}
+
+	private Stats stats(String op) {
+		Stats s = ops.get(op);
+		if (s == null) {
+			s = ops.computeIfAbsent(op, k -> new Stats());
+		}
+		return s;
+	}
+
+	/**
+	 * a request done by the async backend, a phase that wasn't measured is
+	 * passed as -1
+	 */
+	public void record(String op, long latency, long ttfb, long body, long bytes, int retries, boolean error) {
+		Stats s = stats(op);
+		s.record(LATENCY, latency);
+		s.record(TTFB, ttfb);
+		s.record(BODY, body);
+		s.request(error, retries, bytes);
+	}
+
+	// PutObjectRequest -> PutObject
+	static String operation(Object request) {
+		String name = request.getClass().getSimpleName();
+		return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+	}
+
+	@Override
+	public void collectMetrics(Request<?> request, Response<?> response) {
+		AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+		TimingInfo timing = metrics.getTimingInfo();
+		Stats s = stats(operation(request.getOriginalRequest()));
+		s.record(LATENCY, nanos(timing.getLastSubMeasurement(Field.ClientExecuteTime.name())));
+		s.record(TTFB, nanos(timing.getLastSubMeasurement(Field.HttpRequestTime.name())));
+		s.record(SEND, nanos(timing.getLastSubMeasurement(Field.HttpClientSendRequestTime.name())));
+		s.record(WAIT, nanos(timing.getLastSubMeasurement(Field.HttpClientReceiveResponseTime.name())));
+		Number retries = timing.getCounter(Field.HttpClientRetryCount.name());
+		Long sent = request.getHandlerContext(REQUEST_BYTES);
+		boolean error = response == null;
+		s.request(error, retries == null ? 0 : retries.longValue(), error || sent == null ? 0 : sent);
+		Number available = timing.getCounter(Field.HttpClientPoolAvailableCount.name());
+		Number leased = timing.getCounter(Field.HttpClientPoolLeasedCount.name());
+		Number pending = timing.getCounter(Field.HttpClientPoolPendingCount.name());
+		if (available != null && leased != null && pending != null) {
+			pool.sample(available.longValue(), leased.longValue(), pending.longValue());
+		}
+	}
+
+	private static long nanos(TimingInfo t) {
+		if (t == null || t.getEndTimeNanoIfKnown() == null) {
+			return -1;
+		}
+		return t.getEndTimeNano() - t.getStartTimeNano();
+	}
+
+	/**
+	 * RequestHandler2 noting the request payload size and timing GetObject
+	 * bodies: the content stream records the body phase and the bytes read
+	 * when it reaches the end or is closed
+	 */
+	public RequestHandler2 handler() {
+		return new RequestHandler2() {
+			@Override
+			public void beforeAttempt(HandlerBeforeAttemptContext context) {
+				Request<?> request = context.getRequest();
+				request.addHandlerContext(REQUEST_BYTES, Throttle.requestBytes(request));
+			}
+
+			@Override
+			public void afterResponse(Request<?> request, Response<?> response) {
+				if (response != null && response.getAwsResponse() instanceof S3Object) {
+					S3Object object = (S3Object) response.getAwsResponse();
+					S3ObjectInputStream in = object.getObjectContent();
+					if (in != null) {
+						object.setObjectContent(new S3ObjectInputStream(
+								new Body(in, stats(operation(request.getOriginalRequest()))), in.getHttpRequest()));
+					}
+				}
+			}
+		};
+	}
+
+	private static final class Body extends FilterInputStream {
+		private final Stats stats;
+		private final long start = System.nanoTime();
+		private long bytes;
+		private boolean done;
+
+		Body(InputStream in, Stats stats) {
+			super(in);
+			this.stats = stats;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b < 0) {
+				done();
+			} else {
+				bytes++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n < 0) {
+				done();
+			} else {
+				bytes += n;
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			bytes += skipped;
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			done();
+			super.close();
+		}
+
+		private void done() {
+			if (!done) {
+				done = true;
+				stats.body(System.nanoTime() - start, bytes);
+			}
+		}
+	}
+
+	/**
+	 * write the metrics every interval seconds on a daemon thread, and once
+	 * more when the JVM exits
+	 */
+	public void start(long interval) {
+		if (interval > 0) {
+			timer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "s3java-metrics");
+				t.setDaemon(true);
+				return t;
+			});
+			timer.scheduleAtFixedRate(this::emit, interval, interval, TimeUnit.SECONDS);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(this::emit));
+	}
+
+	// running totals, json lines report the requests since the last line
+	private Map<String, Stats> snapshot() {
+		Map<String, Stats> copy = new TreeMap<String, Stats>();
+		for (Map.Entry<String, Stats> e : ops.entrySet()) {
+			Stats s;
+			if (format == Format.json) {
+				s = e.getValue().drain();
+				if (s.requests == 0 && s.phases[BODY].getCount() == 0) {
+					continue;
+				}
+			} else {
+				s = new Stats();
+				s.add(e.getValue());
+			}
+			copy.put(e.getKey(), s);
+		}
+		return copy;
+	}
+
+	public synchronized void emit() {
+		Map<String, Stats> snapshot = snapshot();
+		if (snapshot.isEmpty() && format != Format.prometheus) {
+			return;
+		}
+		String time = java.time.Clock.systemUTC().instant().toString();
+		StringBuilder sb = new StringBuilder();
+		switch (format) {
+			case json:
+				json(sb, time, snapshot, pool.copy());
+				break;
+			case prometheus:
+				prometheus(sb, snapshot, pool.copy());
+				break;
+			default:
+				summary(sb, time, snapshot, pool.copy());
+		}
+		try {
+			write(sb.toString());
+		} catch (IOException e) {
+			System.err.println("metrics: " + e.getMessage());
+		}
+	}
+
+	private void write(String text) throws IOException {
+		if (file == null) {
+			PrintStream err = System.err;
+			err.print(text);
+			err.flush();
+		} else if (format == Format.prometheus) {
+			// the textfile collector must never see a half written file
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} else {
+			try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.APPEND)) {
+				w.write(text);
+			}
+		}
+	}
+
+	private static double ms(long nanos) {
+		return nanos / 1e6;
+	}
+
+	static void summary(StringBuilder sb, String time, Map<String, Stats> ops, Pool pool) {
+		sb.append(time).append(" metrics\n");
+		sb.append(String.format("%-22s %-7s %10s %9s %9s %9s %9s %9s%n", "op", "phase", "count", "mean(ms)", "p50(ms)",
+				"p99(ms)", "p999(ms)", "max(ms)"));
+		for (Map.Entry<String, Stats> e : ops.entrySet()) {
+			LatencyHistogram[] phases = e.getValue().phases;
+			for (int i = 0; i < phases.length; i++) {
+				LatencyHistogram h = phases[i];
+				if (h.getCount() > 0) {
+					sb.append(String.format("%-22s %-7s %10d %9.3f %9.3f %9.3f %9.3f %9.3f%n", e.getKey(), PHASES[i],
+							h.getCount(), ms((long) h.getMean()), ms(h.percentile(50)), ms(h.percentile(99)),
+							ms(h.percentile(99.9)), ms(h.getMax())));
+				}
+			}
+		}
+		for (Map.Entry<String, Stats> e : ops.entrySet()) {
+			Stats s = e.getValue();
+			sb.append(String.format("%-22s %d requests, %d errors, %d retries, %.2fMB", e.getKey(), s.requests,
+					s.errors, s.retries, s.bytes / (double) (1 << 20)));
+			LatencyHistogram body = s.phases[BODY];
+			if (body.getCount() > 0 && body.getMean() > 0) {
+				sb.append(String.format(", body %.2fMB/s", s.bytes / (body.getMean() * body.getCount() / 1e9) / (1 << 20)));
+			}
+			sb.append('\n');
+		}
+		if (pool.sampled) {
+			sb.append(String.format("pool %d leased(max %d), %d available, %d pending(max %d)%n", pool.leased,
+					pool.leasedMax, pool.available, pool.pending, pool.pendingMax));
+		}
+	}
+
+	static void json(StringBuilder sb, String time, Map<String, Stats> ops, Pool pool) {
+		for (Map.Entry<String, Stats> e : ops.entrySet()) {
+			Stats s = e.getValue();
+			sb.append("{\"time\":\"").append(time).append("\",\"op\":\"").append(e.getKey()).append("\",\"requests\":")
+					.append(s.requests).append(",\"errors\":").append(s.errors).append(",\"retries\":")
+					.append(s.retries).append(",\"bytes\":").append(s.bytes);
+			for (int i = 0; i < PHASES.length; i++) {
+				LatencyHistogram h = s.phases[i];
+				if (h.getCount() > 0) {
+					sb.append(String.format(Locale.ROOT,
+							",\"%s_ms\":{\"count\":%d,\"mean\":%.3f,\"p50\":%.3f,\"p90\":%.3f,\"p99\":%.3f,\"p999\":%.3f,\"max\":%.3f}",
+							PHASES[i], h.getCount(), ms((long) h.getMean()), ms(h.percentile(50)),
+							ms(h.percentile(90)), ms(h.percentile(99)), ms(h.percentile(99.9)), ms(h.getMax())));
+				}
+			}
+			sb.append("}\n");
+		}
+		if (pool.sampled) {
+			sb.append("{\"time\":\"").append(time).append("\",\"pool\":{\"leased\":").append(pool.leased)
+					.append(",\"leased_max\":").append(pool.leasedMax).append(",\"available\":").append(pool.available)
+					.append(",\"pending\":").append(pool.pending).append(",\"pending_max\":").append(pool.pendingMax)
+					.append("}}\n");
+		}
+	}
+
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	static void prometheus(StringBuilder sb, Map<String, Stats> ops, Pool pool) {
+		counter(sb, ops, "s3java_requests_total", "S3 requests by operation", s -> s.requests);
+		counter(sb, ops, "s3java_errors_total", "S3 requests failed", s -> s.errors);
+		counter(sb, ops, "s3java_retries_total", "S3 request retries", s -> s.retries);
+		counter(sb, ops, "s3java_bytes_total", "S3 request and response payload bytes", s -> s.bytes);
+		sb.append("# HELP s3java_request_seconds S3 request phases: latency, ttfb, send, wait, body\n");
+		sb.append("# TYPE s3java_request_seconds summary\n");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) {
+			for (int i = 0; i < PHASES.length; i++) {
+				LatencyHistogram h = e.getValue().phases[i];
+				if (h.getCount() == 0) {
+					continue;
+				}
+				String labels = "op=\"" + e.getKey() + "\",phase=\"" + PHASES[i] + "\"";
+				for (double q : QUANTILES) {
+					sb.append(String.format(Locale.ROOT, "s3java_request_seconds{%s,quantile=\"%s\"} %.6f%n", labels,
+							q, h.percentile(q * 100) / 1e9));
+				}
+				sb.append(String.format(Locale.ROOT, "s3java_request_seconds_sum{%s} %.6f%n", labels,
+						h.getMean() * h.getCount() / 1e9));
+				sb.append("s3java_request_seconds_count{").append(labels).append("} ").append(h.getCount())
+						.append('\n');
+			}
+		}
+		if (pool.sampled) {
+			sb.append("# HELP s3java_pool_connections connections of the client pool\n");
+			sb.append("# TYPE s3java_pool_connections gauge\n");
+			sb.append("s3java_pool_connections{state=\"leased\"} ").append(pool.leased).append('\n');
+			sb.append("s3java_pool_connections{state=\"available\"} ").append(pool.available).append('\n');
+			sb.append("s3java_pool_connections{state=\"pending\"} ").append(pool.pending).append('\n');
+			sb.append("# HELP s3java_pool_connections_max most connections leased or waited for\n");
+			sb.append("# TYPE s3java_pool_connections_max gauge\n");
+			sb.append("s3java_pool_connections_max{state=\"leased\"} ").append(pool.leasedMax).append('\n');
+			sb.append("s3java_pool_connections_max{state=\"pending\"} ").append(pool.pendingMax).append('\n');
+		}
+	}
+
+	private static void counter(StringBuilder sb, Map<String, Stats> ops, String name, String help,
+			java.util.function.ToLongFunction<Stats> value) {
+		sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(name).append(" counter\n");
+		for (Map.Entry<String, Stats> e : ops.entrySet()) {
+			sb.append(name).append("{op=\"").append(e.getKey()).append("\"} ")
+					.append(value.applyAsLong(e.getValue())).append('\n');
+		}
+	}
+}
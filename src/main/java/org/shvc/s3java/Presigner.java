@@ -0,0 +1,306 @@
+package org.shvc.s3java;
+
+import com.amazonaws.HttpMethod;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.s3.internal.BucketNameUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+
+/**
+ * Presigned URLs for many Keys, the same URLs as the SDK's
+ * generatePresignedUrl. The SigV4 signing key is derived once per day and
+ * kept in a keyed Mac, the query string once per second; a URL only hashes
+ * its canonical request and signs it, built in reused buffers. Not thread
+ * safe, one instance per thread.
+ */
+public class Presigner {
+	// SigV4 presigned URLs are valid for at most 7 days
+	public static final long MAX_EXPIRES = 7 * 24 * 3600;
+	private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+	private static final String SERVICE = "s3";
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final char[] UPPER_HEX = "0123456789ABCDEF".toCharArray();
+	private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+			.withZone(ZoneOffset.UTC);
+
+	private final String scheme;
+	// host[:port] as given, in the URL
+	private final String authority;
+	// signed Host header, without a default port
+	private final String host;
+	private final String region;
+	private final String accessKey;
+	private final String secretKey;
+	private final boolean pathStyle;
+	private final boolean signV2;
+	private final boolean ipHost;
+	// seconds
+	private final long expires;
+
+	private final StringBuilder url = new StringBuilder(256);
+	private final StringBuilder canonical = new StringBuilder(512);
+	private byte[] bytes = new byte[512];
+	private char[] chars = new char[512];
+	private final byte[] hash = new byte[32];
+	// 32 bytes of HmacSHA256, 20 of HmacSHA1
+	private final byte[] signature;
+	private final byte[] base64 = new byte[28];
+	private MessageDigest sha256;
+	private Mac mac;
+	private String day;
+	private String scope;
+	private long second = Long.MIN_VALUE;
+	private String amzDate;
+	private String query;
+	private long count;
+
+	/**
+	 * @param expireMinutes validity of the URLs
+	 */
+	public Presigner(String endpoint, String region, AWSCredentials credentials, boolean pathStyle, boolean signV2,
+			long expireMinutes) {
+		URI uri = URI.create(endpoint);
+		this.scheme = uri.getScheme() == null ? "https" : uri.getScheme();
+		int port = uri.getPort();
+		boolean defaultPort = port < 0 || port == 80 && scheme.equals("http") || port == 443 && scheme.equals("https");
+		this.host = defaultPort ? uri.getHost() : uri.getHost() + ":" + port;
+		this.authority = port < 0 ? uri.getHost() : uri.getHost() + ":" + port;
+		this.ipHost = uri.getHost().matches("[0-9]{1,3}(\\.[0-9]{1,3}){3}");
+		this.region = region;
+		this.accessKey = credentials.getAWSAccessKeyId();
+		this.secretKey = credentials.getAWSSecretKey();
+		this.pathStyle = pathStyle;
+		this.signV2 = signV2;
+		this.expires = expireMinutes * 60;
+		this.signature = new byte[signV2 ? 20 : 32];
+		if (expires <= 0 || !signV2 && expires > MAX_EXPIRES) {
+			throw new IllegalArgumentException(
+					"presign expiration " + expireMinutes + " minutes out of range(1-" + MAX_EXPIRES / 60 + ")");
+		}
+	}
+
+	/**
+	 * URLs signed so far
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public String presign(HttpMethod method, String bucket, String key) {
+		build(method, bucket, key);
+		return url.toString();
+	}
+
+	/**
+	 * write the URL and a line separator to out, no String of the URL is
+	 * made
+	 */
+	public void presign(HttpMethod method, String bucket, String key, Writer out) throws IOException {
+		build(method, bucket, key);
+		url.append('\n');
+		int len = url.length();
+		if (chars.length < len) {
+			chars = new char[Math.max(len, chars.length * 2)];
+		}
+		url.getChars(0, len, chars, 0);
+		out.write(chars, 0, len);
+	}
+
+	private void build(HttpMethod method, String bucket, String key) {
+		// like the SDK a Bucket that isn't a DNS name, or on an IP endpoint, stays in the path
+		boolean virtual = !pathStyle && !ipHost && BucketNameUtils.isDNSBucketName(bucket);
+		url.setLength(0);
+		url.append(scheme).append("://");
+		if (virtual) {
+			url.append(bucket).append('.');
+		}
+		url.append(authority);
+		int path = url.length();
+		url.append('/');
+		if (!virtual) {
+			encode(url, bucket, true).append('/');
+		}
+		encode(url, key, true);
+		count++;
+		if (accessKey == null) {
+			// anonymous, nothing to sign
+			return;
+		}
+		try {
+			if (signV2) {
+				signV2(method, bucket, key);
+			} else {
+				signV4(method, path, virtual ? bucket : null);
+			}
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+
+	// virtualBucket is the Bucket in the host name, null if it is in the path
+	private void signV4(HttpMethod method, int path, String virtualBucket) throws GeneralSecurityException {
+		long now = System.currentTimeMillis() / 1000;
+		if (now != second) {
+			second = now;
+			amzDate = AMZ_DATE.format(Instant.ofEpochSecond(now));
+			if (day == null || !amzDate.startsWith(day)) {
+				signingKey(amzDate.substring(0, 8));
+			}
+			StringBuilder q = new StringBuilder(256);
+			q.append("X-Amz-Algorithm=").append(ALGORITHM).append("&X-Amz-Credential=");
+			encode(q, accessKey + "/" + scope, false);
+			q.append("&X-Amz-Date=").append(amzDate).append("&X-Amz-Expires=").append(expires)
+					.append("&X-Amz-SignedHeaders=host");
+			query = q.toString();
+		}
+
+		canonical.setLength(0);
+		canonical.append(method.name()).append('\n');
+		// the path as encoded, before the // of the URL is escaped
+		for (int i = path, end = url.length(); i < end; i++) {
+			char c = url.charAt(i);
+			if (c == '%' && url.charAt(i + 1) == '2' && url.charAt(i + 2) == 'F') {
+				canonical.append('/');
+				i += 2;
+			} else {
+				canonical.append(c);
+			}
+		}
+		canonical.append('\n');
+		canonical.append(query).append('\n');
+		canonical.append("host:");
+		if (virtualBucket != null) {
+			canonical.append(virtualBucket).append('.');
+		}
+		canonical.append(host);
+		canonical.append("\n\nhost\nUNSIGNED-PAYLOAD");
+		sha256.update(ascii(canonical), 0, canonical.length());
+		sha256.digest(hash, 0, hash.length);
+
+		canonical.setLength(0);
+		canonical.append(ALGORITHM).append('\n').append(amzDate).append('\n').append(scope).append('\n');
+		hex(canonical, hash);
+		mac.update(ascii(canonical), 0, canonical.length());
+		mac.doFinal(signature, 0);
+
+		url.append('?').append(query).append("&X-Amz-Signature=");
+		hex(url, signature);
+	}
+
+	// kSigning = HMAC(HMAC(HMAC(HMAC("AWS4" + secret, day), region), "s3"), "aws4_request")
+	private void signingKey(String day) throws GeneralSecurityException {
+		if (sha256 == null) {
+			sha256 = MessageDigest.getInstance("SHA-256");
+			mac = Mac.getInstance("HmacSHA256");
+		}
+		byte[] key = ("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8);
+		for (String s : new String[] { day, region, SERVICE, "aws4_request" }) {
+			mac.init(new SecretKeySpec(key, "HmacSHA256"));
+			key = mac.doFinal(s.getBytes(StandardCharsets.UTF_8));
+		}
+		mac.init(new SecretKeySpec(key, "HmacSHA256"));
+		this.day = day;
+		this.scope = day + "/" + region + "/" + SERVICE + "/aws4_request";
+	}
+
+	// StringToSign = METHOD\n\n\nExpires\n/bucket/key, also for a virtual hosted Bucket
+	private void signV2(HttpMethod method, String bucket, String key) throws GeneralSecurityException {
+		if (mac == null) {
+			mac = Mac.getInstance("HmacSHA1");
+			mac.init(new SecretKeySpec(secretKey.getBytes(StandardCharsets.UTF_8), "HmacSHA1"));
+		}
+		long expiry = System.currentTimeMillis() / 1000 + expires;
+		canonical.setLength(0);
+		canonical.append(method.name()).append("\n\n\n").append(expiry).append("\n/").append(bucket).append('/');
+		encode(canonical, key, true);
+		mac.update(ascii(canonical), 0, canonical.length());
+		mac.doFinal(signature, 0);
+		int n = Base64.getEncoder().encode(signature, base64);
+
+		url.append("?AWSAccessKeyId=");
+		encode(url, accessKey, false);
+		url.append("&Expires=").append(expiry).append("&Signature=");
+		for (int i = 0; i < n; i++) {
+			char c = (char) base64[i];
+			if (c == '+' || c == '/' || c == '=') {
+				url.append('%').append(UPPER_HEX[c >> 4]).append(UPPER_HEX[c & 0xf]);
+			} else {
+				url.append(c);
+			}
+		}
+	}
+
+	// the bytes of a canonical string, encoded and ASCII like Bucket names
+	private byte[] ascii(StringBuilder s) {
+		int len = s.length();
+		if (bytes.length < len) {
+			bytes = new byte[Math.max(len, bytes.length * 2)];
+		}
+		for (int i = 0; i < len; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static void hex(StringBuilder out, byte[] b) {
+		for (byte x : b) {
+			out.append(HEX[(x >> 4) & 0xf]).append(HEX[x & 0xf]);
+		}
+	}
+
+	/**
+	 * URI encode like the SDK: everything but A-Z a-z 0-9 - _ . ~ (and / in a
+	 * path) as %XX of its UTF-8 bytes; a path keeps the second / of a // as
+	 * %2F
+	 */
+	static StringBuilder encode(StringBuilder out, String s, boolean path) {
+		int len = s.length();
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'
+					|| c == '.' || c == '~') {
+				out.append(c);
+			} else if (c == '/' && path) {
+				if (out.length() > 0 && out.charAt(out.length() - 1) == '/') {
+					percent(out, c);
+				} else {
+					out.append(c);
+				}
+			} else if (c < 0x80) {
+				percent(out, c);
+			} else if (c < 0x800) {
+				percent(out, 0xc0 | c >> 6);
+				percent(out, 0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				percent(out, 0xf0 | cp >> 18);
+				percent(out, 0x80 | cp >> 12 & 0x3f);
+				percent(out, 0x80 | cp >> 6 & 0x3f);
+				percent(out, 0x80 | cp & 0x3f);
+			} else if (Character.isSurrogate(c)) {
+				// a lone surrogate is '?' in UTF-8, like String.getBytes
+				percent(out, '?');
+			} else {
+				percent(out, 0xe0 | c >> 12);
+				percent(out, 0x80 | c >> 6 & 0x3f);
+				percent(out, 0x80 | c & 0x3f);
+			}
+		}
+		return out;
+	}
+
+	private static void percent(StringBuilder out, int b) {
+		out.append('%').append(UPPER_HEX[b >> 4 & 0xf]).append(UPPER_HEX[b & 0xf]);
+	}
+}
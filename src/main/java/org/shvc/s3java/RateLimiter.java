@@ -0,0 +1,55 @@
+package org.shvc.s3java;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket of permits(operations or bytes) per second holding up to one
+ * second of burst. A caller takes its permits at once and may drive the
+ * bucket into debt; it then waits until the debt is paid off at the rate, so
+ * callers are served in arrival order and a large request delays the ones
+ * after it instead of starving.
+ */
+public class RateLimiter {
+	private final double rate;
+	private final double burst;
+	private double tokens;
+	private long last = System.nanoTime();
+
+	/**
+	 * @param rate permits per second
+	 */
+	public RateLimiter(double rate) {
+		if (rate <= 0) {
+			throw new IllegalArgumentException("rate must be positive: " + rate);
+		}
+		this.rate = rate;
+		this.burst = Math.max(rate, 1);
+		this.tokens = burst;
+	}
+
+	/**
+	 * take permits without waiting
+	 *
+	 * @return nanoseconds the caller should wait before going on
+	 */
+	public synchronized long reserve(long permits) {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+		last = now;
+		tokens -= permits;
+		return tokens >= 0 ? 0 : (long) (-tokens / rate * 1e9);
+	}
+
+	// take permits, waiting as long as the rate requires
+	public void acquire(long permits) {
+		long deadline = System.nanoTime() + reserve(permits);
+		long now;
+		while ((now = System.nanoTime()) < deadline) {
+			LockSupport.parkNanos(deadline - now);
+		}
+	}
+
+	public double getRate() {
+		return rate;
+	}
+}
@@ -0,0 +1,348 @@
+package org.shvc.s3java;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListMultipartUploadsRequest;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.MultipartUpload;
+import com.amazonaws.services.s3.model.MultipartUploadListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Multipart upload that survives a failed or killed run. Upload ID, part size
+ * and the ETag of every finished part are appended to a journal file; the next
+ * run with the same file and Key checks the journal against ListParts and
+ * only uploads the missing parts.
+ */
+public class ResumableUpload {
+	private static final String MAGIC = "s3java-mpu 1";
+
+	private final AmazonS3 s3;
+	private final File journalDir;
+	private final int threads;
+
+	public ResumableUpload(AmazonS3 s3, File journalDir, int threads) {
+		this.s3 = s3;
+		this.journalDir = journalDir;
+		this.threads = Math.max(1, threads);
+	}
+
+	public static File defaultJournalDir() {
+		return new File(System.getProperty("user.home"), ".s3java" + File.separator + "mpu");
+	}
+
+	// one journal per file and destination
+	File journalFile(String bucket, String key, File file) {
+		String id = bucket + "/" + key + "\n" + file.getAbsolutePath();
+		try {
+			StringBuilder sb = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("MD5").digest(id.getBytes(StandardCharsets.UTF_8))) {
+				sb.append(String.format("%02x", b));
+			}
+			return new File(journalDir, sb + ".journal");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void upload(String bucket, String key, File file, ObjectMetadata metadata, long partSize)
+			throws IOException, InterruptedException {
+		File journalFile = journalFile(bucket, key, file);
+		Journal journal = Journal.load(journalFile);
+		Map<Integer, PartETag> done = new TreeMap<Integer, PartETag>();
+
+		if (journal != null && journal.matches(bucket, key, file)) {
+			partSize = journal.partSize;
+			try {
+				for (PartSummary p : listParts(bucket, key, journal.uploadId)) {
+					PartETag recorded = journal.parts.get(p.getPartNumber());
+					// a part only counts if the server has the very part the journal recorded
+					if (recorded != null && recorded.getETag().equals(p.getETag())) {
+						done.put(p.getPartNumber(), recorded);
+					}
+				}
+				System.out.println(java.time.Clock.systemUTC().instant() + " resume " + bucket + "/" + key + " "
+						+ journal.uploadId + " with " + done.size() + " parts uploaded");
+			} catch (AmazonServiceException e) {
+				if (e.getStatusCode() != 404) {
+					throw e;
+				}
+				// upload aborted or expired on the server side, start over
+				System.err.println("upload " + journal.uploadId + " is gone, start over");
+				journal.delete();
+				journal = null;
+			}
+		} else if (journal != null) {
+			System.err.println("file or destination changed, discard journal of upload " + journal.uploadId);
+			abortQuietly(journal);
+			journal = null;
+		}
+
+		if (journal == null) {
+			String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata))
+					.getUploadId();
+			journal = Journal.create(journalFile, bucket, key, file, uploadId, partSize);
+		}
+
+		try {
+			long size = file.length();
+			int parts = (int) Math.max(1, (size + partSize - 1) / partSize);
+			ExecutorService pool = TaskRunner.newExecutor(threads);
+			// the executor may be unbounded(virtual threads), at most threads parts in flight
+			Semaphore inflight = new Semaphore(threads);
+			AtomicBoolean failed = new AtomicBoolean();
+			try {
+				List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+				for (int n = 1; n <= parts; n++) {
+					if (done.containsKey(n)) {
+						continue;
+					}
+					long offset = (n - 1) * partSize;
+					UploadPartRequest req = new UploadPartRequest().withBucketName(bucket).withKey(key)
+							.withUploadId(journal.uploadId).withPartNumber(n).withFile(file).withFileOffset(offset)
+							.withPartSize(Math.min(partSize, size - offset)).withLastPart(n == parts);
+					Journal j = journal;
+					inflight.acquire();
+					if (failed.get()) {
+						// the failed part is reported below, don't start the rest
+						inflight.release();
+						break;
+					}
+					futures.add(pool.submit(() -> {
+						try {
+							PartETag etag = s3.uploadPart(req).getPartETag();
+							j.append(etag);
+							return etag;
+						} catch (Exception e) {
+							failed.set(true);
+							throw e;
+						} finally {
+							inflight.release();
+						}
+					}));
+				}
+				for (Future<PartETag> f : futures) {
+					PartETag etag = f.get();
+					done.put(etag.getPartNumber(), etag);
+				}
+			} catch (ExecutionException e) {
+				// keep the journal and the upload for the next run
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException(cause.getMessage(), cause);
+			} finally {
+				pool.shutdownNow();
+			}
+
+			CompleteMultipartUploadResult result = s3.completeMultipartUpload(new CompleteMultipartUploadRequest(
+					bucket, key, journal.uploadId, new ArrayList<PartETag>(done.values())));
+			journal.delete();
+			// the SDK checked every part's MD5 while sending it, the Object must be made of exactly these parts
+			String etag = Checksum.compositeETag(done.values());
+			if (etag != null && result.getETag() != null && result.getSSEAlgorithm() == null
+					&& !etag.equals(result.getETag())) {
+				throw new IOException(
+						"ETag mismatch: " + bucket + "/" + key + " " + result.getETag() + ", expected " + etag);
+			}
+			System.out.println(java.time.Clock.systemUTC().instant() + " upload " + bucket + "/" + key);
+		} finally {
+			// parts still finishing after a failure can't reopen it
+			journal.close();
+		}
+	}
+
+	/**
+	 * abort the journaled upload of file and every other unfinished upload of
+	 * the Key, and drop the journal
+	 */
+	public void abort(String bucket, String key, File file) throws IOException {
+		Journal journal = Journal.load(journalFile(bucket, key, file));
+		if (journal != null) {
+			abortQuietly(journal);
+			journal.delete();
+			System.out.println(java.time.Clock.systemUTC().instant() + " abort " + bucket + "/" + key + " "
+					+ journal.uploadId);
+		}
+		ListMultipartUploadsRequest req = new ListMultipartUploadsRequest(bucket).withPrefix(key);
+		MultipartUploadListing listing;
+		do {
+			listing = s3.listMultipartUploads(req);
+			for (MultipartUpload u : listing.getMultipartUploads()) {
+				if (u.getKey().equals(key)) {
+					s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, u.getUploadId()));
+					System.out.println(java.time.Clock.systemUTC().instant() + " abort " + bucket + "/" + key + " "
+							+ u.getUploadId());
+				}
+			}
+			req.setKeyMarker(listing.getNextKeyMarker());
+			req.setUploadIdMarker(listing.getNextUploadIdMarker());
+		} while (listing.isTruncated());
+	}
+
+	private void abortQuietly(Journal journal) {
+		try {
+			s3.abortMultipartUpload(new AbortMultipartUploadRequest(journal.bucket, journal.key, journal.uploadId));
+		} catch (AmazonServiceException e) {
+			// already gone
+		}
+	}
+
+	private List<PartSummary> listParts(String bucket, String key, String uploadId) {
+		List<PartSummary> parts = new ArrayList<PartSummary>();
+		ListPartsRequest req = new ListPartsRequest(bucket, key, uploadId);
+		PartListing listing;
+		do {
+			listing = s3.listParts(req);
+			parts.addAll(listing.getParts());
+			req.setPartNumberMarker(listing.getNextPartNumberMarker());
+		} while (listing.isTruncated());
+		return parts;
+	}
+
+	/**
+	 * header lines(bucket, key, file, size, mtime, upload id, part size) followed
+	 * by one "part number etag" line per finished part
+	 */
+	static class Journal {
+		final File path;
+		String bucket;
+		String key;
+		String file;
+		long size;
+		long mtime;
+		String uploadId;
+		long partSize;
+		final Map<Integer, PartETag> parts = new TreeMap<Integer, PartETag>();
+		private FileOutputStream out;
+		private Writer writer;
+		private boolean closed;
+
+		private Journal(File path) {
+			this.path = path;
+		}
+
+		static Journal create(File path, String bucket, String key, File file, String uploadId, long partSize)
+				throws IOException {
+			Journal j = new Journal(path);
+			j.bucket = bucket;
+			j.key = key;
+			j.file = file.getAbsolutePath();
+			j.size = file.length();
+			j.mtime = file.lastModified();
+			j.uploadId = uploadId;
+			j.partSize = partSize;
+			path.getParentFile().mkdirs();
+			j.open(false);
+			j.writer.write(MAGIC + "\n" + bucket + "\n" + key + "\n" + j.file + "\n" + j.size + "\n" + j.mtime + "\n"
+					+ uploadId + "\n" + partSize + "\n");
+			j.sync();
+			return j;
+		}
+
+		static Journal load(File path) throws IOException {
+			if (!path.isFile()) {
+				return null;
+			}
+			Journal j = new Journal(path);
+			try (BufferedReader r = new BufferedReader(
+					new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8))) {
+				if (!MAGIC.equals(r.readLine())) {
+					return null;
+				}
+				j.bucket = r.readLine();
+				j.key = r.readLine();
+				j.file = r.readLine();
+				j.size = Long.parseLong(r.readLine());
+				j.mtime = Long.parseLong(r.readLine());
+				j.uploadId = r.readLine();
+				j.partSize = Long.parseLong(r.readLine());
+				String line;
+				while ((line = r.readLine()) != null) {
+					String[] f = line.split(" ");
+					// a torn last line from a killed run is just a part to upload again
+					if (f.length == 3 && f[0].equals("part")) {
+						int n = Integer.parseInt(f[1]);
+						j.parts.put(n, new PartETag(n, f[2]));
+					}
+				}
+			} catch (NumberFormatException | NullPointerException e) {
+				return null;
+			}
+			return j;
+		}
+
+		boolean matches(String bucket, String key, File file) {
+			return this.bucket.equals(bucket) && this.key.equals(key) && this.file.equals(file.getAbsolutePath())
+					&& this.size == file.length() && this.mtime == file.lastModified();
+		}
+
+		private void open(boolean append) throws IOException {
+			out = new FileOutputStream(path, append);
+			writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		}
+
+		synchronized void append(PartETag etag) throws IOException {
+			if (closed) {
+				throw new IOException("journal " + path + " is closed");
+			}
+			if (writer == null) {
+				open(true);
+			}
+			parts.put(etag.getPartNumber(), etag);
+			writer.write("part " + etag.getPartNumber() + " " + etag.getETag() + "\n");
+			sync();
+		}
+
+		private void sync() throws IOException {
+			writer.flush();
+			out.getFD().sync();
+		}
+
+		// release the file, the journal stays on disk for the next run
+		synchronized void close() throws IOException {
+			closed = true;
+			if (writer != null) {
+				writer.close();
+				writer = null;
+			}
+		}
+
+		synchronized void delete() throws IOException {
+			close();
+			if (!path.delete()) {
+				throw new IOException("can't delete journal " + path);
+			}
+		}
+	}
+}
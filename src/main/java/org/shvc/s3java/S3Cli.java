@@ -3,6 +3,9 @@ package org.shvc.s3java;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.HttpMethod;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.event.ProgressEventType;
+import com.amazonaws.event.ProgressListener;
 import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.AnonymousAWSCredentials;
@@ -10,28 +13,74 @@ import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.internal.SkipMd5CheckStrategy;
 import com.amazonaws.services.s3.model.*;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
 import com.amazonaws.services.s3.transfer.Upload;
-import com.amazonaws.services.s3.model.DeleteObjectsRequest;
-import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.InputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.net.URL;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Stream;
 import java.time.Instant;
 
 public class S3Cli {
 	private AmazonS3 s3;
 	private boolean presign;
 	private long expire;
+	private boolean exitOnError = true;
+	private int transferBufferSize = DEFAULT_TRANSFER_BUFFER_SIZE;
+	private boolean fsync = false;
+	private boolean verify = false;
+	// the SDK's GET MD5 check property before verify turned it off
+	private String skipMd5Before;
+	private boolean decompress = true;
+	// asks for the x-amz-checksum-* stored with the Object
+	private static final String CHECKSUM_MODE = "x-amz-checksum-mode";
+	private MetadataCache cache;
+	private final AtomicInteger failures = new AtomicInteger();
+	private AsyncS3 async;
+	private Throttle throttle;
+	private Presigner presigner;
+
+	public static final int DEFAULT_TRANSFER_BUFFER_SIZE = 1 << 20;
 
 	public S3Cli(AmazonS3 s3) {
 		this.s3 = s3;
@@ -44,7 +93,165 @@ public class S3Cli {
 		this.expire = exp;
 	}
 
-	public static void main(String[] args) {
+	public AmazonS3 getS3() {
+		return s3;
+	}
+
+	// non-blocking backend for many requests in flight, null if not selected
+	public AsyncS3 getAsync() {
+		return async;
+	}
+
+	public void setAsync(AsyncS3 async) {
+		this.async = async;
+	}
+
+	// client side flow control of the clients, its counters are reported by bulk operations
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	private void throttleSummary() {
+		if (throttle != null) {
+			System.out.println(java.time.Clock.systemUTC().instant() + " throttle " + throttle.summary());
+		}
+	}
+
+	/**
+	 * exit the JVM on the first failed operation(default), or report the
+	 * failure to the caller so a batch of keys can carry on
+	 */
+	public void setExitOnError(boolean exitOnError) {
+		this.exitOnError = exitOnError;
+	}
+
+	/**
+	 * buffer size of the download copy loop, and whether a downloaded file is
+	 * fsync'ed before it is reported as done
+	 */
+	public void setTransferOptions(int bufferSize, boolean fsync) {
+		this.transferBufferSize = bufferSize > 0 ? bufferSize : DEFAULT_TRANSFER_BUFFER_SIZE;
+		this.fsync = fsync;
+	}
+	/**
+	 * presign with a cached signing key instead of the SDK's
+	 * generatePresignedUrl
+	 */
+	public void setPresigner(Presigner presigner) {
+		this.presigner = presigner;
+	}
+
+	/**
+	 * decompress downloads of Objects uploaded with a codec(default), or keep
+	 * the stored bytes
+	 */
+	public void setDecompress(boolean decompress) {
+		this.decompress = decompress;
+	}
+
+	/**
+	 * verify downloads against the Object's x-amz-checksum-* or MD5 ETag, in
+	 * the copy loop; replaces the SDK's own MD5 check, which only covers whole
+	 * single part Objects
+	 */
+	public void setVerify(boolean verify) {
+		// the SDK reads the JVM wide property per request, it must not outlive the
+		// command in a batch or daemon session
+		String name = SkipMd5CheckStrategy.DISABLE_GET_OBJECT_MD5_VALIDATION_PROPERTY;
+		if (verify && !this.verify) {
+			skipMd5Before = System.getProperty(name);
+			System.setProperty(name, "true");
+		} else if (!verify && this.verify) {
+			if (skipMd5Before == null) {
+				System.clearProperty(name);
+			} else {
+				System.setProperty(name, skipMd5Before);
+			}
+		}
+		this.verify = verify;
+	}
+
+	/**
+	 * checksums to verify a download with, part sized for a multipart Object;
+	 * null, after a warning, if the Object can't be verified
+	 */
+	private Checksum.Parts checksums(String bucket, String key, ObjectMetadata meta, Map<String, String> query) {
+		Checksum.Parts parts = Checksum.expected(meta, meta.getInstanceLength());
+		if (parts == null) {
+			System.err.println("can't verify " + bucket + "/" + key + ": no MD5 ETag or checksum");
+			return null;
+		}
+		if (parts.isComposite()) {
+			// parts are all the size of the first but the last
+			GetObjectMetadataRequest req = new GetObjectMetadataRequest(bucket, key).withPartNumber(1);
+			if (query != null) {
+				for (String hk : query.keySet()) {
+					String hv = query.get(hk);
+					if (!hk.equals("") && !hv.equals("")) {
+						req.putCustomQueryParameter(hk, hv);
+					}
+				}
+			}
+			if (!parts.setPartSize(s3.getObjectMetadata(req).getContentLength())) {
+				System.err.println("can't verify " + bucket + "/" + key + ": parts of different sizes");
+				return null;
+			}
+		}
+		return parts;
+	}
+
+	// check a finished download, a file that doesn't match is deleted
+	private static void check(Checksum.Parts parts, Path file) throws IOException {
+		try {
+			parts.check();
+		} catch (IOException e) {
+			Files.deleteIfExists(file);
+			throw e;
+		}
+	}
+
+
+	/**
+	 * answer head from cache and feed it from listings, null to disable
+	 */
+	public void setCache(MetadataCache cache) {
+		this.cache = cache;
+	}
+
+	MetadataCache getCache() {
+		return cache;
+	}
+
+	// record a listed Object in the metadata cache
+	void remember(String bucket, S3ObjectSummary o) {
+		if (cache != null) {
+			cache.put(bucket, o.getKey(), o.getSize(), o.getETag(),
+					o.getLastModified() == null ? 0 : o.getLastModified().getTime());
+		}
+	}
+
+	// drop a written or deleted Object from the metadata cache
+	void forget(String bucket, String key) {
+		if (cache != null) {
+			cache.remove(bucket, key);
+		}
+	}
+
+	// failed operations so far, lets a batch tell whether a command failed
+	public int getFailures() {
+		return failures.get();
+	}
+
+	private boolean fail(String message) {
+		System.err.println(message);
+		failures.incrementAndGet();
+		if (exitOnError) {
+			System.exit(1);
+		}
+		return false;
+	}
+
+	public static void main(String[] args) throws IOException {
 		ClientConfiguration cfg = new ClientConfiguration()
 				.withConnectionTimeout(10 * 1000)
 				.withSocketTimeout(10 * 1000)
@@ -59,7 +266,15 @@ public class S3Cli {
 		// v2 signer
 		cfg.setSignerOverride("S3SignerType");
 
-		String endpoint = "http://192.168.0.8:9000";
+		String endpoint = args.length > 0 ? args[0] : null;
+		StubServer stub = null;
+		if (endpoint == null) {
+			// no endpoint given, run against an in-process stub
+			stub = new StubServer();
+			stub.createBucket("bucket-name");
+			stub.start("127.0.0.1", 0);
+			endpoint = "http://127.0.0.1:" + stub.getPort();
+		}
 		String region = "";
 		String accessKey = "root";
 		String secretKey = "ChangeMe";
@@ -82,6 +297,9 @@ public class S3Cli {
 		S3Cli cli = new S3Cli(s3);
 
 		cli.listMyBuckets();
+		if (stub != null) {
+			stub.stop();
+		}
 	}
 
 	public void listMyBuckets() {
@@ -91,11 +309,96 @@ public class S3Cli {
 		}
 	}
 
+	// buffered stdout for bulk output, flush it when done
+	static PrintWriter stdout() {
+		return new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+	}
+
+	// fetch the next listing page in the background while the current one prints
+	private static ExecutorService prefetcher() {
+		return Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "s3java-list-prefetch");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
 	public void listObjectsV2(String bucket, String prefix, boolean all) {
-		ListObjectsV2Result result = s3.listObjectsV2(bucket, prefix);
-		List<S3ObjectSummary> objects = result.getObjectSummaries();
-		for (S3ObjectSummary o : objects) {
-			System.out.println("* " + o.getKey());
+		ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+		PrintWriter out = stdout();
+		ExecutorService prefetch = prefetcher();
+		try {
+			ListObjectsV2Result result = s3.listObjectsV2(req);
+			while (true) {
+				Future<ListObjectsV2Result> next = null;
+				if (all && result.isTruncated()) {
+					ListObjectsV2Request nextReq = new ListObjectsV2Request().withBucketName(bucket)
+							.withPrefix(prefix).withContinuationToken(result.getNextContinuationToken());
+					next = prefetch.submit(() -> s3.listObjectsV2(nextReq));
+				}
+				for (S3ObjectSummary o : result.getObjectSummaries()) {
+					remember(bucket, o);
+					out.print("* ");
+					out.println(o.getKey());
+				}
+				if (next == null) {
+					break;
+				}
+				out.flush();
+				result = next.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e.getCause() == null ? e : e.getCause());
+		} finally {
+			out.flush();
+			prefetch.shutdownNow();
+		}
+	}
+
+	// list all Objects with concurrent prefix shards, see ShardedLister
+	public void listObjectsV2(String bucket, String prefix, int shards, boolean ordered) {
+		PrintWriter out = stdout();
+		try {
+			new ShardedLister(s3, shards).list(bucket, prefix, ordered, page -> {
+				for (S3ObjectSummary o : page) {
+					remember(bucket, o);
+					out.print("* ");
+					out.println(o.getKey());
+				}
+			});
+		} catch (AmazonServiceException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		} finally {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Object count, bytes and size classes of a prefix and of its prefixes
+	 * down to depth levels, see DiskUsage
+	 */
+	public boolean diskUsage(String bucket, String prefix, int depth, int fanout, int concurrency, boolean human,
+			boolean histogram) {
+		long start = System.nanoTime();
+		DiskUsage du = new DiskUsage(s3, concurrency, depth, fanout);
+		PrintWriter out = stdout();
+		try {
+			Map<String, DiskUsage.Usage> rows = du.run(bucket, prefix);
+			DiskUsage.print(out, bucket, prefix, rows, human, histogram);
+			out.flush();
+			double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+			long objects = rows.get(prefix).objects;
+			System.err.printf("%s du %d Objects, %d list requests in %.3fs(%.1f Objects/s)%n",
+					java.time.Clock.systemUTC().instant(), objects, du.getRequests(), seconds, objects / seconds);
+			return true;
+		} catch (AmazonServiceException e) {
+			return fail(e.getErrorMessage());
+		} catch (Exception e) {
+			return fail(e.getMessage());
+		} finally {
+			out.flush();
 		}
 	}
 
@@ -105,52 +408,171 @@ public class S3Cli {
 		if (!prefix.equals("")) {
 			lsReq.setPrefix(prefix);
 		}
-		ObjectListing result = s3.listObjects(lsReq);
-		List<S3ObjectSummary> objects = result.getObjectSummaries();
-		for (S3ObjectSummary o : objects) {
-			System.out.println("* " + o.getKey());
+		PrintWriter out = stdout();
+		ExecutorService prefetch = prefetcher();
+		try {
+			ObjectListing result = s3.listObjects(lsReq);
+			while (true) {
+				Future<ObjectListing> next = null;
+				if (all && result.isTruncated()) {
+					ObjectListing current = result;
+					next = prefetch.submit(() -> s3.listNextBatchOfObjects(current));
+				}
+				for (S3ObjectSummary o : result.getObjectSummaries()) {
+					remember(bucketName, o);
+					out.print("* ");
+					out.println(o.getKey());
+				}
+				if (next == null) {
+					break;
+				}
+				out.flush();
+				result = next.get();
+			}
+		} catch (InterruptedException | ExecutionException e) {
+			throw new RuntimeException(e.getCause() == null ? e : e.getCause());
+		} finally {
+			out.flush();
+			prefetch.shutdownNow();
 		}
 	}
 
-	public void putObject(String bucketName, String key, InputStream input, String contentType,
+	public boolean putObject(String bucketName, String key, InputStream input, String contentType,
 			Map<String, String> metadata) {
 		try {
 			if (this.presign) {
-				// Set the presigned URL
-				java.util.Date expiration = new java.util.Date();
-				long expTimeMillis = Instant.now().toEpochMilli();
-				expTimeMillis += this.expire * 60 * 1000;
-				expiration.setTime(expTimeMillis);
-				URL url = s3.generatePresignedUrl(bucketName, key, expiration, HttpMethod.PUT);
-				System.out.println(url.toString());
-				return;
+				presignPut(bucketName, key);
+				return true;
 			}
-			ObjectMetadata objMetadata = new ObjectMetadata();
-			objMetadata.setContentType(contentType);
-			if (metadata != null) {
-				for (String hk : metadata.keySet()) {
-					String hv = metadata.get(hk);
-					if (!hk.equals("") && !hv.equals("")) {
-						objMetadata.addUserMetadata(hk, hv);
-					}
-				}
+			ObjectMetadata objMetadata = objectMetadata(contentType, metadata);
+			if (input instanceof java.io.ByteArrayInputStream) {
+				// without a Content-Length the SDK buffers the whole stream to count it
+				objMetadata.setContentLength(input.available());
 			}
 			PutObjectRequest request = new PutObjectRequest(bucketName, key, input, objMetadata);
 			// request.setMetadata(objMetadata);
 
 			s3.putObject(request);
+			forget(bucketName, key);
+			System.out.println(java.time.Clock.systemUTC().instant() + " upload " + bucketName + "/" + key);
+			return true;
+		} catch (AmazonServiceException e) {
+			return fail(e.getErrorMessage());
+		} catch (Exception e) {
+			return fail(e.getMessage());
+		}
+	}
+
+	// single PUT size limit, larger files are multipart uploads
+	public static final long MAX_PUT_SIZE = 5L << 30;
+
+	/**
+	 * upload a file with its length. The SDK reads it through a
+	 * ResettableInputStream, nothing is buffered in memory and a retry seeks
+	 * back to the start; files over MAX_PUT_SIZE are multipart uploads.
+	 *
+	 * @param codec compress the file on the way, its size is unknown then and
+	 *              it is uploaded like a stream; null for none
+	 */
+	public boolean putObject(String bucketName, String key, File file, String contentType,
+			Map<String, String> metadata, long partSize, int threads, Compression.Codec codec) {
+		if (!this.presign && codec != null) {
+			// sync compares the local size with the uncompressed one
+			Map<String, String> sized = new java.util.HashMap<String, String>();
+			if (metadata != null) {
+				sized.putAll(metadata);
+			}
+			sized.put(Compression.SIZE_METADATA, String.valueOf(file.length()));
+			try (InputStream input = new java.io.FileInputStream(file)) {
+				return putStream(bucketName, key, input, contentType, sized, partSize, threads, codec);
+			} catch (IOException e) {
+				return fail(e.getMessage());
+			}
+		}
+		if (!this.presign && file.length() > MAX_PUT_SIZE) {
+			return mpuObjects(bucketName, key, new String[] { file.getPath() }, contentType, metadata, partSize,
+					threads, 1);
+		}
+		try {
+			if (this.presign) {
+				presignPut(bucketName, key);
+				return true;
+			}
+			s3.putObject(new PutObjectRequest(bucketName, key, file).withMetadata(objectMetadata(contentType, metadata)));
+			forget(bucketName, key);
 			System.out.println(java.time.Clock.systemUTC().instant() + " upload " + bucketName + "/" + key);
+			return true;
+		} catch (AmazonServiceException e) {
+			return fail(e.getErrorMessage());
+		} catch (Exception e) {
+			return fail(e.getMessage());
+		}
+	}
+
+	/**
+	 * upload a stream of unknown length(stdin), a single PUT if it fits in
+	 * partSize, otherwise a multipart upload with threads parts in flight
+	 *
+	 * @param codec compress blocks of the stream on threads threads and record
+	 *              the codec in the user metadata, null for none
+	 */
+	public boolean putStream(String bucketName, String key, InputStream input, String contentType,
+			Map<String, String> metadata, long partSize, int threads, Compression.Codec codec) {
+		ExecutorService compressors = null;
+		try {
+			if (this.presign) {
+				presignPut(bucketName, key);
+				return true;
+			}
+			ObjectMetadata objMetadata = objectMetadata(contentType, metadata);
+			if (codec != null) {
+				objMetadata.addUserMetadata(Compression.METADATA, codec.name());
+				compressors = TaskRunner.newExecutor(threads);
+				input = Compression.compressing(codec, input, compressors, Compression.DEFAULT_BLOCK_SIZE, threads);
+			}
+			new StreamUpload(s3, partSize, threads).upload(bucketName, key, input, objMetadata);
+			forget(bucketName, key);
+			return true;
 		} catch (AmazonServiceException e) {
-			// The call was transmitted successfully, but Amazon S3 couldn't process it, so
-			// it returned an error response.
-			e.printStackTrace();
+			return fail(e.getErrorMessage());
 		} catch (Exception e) {
-			// Amazon S3 couldn't be contacted for a response, or the client couldn't parse
-			// the response from Amazon S3.
-			e.printStackTrace();
+			return fail(e.getMessage());
+		} finally {
+			if (compressors != null) {
+				compressors.shutdownNow();
+			}
 		}
 	}
 
+	private void presignPut(String bucketName, String key) {
+		System.out.println(presignUrl(bucketName, key, HttpMethod.PUT));
+	}
+
+	private String presignUrl(String bucketName, String key, HttpMethod method) {
+		if (presigner != null) {
+			// --parallel workers share it
+			synchronized (presigner) {
+				return presigner.presign(method, bucketName, key);
+			}
+		}
+		java.util.Date expiration = new java.util.Date(Instant.now().toEpochMilli() + this.expire * 60 * 1000);
+		return s3.generatePresignedUrl(bucketName, key, expiration, method).toString();
+	}
+
+	private static ObjectMetadata objectMetadata(String contentType, Map<String, String> metadata) {
+		ObjectMetadata objMetadata = new ObjectMetadata();
+		objMetadata.setContentType(contentType);
+		if (metadata != null) {
+			for (String hk : metadata.keySet()) {
+				String hv = metadata.get(hk);
+				if (!hk.equals("") && !hv.equals("")) {
+					objMetadata.addUserMetadata(hk, hv);
+				}
+			}
+		}
+		return objMetadata;
+	}
+
 	private String lastLine = "";
 
 	private void print(String line) {
@@ -189,52 +611,280 @@ public class S3Cli {
 
 	public void mpuObject(String bucket, String key, String filename, String contentType, Map<String, String> metadata,
 			long partSize) {
-		File inputFile = new File(filename);
-		if (key.equals("")) {
-			key = inputFile.getName();
+		mpuObjects(bucket, key, new String[] { filename }, contentType, metadata, partSize, DEFAULT_MPU_THREADS,
+				DEFAULT_MPU_FILES);
+	}
+
+	public static final int DEFAULT_MPU_THREADS = 10;
+	public static final int DEFAULT_MPU_FILES = 4;
+
+	private TransferManager tm;
+	private long tmPartSize;
+	private int tmThreads;
+
+	// one TransferManager serves all uploads of this S3Cli, it's only rebuilt
+	// when the part size or the pool size changes
+	synchronized TransferManager transferManager(long partSize, int threads) {
+		if (tm != null && tmPartSize == partSize && tmThreads == threads) {
+			return tm;
 		}
+		if (tm != null) {
+			tm.shutdownNow(false);
+		}
+		tm = TransferManagerBuilder.standard()
+				.withMinimumUploadPartSize(partSize)
+				.withS3Client(s3)
+				.withExecutorFactory(() -> Executors.newFixedThreadPool(threads, r -> {
+					Thread t = new Thread(r, "s3java-transfer");
+					t.setDaemon(true);
+					return t;
+				}))
+				.build();
+		tmPartSize = partSize;
+		tmThreads = threads;
+		return tm;
+	}
+
+	/**
+	 * release the TransferManager thread pool, the S3 client stays open
+	 */
+	public synchronized void shutdown() {
+		if (tm != null) {
+			tm.shutdownNow(false);
+			tm = null;
+		}
+	}
+
+	/**
+	 * upload files and directory trees through the shared TransferManager. A
+	 * single file is uploaded as key(or key + file name if key is empty or ends
+	 * with /), other files as key + file name and directory content as key +
+	 * relative path.
+	 *
+	 * @param threads TransferManager pool size, bounds the parts in flight
+	 * @param files   files in flight
+	 */
+	public boolean mpuObjects(String bucket, String key, String[] paths, String contentType,
+			Map<String, String> metadata, long partSize, int threads, int files) {
+		TransferManager manager = transferManager(partSize, threads);
+		MpuProgress progress = new MpuProgress(bucket, files);
 		try {
-			PutObjectRequest request = new PutObjectRequest(bucket, key, inputFile);
-			ObjectMetadata objectMetadata = new ObjectMetadata();
-			objectMetadata.setContentType(contentType);
-			if (metadata != null) {
-				for (String hk : metadata.keySet()) {
-					String hv = metadata.get(hk);
-					if (!hk.equals("") && !hv.equals("")) {
-						objectMetadata.addUserMetadata(hk, hv);
+			forEachFile(key, paths, (file, objectKey) -> mpuFile(manager, progress, bucket, objectKey, file,
+					contentType, metadata));
+		} catch (Exception e) {
+			System.err.println(e.getMessage());
+			progress.await();
+			return fail("upload failed");
+		}
+		if (progress.await() > 0) {
+			return fail("upload failed");
+		}
+		return true;
+	}
+
+	/**
+	 * resumable multipart upload of files and directory trees(Keys as in
+	 * mpuObjects), one file at a time with threads parts in flight
+	 *
+	 * @param abort abort the journaled and all other unfinished uploads of the
+	 *              Keys instead of uploading
+	 */
+	public boolean mpuResumable(String bucket, String key, String[] paths, String contentType,
+			Map<String, String> metadata, long partSize, int threads, File journalDir, boolean abort) {
+		ResumableUpload resumable = new ResumableUpload(s3, journalDir, threads);
+		try {
+			forEachFile(key, paths, (file, objectKey) -> {
+				if (abort) {
+					resumable.abort(bucket, objectKey, file);
+					return;
+				}
+				try {
+					resumable.upload(bucket, objectKey, file, objectMetadata(contentType, metadata), partSize);
+				} finally {
+					forget(bucket, objectKey);
+				}
+			});
+			return true;
+		} catch (AmazonServiceException e) {
+			return fail(e.getErrorMessage());
+		} catch (Exception e) {
+			return fail(e.getMessage());
+		}
+	}
+
+	interface FileAction {
+		void accept(File file, String key) throws Exception;
+	}
+
+	// map files and directory trees to Keys, see mpuObjects
+	private void forEachFile(String key, String[] paths, FileAction action) throws Exception {
+		for (String path : paths) {
+			File file = new File(path);
+			if (file.isDirectory()) {
+				Path root = file.toPath();
+				String prefix = key.equals("") || key.endsWith("/") ? key : key + "/";
+				try (Stream<Path> tree = Files.walk(root)) {
+					Iterator<Path> it = tree.filter(Files::isRegularFile).iterator();
+					while (it.hasNext()) {
+						Path p = it.next();
+						String rel = root.relativize(p).toString().replace(File.separatorChar, '/');
+						action.accept(p.toFile(), prefix + rel);
 					}
 				}
+			} else {
+				String objectKey = key;
+				if (key.equals("") || key.endsWith("/") || paths.length > 1) {
+					objectKey = key + file.getName();
+				}
+				action.accept(file, objectKey);
 			}
-			request.setMetadata(objectMetadata);
+		}
+	}
+
+	private void mpuFile(TransferManager manager, MpuProgress progress, String bucket, String key, File file,
+			String contentType, Map<String, String> metadata) {
+		PutObjectRequest request = new PutObjectRequest(bucket, key, file);
+		request.setMetadata(objectMetadata(contentType, metadata));
 
-			TransferManager tm = TransferManagerBuilder.standard()
-					.withMinimumUploadPartSize(partSize)
-					.withS3Client(s3)
-					.build();
+		MpuProgress.Tracker tracker = progress.track(key);
+		request.setGeneralProgressListener(tracker);
+		try {
 			// TransferManager processes all transfers asynchronously, so this call returns
 			// immediately.
-			Upload upload = tm.upload(request);
+			tracker.watch(manager.upload(request));
+		} catch (Exception e) {
+			tracker.finish(e);
+		}
+	}
+
+	// aggregate progress of concurrent uploads from their ProgressListener events
+	private class MpuProgress {
+		private final String bucket;
+		private final int files;
+		private final Semaphore inflight;
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong completed = new AtomicLong();
+		private final ConcurrentLinkedQueue<Tracker> failures = new ConcurrentLinkedQueue<Tracker>();
+		private final Set<Tracker> running = ConcurrentHashMap.newKeySet();
+		private final ExecutorService waiters = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "s3java-transfer-wait");
+			t.setDaemon(true);
+			return t;
+		});
+		private volatile long lastReport;
+		// no progress line after the final one
+		private boolean done;
 
-			// Optionally, wait for the upload to finish before continuing.
-			// upload.waitForCompletion();
-			while (!upload.isDone()) {
-				Thread.sleep(1000);
-				animate(upload.getState().toString() + ": " + (int) upload.getProgress().getPercentTransferred() + "%");
+		MpuProgress(String bucket, int files) {
+			this.bucket = bucket;
+			this.files = Math.max(1, files);
+			this.inflight = new Semaphore(this.files);
+		}
+
+		// blocks while files uploads are in flight
+		Tracker track(String key) {
+			inflight.acquireUninterruptibly();
+			return new Tracker(key);
+		}
+
+		private void report() {
+			long now = System.nanoTime();
+			if (now - lastReport < 200_000_000L) {
+				return;
+			}
+			lastReport = now;
+			long transferred = transferred();
+			synchronized (S3Cli.this) {
+				if (!done) {
+					animate("uploaded " + completed.get() + " files, " + (transferred >> 20) + "MB");
+				}
+			}
+		}
+
+		// a finished upload moves its bytes from running to bytes under the same lock
+		private synchronized long transferred() {
+			long transferred = bytes.get();
+			for (Tracker t : running) {
+				transferred += t.upload.getProgress().getBytesTransferred();
+			}
+			return transferred;
+		}
+
+		// wait for all uploads and return the number of failures
+		int await() {
+			inflight.acquireUninterruptibly(files);
+			inflight.release(files);
+			waiters.shutdown();
+			synchronized (S3Cli.this) {
+				done = true;
+				if (lastReport != 0) {
+					// end the progress line with the totals
+					animate("uploaded " + completed.get() + " files, " + (bytes.get() >> 20) + "MB");
+					System.out.println();
+				}
+			}
+			int count = 0;
+			for (Tracker t : failures) {
+				System.err.println("\r" + bucket + "/" + t.key + ": " + t.error.getMessage());
+				count++;
+			}
+			return count;
+		}
+
+		// progress events trigger the report, completion is taken from the Upload
+		// itself: TransferManager doesn't fire transfer events for every failure
+		class Tracker implements ProgressListener {
+			final String key;
+			volatile Upload upload;
+			Exception error;
+
+			Tracker(String key) {
+				this.key = key;
+			}
+
+			void watch(Upload upload) {
+				this.upload = upload;
+				running.add(this);
+				waiters.execute(() -> {
+					try {
+						upload.waitForCompletion();
+						finish(null);
+					} catch (Exception e) {
+						finish(e);
+					}
+				});
+			}
+
+			void finish(Exception e) {
+				error = e;
+				forget(bucket, key);
+				if (upload != null) {
+					synchronized (MpuProgress.this) {
+						bytes.addAndGet(upload.getProgress().getBytesTransferred());
+						running.remove(this);
+					}
+				}
+				if (e == null) {
+					completed.incrementAndGet();
+					synchronized (S3Cli.this) {
+						System.out.println("\r" + java.time.Clock.systemUTC().instant() + " upload " + bucket + "/" + key);
+					}
+				} else {
+					failures.add(this);
+				}
+				inflight.release();
+			}
+
+			@Override
+			public void progressChanged(ProgressEvent event) {
+				if (event.getEventType() == ProgressEventType.REQUEST_BYTE_TRANSFER_EVENT && upload != null) {
+					report();
+				}
 			}
-			tm.shutdownNow(false);
-			System.out.println("\r" + java.time.Clock.systemUTC().instant() + " upload " + bucket + "/" + key);
-		} catch (AmazonServiceException e) {
-			// The call was transmitted successfully, but Amazon S3 couldn't process it, so
-			// it returned an error response.
-			e.printStackTrace();
-		} catch (Exception e) {
-			// Amazon S3 couldn't be contacted for a response, or the client couldn't parse
-			// the response from Amazon S3.
-			e.printStackTrace();
 		}
 	}
 
-	public void getObject(String bucketName, String key, Map<String, String> query) {
+	public boolean getObject(String bucketName, String key, Map<String, String> query) {
 		try {
 			String filename = new File(key).getName();
 			GetObjectRequest req = new GetObjectRequest(bucketName, key);
@@ -248,40 +898,369 @@ public class S3Cli {
 			}
 
 			if (this.presign) {
-				// Set the presigned URL to expire after one hour.
-				java.util.Date expiration = new java.util.Date();
-				long expTimeMillis = Instant.now().toEpochMilli();
-				expTimeMillis += this.expire * 60 * 1000;
-				expiration.setTime(expTimeMillis);
-				URL url = s3.generatePresignedUrl(bucketName, key, expiration, HttpMethod.GET);
-				System.out.println(url.toString());
-				return;
+				System.out.println(presignUrl(bucketName, key, HttpMethod.GET));
+				return true;
 			}
 
+			if (verify) {
+				req.putCustomRequestHeader(CHECKSUM_MODE, "ENABLED");
+			}
 			S3Object o = s3.getObject(req);
-			S3ObjectInputStream s3is = o.getObjectContent();
-			FileOutputStream fos = new FileOutputStream(filename);
-			byte[] buf = new byte[4096];
-			int length = 0;
-			while ((length = s3is.read(buf)) > 0) {
-				fos.write(buf, 0, length);
-			}
-			s3is.close();
-			fos.close();
-			System.out.println(java.time.Clock.systemUTC().instant() + " download " + filename);
+			Checksum.Parts parts = verify ? checksums(bucketName, key, o.getObjectMetadata(), query) : null;
+			Compression.Codec codec = decompress ? Compression.of(o.getObjectMetadata()) : null;
+			try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				transfer(o.getObjectContent(), channel, 0, parts == null ? null : parts.cursor(0), codec);
+				if (fsync) {
+					channel.force(true);
+				}
+			}
+			if (parts != null) {
+				check(parts, Paths.get(filename));
+			}
+			System.out.println(java.time.Clock.systemUTC().instant() + " download " + filename
+					+ (codec != null ? " decompressed " + codec : "") + (parts != null ? " verified " + parts.name() : ""));
+			return true;
 		} catch (AmazonServiceException e) {
-			System.err.println(e.getErrorMessage());
-			System.exit(1);
+			return fail(e.getErrorMessage());
 		} catch (FileNotFoundException e) {
-			System.err.println(e.getMessage());
-			System.exit(1);
+			return fail(e.getMessage());
 		} catch (Exception e) {
-			System.err.println(e.getMessage());
-			System.exit(1);
+			return fail(e.getMessage());
+		}
+	}
+
+	public boolean getObject(String bucketName, String key, Map<String, String> query, long partSize, int concurrency) {
+		if (this.presign || concurrency <= 1 || partSize <= 0) {
+			return getObject(bucketName, key, query);
+		}
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		File temp = null;
+		try {
+			try {
+				String filename = new File(key).getName();
+				GetObjectMetadataRequest metaReq = new GetObjectMetadataRequest(bucketName, key);
+				if (query != null) {
+					for (String hk : query.keySet()) {
+						String hv = query.get(hk);
+						if (!hk.equals("") && !hv.equals("")) {
+							metaReq.putCustomQueryParameter(hk, hv);
+						}
+					}
+				}
+				if (verify) {
+					metaReq.putCustomRequestHeader(CHECKSUM_MODE, "ENABLED");
+				}
+				ObjectMetadata meta = s3.getObjectMetadata(metaReq);
+				long size = meta.getContentLength();
+				if (size <= partSize || (decompress && Compression.of(meta) != null)) {
+					// a compressed Object is decompressed in order
+					return getObject(bucketName, key, query);
+				}
+				Checksum.Parts expected = verify ? checksums(bucketName, key, meta, query) : null;
+				if (expected != null && !expected.isComposite()) {
+					// a checksum of the whole Object can only be computed in order
+					return getObject(bucketName, key, query);
+				}
+				if (expected != null) {
+					// every Range a whole number of parts, each verified on its own
+					partSize = Math.max(1, Math.round((double) partSize / expected.getPartSize())) * expected.getPartSize();
+				}
+
+				int parts = (int) ((size + partSize - 1) / partSize);
+				ExecutorService pool = rangePool();
+				// the threads are shared, at most concurrency Ranges of this Object in flight
+				Semaphore inflight = new Semaphore(Math.min(concurrency, parts));
+				AtomicBoolean failed = new AtomicBoolean();
+				// Ranges go to a temporary file next to the target, moved over it once complete and verified
+				File target = new File(filename).getAbsoluteFile();
+				temp = new File(target.getParentFile(), "." + target.getName() + ".s3java");
+				try (RandomAccessFile raf = new RandomAccessFile(temp, "rw")) {
+					// preallocate so every part can be written at its own offset
+					raf.setLength(size);
+					FileChannel channel = raf.getChannel();
+					for (long start = 0; start < size; start += partSize) {
+						GetObjectRequest req = new GetObjectRequest(bucketName, key)
+								.withRange(start, Math.min(start + partSize, size) - 1);
+						if (meta.getETag() != null) {
+							// fail instead of mixing parts if the Object changes during download
+							req.withMatchingETagConstraint(meta.getETag());
+						}
+						if (query != null) {
+							for (String hk : query.keySet()) {
+								String hv = query.get(hk);
+								if (!hk.equals("") && !hv.equals("")) {
+									req.putCustomQueryParameter(hk, hv);
+								}
+							}
+						}
+						final long position = start;
+						Checksum.Parts.Cursor cursor = expected == null ? null : expected.cursor(start);
+						inflight.acquire();
+						if (failed.get()) {
+							// the failed part is reported below, don't start the rest
+							break;
+						}
+						futures.add(pool.submit(() -> {
+							try {
+								return getRange(req, channel, position, cursor);
+							} catch (Exception e) {
+								failed.set(true);
+								throw e;
+							} finally {
+								inflight.release();
+							}
+						}));
+					}
+					long total = 0;
+					for (Future<Long> f : futures) {
+						total += f.get();
+					}
+					if (total != size) {
+						throw new IOException("short download " + total + "/" + size + " bytes");
+					}
+					if (fsync) {
+						channel.force(true);
+					}
+				}
+				if (expected != null) {
+					expected.check();
+				}
+				Files.move(temp.toPath(), target.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+						java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+				System.out.println(java.time.Clock.systemUTC().instant() + " download " + filename
+						+ (expected != null ? " verified " + expected.name() : ""));
+				return true;
+			} finally {
+				// stop the Ranges still running and drop the temporary file, before fail() may exit the JVM
+				for (Future<Long> f : futures) {
+					f.cancel(true);
+				}
+				if (temp != null) {
+					temp.delete();
+				}
+			}
+		} catch (AmazonServiceException e) {
+			return fail(e.getErrorMessage());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof AmazonServiceException) {
+				return fail(((AmazonServiceException) cause).getErrorMessage());
+			}
+			return fail(cause.getMessage());
+		} catch (Exception e) {
+			return fail(e.getMessage());
+		}
+	}
+
+	/**
+	 * download an Object into file through a temporary file next to it, so an
+	 * interrupted download never leaves a truncated file behind. The file gets
+	 * mtime as its last modified time.
+	 */
+	void download(String bucket, String key, File file, long mtime) throws IOException {
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs()) {
+			throw new IOException("can't create directory " + parent);
+		}
+		File temp = new File(parent, "." + file.getName() + ".s3java");
+		try {
+			GetObjectRequest req = new GetObjectRequest(bucket, key);
+			if (verify) {
+				req.putCustomRequestHeader(CHECKSUM_MODE, "ENABLED");
+			}
+			S3Object o = s3.getObject(req);
+			Checksum.Parts parts = verify ? checksums(bucket, key, o.getObjectMetadata(), null) : null;
+			Compression.Codec codec = decompress ? Compression.of(o.getObjectMetadata()) : null;
+			try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				transfer(o.getObjectContent(), channel, 0, parts == null ? null : parts.cursor(0), codec);
+				if (fsync) {
+					channel.force(true);
+				}
+			}
+			if (parts != null) {
+				parts.check();
+			}
+			if (!temp.setLastModified(mtime)) {
+				throw new IOException("can't set mtime of " + temp);
+			}
+			Files.move(temp.toPath(), file.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+					java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			temp.delete();
+		}
+	}
+
+	// download one Range and write it at position
+	private long getRange(GetObjectRequest req, FileChannel channel, long position, Checksum.Parts.Cursor cursor)
+			throws IOException {
+		S3Object o = s3.getObject(req);
+		if (o == null) {
+			throw new IOException("Object changed during download: " + req.getKey());
+		}
+		return transfer(o.getObjectContent(), channel, position, cursor);
+	}
+
+	/**
+	 * copy an Object stream into channel starting at position, through a
+	 * pooled direct buffer. Positional writes are safe to issue concurrently on
+	 * a shared FileChannel. The stream is always released: closed after a
+	 * complete read, aborted on failure so a half read connection is not handed
+	 * back to the pool. A cursor, if not null, checksums the bytes on their way
+	 * through.
+	 */
+	private long transfer(S3ObjectInputStream s3is, FileChannel channel, long position, Checksum.Parts.Cursor cursor)
+			throws IOException {
+		return transfer(s3is, channel, position, cursor, null);
+	}
+
+	/**
+	 * transfer, decompressed with codec if not null; the cursor checksums the
+	 * compressed bytes as they are read
+	 */
+	private long transfer(S3ObjectInputStream s3is, FileChannel channel, long position, Checksum.Parts.Cursor cursor,
+			Compression.Codec codec) throws IOException {
+		long written = 0;
+		boolean complete = false;
+		ByteBuffer buf = takeTransferBuffer();
+		try {
+			InputStream compressed = null;
+			ReadableByteChannel src;
+			if (codec == null) {
+				src = Channels.newChannel(s3is);
+			} else {
+				compressed = cursor == null ? s3is : new ChecksumInputStream(s3is, cursor);
+				src = Channels.newChannel(codec.decompress(compressed));
+				cursor = null;
+			}
+			// called on Buffer, the ByteBuffer overrides of Java 9+ don't exist on Java 8
+			((Buffer) buf).clear();
+			while (src.read(buf) >= 0) {
+				// fill the buffer before writing, one write per transferBufferSize bytes
+				if (buf.hasRemaining()) {
+					continue;
+				}
+				((Buffer) buf).flip();
+				if (cursor != null) {
+					cursor.update(buf);
+				}
+				while (buf.hasRemaining()) {
+					written += channel.write(buf, position + written);
+				}
+				((Buffer) buf).clear();
+			}
+			((Buffer) buf).flip();
+			if (cursor != null) {
+				cursor.update(buf);
+			}
+			while (buf.hasRemaining()) {
+				written += channel.write(buf, position + written);
+			}
+			if (compressed != null) {
+				// a decoder may stop at the end of the last frame, the checksum needs the rest
+				byte[] rest = new byte[8192];
+				while (compressed.read(rest) >= 0) {
+					// skip
+				}
+			}
+			complete = true;
+		} finally {
+			giveTransferBuffer(buf);
+			if (complete) {
+				s3is.close();
+			} else {
+				s3is.abort();
+			}
+		}
+		return written;
+	}
+
+	// feeds a cursor with the bytes read through it
+	private static final class ChecksumInputStream extends java.io.FilterInputStream {
+		private final Checksum.Parts.Cursor cursor;
+
+		ChecksumInputStream(InputStream in, Checksum.Parts.Cursor cursor) {
+			super(in);
+			this.cursor = cursor;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				cursor.update(ByteBuffer.wrap(new byte[] { (byte) b }));
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if (n > 0) {
+				cursor.update(ByteBuffer.wrap(b, off, n));
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// every byte must pass the checksum
+			byte[] b = new byte[(int) Math.min(n, 8192)];
+			int r = read(b, 0, b.length);
+			return Math.max(r, 0);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+	}
+
+	// Range download threads of all Objects, idle ones exit after a minute
+	private ExecutorService rangePool;
+
+	private synchronized ExecutorService rangePool() {
+		if (rangePool == null) {
+			rangePool = Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "s3java-range");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		return rangePool;
+	}
+
+	// direct buffers of transfers done, taken by the next transfer on any thread
+	private final ConcurrentLinkedQueue<ByteBuffer> transferBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	// direct buffers skip the copy from heap into native memory on every write
+	private ByteBuffer takeTransferBuffer() {
+		ByteBuffer buf = transferBuffers.poll();
+		// one of an earlier --buffer-size is dropped
+		return buf != null && buf.capacity() == transferBufferSize ? buf : ByteBuffer.allocateDirect(transferBufferSize);
+	}
+
+	private void giveTransferBuffer(ByteBuffer buf) {
+		if (buf.capacity() == transferBufferSize) {
+			transferBuffers.offer(buf);
 		}
 	}
 
 	public void catObject(String bucketName, String key, Map<String, String> query) {
+		catObject(bucketName, key, query, null, 0);
+	}
+
+	// reused by cat, large enough to keep the syscall count low on big Objects
+	private byte[] catBuffer;
+
+	/**
+	 * stream an Object(or a part of it) to stdout
+	 *
+	 * @param range bytes to print: start-end, start- or -suffixLength, null for all
+	 * @param tail  print the last tail bytes if greater than 0
+	 */
+	public void catObject(String bucketName, String key, Map<String, String> query, String range, long tail) {
 		try {
 			GetObjectRequest req = new GetObjectRequest(bucketName, key);
 			if (query != null) {
@@ -294,84 +1273,297 @@ public class S3Cli {
 			}
 
 			if (this.presign) {
-				// Set the presigned URL to expire after one hour.
-				java.util.Date expiration = new java.util.Date();
-				long expTimeMillis = Instant.now().toEpochMilli();
-				expTimeMillis += this.expire * 60 * 1000;
-				expiration.setTime(expTimeMillis);
-				URL url = s3.generatePresignedUrl(bucketName, key, expiration, HttpMethod.GET);
-				System.out.println(url.toString());
+				System.out.println(presignUrl(bucketName, key, HttpMethod.GET));
 				return;
 			}
 
-			S3ObjectInputStream s3is = s3.getObject(req).getObjectContent();
-			ByteArrayOutputStream result = new ByteArrayOutputStream();
-			byte[] buf = new byte[4096];
-			int length = 0;
-			while ((length = s3is.read(buf)) > 0) {
-				result.write(buf, 0, length);
+			if (range != null && range.startsWith("-")) {
+				tail = Long.parseLong(range.substring(1));
+				range = null;
+			}
+			if (range != null) {
+				int dash = range.indexOf('-');
+				if (dash < 0) {
+					throw new IllegalArgumentException("invalid range " + range);
+				}
+				long start = Long.parseLong(range.substring(0, dash));
+				if (dash == range.length() - 1) {
+					req.setRange(start);
+				} else {
+					long end = Long.parseLong(range.substring(dash + 1));
+					if (end < start) {
+						throw new IllegalArgumentException("invalid range " + range + ", end before start");
+					}
+					req.setRange(start, end);
+				}
+			} else if (tail > 0) {
+				long size = s3.getObjectMetadata(bucketName, key).getContentLength();
+				if (size == 0) {
+					return;
+				}
+				req.setRange(Math.max(0, size - tail));
 			}
-			System.out.print(result.toString("UTF-8"));
-			s3is.close();
 
+			if (catBuffer == null) {
+				catBuffer = new byte[1 << 20];
+			}
+			System.out.flush();
+			S3Object o = s3.getObject(req);
+			S3ObjectInputStream s3is = o.getObjectContent();
+			// a Range of a compressed Object is printed as stored
+			Compression.Codec codec = decompress && req.getRange() == null ? Compression.of(o.getObjectMetadata())
+					: null;
+			try {
+				InputStream in = codec == null ? s3is : codec.decompress(s3is);
+				int length;
+				while ((length = in.read(catBuffer)) > 0) {
+					System.out.write(catBuffer, 0, length);
+					if (System.out.checkError()) {
+						// stdout closed(e.g. piped into head), stop reading and drop the connection
+						s3is.abort();
+						return;
+					}
+				}
+			} finally {
+				s3is.close();
+				System.out.flush();
+			}
 		} catch (AmazonServiceException e) {
-			System.err.println(e.getErrorMessage());
-			System.exit(1);
-		} catch (FileNotFoundException e) {
-			System.err.println(e.getMessage());
-			System.exit(1);
+			fail(e.getErrorMessage());
 		} catch (Exception e) {
-			System.err.println(e.getMessage());
-			System.exit(1);
+			fail(e.getMessage());
 		}
 	}
 
 	public void deleteObject(String bucketName, String key) {
 		try {
 			if (this.presign) {
-				// Set the presigned URL
-				java.util.Date expiration = new java.util.Date();
-				long expTimeMillis = Instant.now().toEpochMilli();
-				expTimeMillis += this.expire * 60 * 1000;
-				expiration.setTime(expTimeMillis);
-				URL url = s3.generatePresignedUrl(bucketName, key, expiration, HttpMethod.DELETE);
-				System.out.println(url.toString());
+				System.out.println(presignUrl(bucketName, key, HttpMethod.DELETE));
 				return;
 			}
 			s3.deleteObject(bucketName, key);
+			forget(bucketName, key);
 			System.out.println(java.time.Clock.systemUTC().instant() + " delete " + bucketName + "/" + key);
 		} catch (AmazonServiceException e) {
-			System.err.println(e.getErrorMessage());
-			System.exit(1);
+			fail(e.getErrorMessage());
 		}
 	}
 
 	public void deleteObjects(String bucketName, String[] keys, String key) {
-		try {
-			if (this.presign) {
-				// Set the presigned URL
-				System.out.println("not ready");
-				return;
+		if (this.presign) {
+			// a DELETE URL per Key, a DeleteObjects POST signs its body
+			String[] all = new String[keys.length + (key == null ? 0 : 1)];
+			System.arraycopy(keys, 0, all, all.length - keys.length, keys.length);
+			if (key != null) {
+				all[0] = key;
 			}
+			presignObjects(HttpMethod.DELETE, bucketName, null, false, null, all);
+			return;
+		}
 
-			ArrayList<KeyVersion> objects = new ArrayList<KeyVersion>();
-			for (int i = 0; i < keys.length; i++) {
-				objects.add(new KeyVersion(keys[i]));
-			}
-			if (key != null) {
-				objects.add(new KeyVersion(key));
+		// DeleteObjects takes at most 1000 keys, BatchDeleter splits them up
+		BatchDeleter deleter = new BatchDeleter(s3, bucketName, 1);
+		deleter.setCache(cache);
+		for (int i = 0; i < keys.length; i++) {
+			deleter.add(keys[i]);
+		}
+		if (key != null) {
+			deleter.add(key);
+		}
+		if (deleter.finish() > 0) {
+			fail("delete Objects failed");
+		}
+	}
+
+	// delete all Objects with prefix, keys stream from the listing into batches
+	public void deletePrefix(String bucketName, String prefix, int concurrency) {
+		if (this.presign) {
+			presignObjects(HttpMethod.DELETE, bucketName, prefix, true, null, null);
+			return;
+		}
+		BatchDeleter deleter = new BatchDeleter(s3, bucketName, concurrency);
+		deleter.setCache(cache);
+		try {
+			ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+			ListObjectsV2Result result;
+			do {
+				result = s3.listObjectsV2(req);
+				for (S3ObjectSummary o : result.getObjectSummaries()) {
+					deleter.add(o.getKey());
+				}
+				req.setContinuationToken(result.getNextContinuationToken());
+			} while (result.isTruncated());
+		} catch (AmazonServiceException e) {
+			deleter.finish();
+			fail(e.getErrorMessage());
+			return;
+		}
+		if (deleter.finish() > 0) {
+			fail("delete Objects failed");
+		}
+	}
+
+	// delete Objects listed one key per line in filename, - for stdin
+	public void deleteFromFile(String bucketName, String filename, int concurrency) {
+		if (this.presign) {
+			presignObjects(HttpMethod.DELETE, bucketName, null, false, filename, null);
+			return;
+		}
+		BatchDeleter deleter = new BatchDeleter(s3, bucketName, concurrency);
+		deleter.setCache(cache);
+		try (BufferedReader reader = filename.equals("-")
+				? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+				: Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					deleter.add(line);
+				}
 			}
+		} catch (IOException e) {
+			deleter.finish();
+			fail(e.getMessage());
+			return;
+		}
+		if (deleter.finish() > 0) {
+			fail("delete Objects failed");
+		}
+	}
 
-			DeleteObjectsRequest multiObjectDeleteRequest = new DeleteObjectsRequest(bucketName)
-					.withKeys(objects)
-					.withQuiet(true);
+	/**
+	 * presign a URL of method per Key, written to stdout as they are signed:
+	 * the Objects with prefix if list is set, else the lines of fromFile(-
+	 * for stdin) if given, else keys
+	 */
+	public boolean presignObjects(HttpMethod method, String bucketName, String prefix, boolean list, String fromFile,
+			String[] keys) {
+		long start = System.nanoTime();
+		long count = 0;
+		PrintWriter out = stdout();
+		try {
+			if (list) {
+				ExecutorService prefetch = prefetcher();
+				try {
+					ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucketName).withPrefix(prefix);
+					ListObjectsV2Result result = s3.listObjectsV2(req);
+					while (true) {
+						Future<ListObjectsV2Result> next = null;
+						if (result.isTruncated()) {
+							ListObjectsV2Request nextReq = new ListObjectsV2Request().withBucketName(bucketName)
+									.withPrefix(prefix).withContinuationToken(result.getNextContinuationToken());
+							next = prefetch.submit(() -> s3.listObjectsV2(nextReq));
+						}
+						for (S3ObjectSummary o : result.getObjectSummaries()) {
+							presign(method, bucketName, o.getKey(), out);
+							count++;
+						}
+						out.flush();
+						if (next == null) {
+							break;
+						}
+						result = next.get();
+					}
+				} finally {
+					prefetch.shutdownNow();
+				}
+			} else if (fromFile != null) {
+				try (BufferedReader reader = fromFile.equals("-")
+						? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+						: Files.newBufferedReader(Paths.get(fromFile), StandardCharsets.UTF_8)) {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (!line.isEmpty()) {
+							presign(method, bucketName, line, out);
+							count++;
+						}
+						// a pipe gets its URLs as soon as no more Keys are waiting
+						if (!reader.ready()) {
+							out.flush();
+						}
+					}
+				}
+			} else {
+				for (String key : keys) {
+					presign(method, bucketName, key, out);
+					count++;
+				}
+			}
+		} catch (AmazonServiceException e) {
+			out.flush();
+			return fail(e.getErrorMessage());
+		} catch (ExecutionException e) {
+			out.flush();
+			Throwable cause = e.getCause();
+			return fail(cause instanceof AmazonServiceException ? ((AmazonServiceException) cause).getErrorMessage()
+					: cause.getMessage());
+		} catch (IOException | InterruptedException e) {
+			out.flush();
+			return fail(e.getMessage());
+		}
+		out.flush();
+		if (count > 1) {
+			double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+			System.err.printf("presign %d URLs in %.3fs(%.0f URLs/s)%n", count, seconds, count / seconds);
+		}
+		return true;
+	}
 
-			s3.deleteObjects(multiObjectDeleteRequest);
+	private void presign(HttpMethod method, String bucketName, String key, PrintWriter out) throws IOException {
+		if (presigner == null) {
+			out.println(presignUrl(bucketName, key, method));
+			return;
+		}
+		synchronized (presigner) {
+			presigner.presign(method, bucketName, key, out);
+		}
+	}
 
-			System.out.println(java.time.Clock.systemUTC().instant() + " delete Objects success");
+	/**
+	 * server side copy of an Object, or with prefix of every Object with the
+	 * Prefix srcKey; move deletes the sources. An empty dstKey or one ending
+	 * with / takes the name of a single source Object.
+	 *
+	 * @param threshold   larger Objects are copied with UploadPartCopy
+	 * @param threads     part copies in flight
+	 * @param concurrency Object copies in flight of a prefix copy
+	 */
+	public boolean copyObjects(String srcBucket, String srcKey, String dstBucket, String dstKey, boolean prefix,
+			boolean move, long threshold, long partSize, int threads, int concurrency) {
+		if (this.presign) {
+			return fail("presign isn't supported for copy");
+		}
+		ServerCopy copy = new ServerCopy(s3, threshold, partSize, threads);
+		copy.setCache(cache);
+		try {
+			if (prefix) {
+				if (srcBucket.equals(dstBucket) && dstKey.startsWith(srcKey)) {
+					return fail("destination " + dstBucket + "/" + dstKey + " is inside the source prefix");
+				}
+				if (copy.copyPrefix(srcBucket, srcKey, dstBucket, dstKey, concurrency, move) > 0) {
+					return fail((move ? "move" : "copy") + " failed");
+				}
+				return true;
+			}
+			if (dstKey.equals("") || dstKey.endsWith("/")) {
+				dstKey = dstKey + srcKey.substring(srcKey.lastIndexOf('/') + 1);
+			}
+			if (move && srcBucket.equals(dstBucket) && srcKey.equals(dstKey)) {
+				return fail("can't move " + srcBucket + "/" + srcKey + " onto itself");
+			}
+			copy.copy(srcBucket, srcKey, dstBucket, dstKey);
+			if (move) {
+				s3.deleteObject(srcBucket, srcKey);
+				forget(srcBucket, srcKey);
+			}
+			System.out.println(java.time.Clock.systemUTC().instant() + (move ? " move " : " copy ") + srcBucket + "/"
+					+ srcKey + " " + dstBucket + "/" + dstKey);
+			return true;
 		} catch (AmazonServiceException e) {
-			System.err.println(e.getErrorMessage());
-			System.exit(1);
+			return fail(e.getErrorMessage());
+		} catch (Exception e) {
+			return fail(e.getMessage());
+		} finally {
+			copy.shutdown();
 		}
 	}
 
@@ -380,8 +1572,7 @@ public class S3Cli {
 			s3.deleteBucket(bucket);
 			System.out.println(java.time.Clock.systemUTC().instant() + " delete " + bucket);
 		} catch (AmazonServiceException e) {
-			System.err.println(e.getErrorMessage());
-			System.exit(1);
+			fail(e.getErrorMessage());
 		}
 	}
 
@@ -390,34 +1581,249 @@ public class S3Cli {
 			s3.createBucket(bucket);
 			System.out.println(java.time.Clock.systemUTC().instant() + " create " + bucket);
 		} catch (AmazonServiceException e) {
-			System.err.println(e.getErrorMessage());
-			System.exit(1);
+			fail(e.getErrorMessage());
 		}
 	}
 
-	public void head(String bucket, String key) {
+	public boolean head(String bucket, String key) {
 		try {
 			if (key.equals("")) {
 				boolean result = s3.doesBucketExistV2(bucket);
 				System.out.println(java.time.Clock.systemUTC().instant() + " head " + bucket + " " + result);
 			} else {
 				if (this.presign) {
-					// Set the presigned URL
-					java.util.Date expiration = new java.util.Date();
-					long expTimeMillis = Instant.now().toEpochMilli();
-					expTimeMillis += this.expire * 60 * 1000;
-					expiration.setTime(expTimeMillis);
-					URL url = s3.generatePresignedUrl(bucket, key, expiration, HttpMethod.HEAD);
-					System.out.println(url.toString());
-					return;
+					System.out.println(presignUrl(bucket, key, HttpMethod.HEAD));
+					return true;
 				}
-				boolean result = s3.doesObjectExist(bucket, key);
+				boolean result = cache == null ? s3.doesObjectExist(bucket, key) : headCached(bucket, key);
 				System.out
 						.println(java.time.Clock.systemUTC().instant() + " head " + bucket + "/" + key + " " + result);
 			}
+			return true;
 		} catch (AmazonServiceException e) {
-			System.err.println(e.getErrorMessage());
-			System.exit(1);
+			return fail(e.getErrorMessage());
+		}
+	}
+
+	// answer from the cache, a stale entry is revalidated with If-None-Match
+	private boolean headCached(String bucket, String key) {
+		MetadataCache.Entry e = cache.get(bucket, key);
+		if (e != null && cache.isFresh(e)) {
+			return e.exists;
+		}
+		GetObjectMetadataRequest req = new GetObjectMetadataRequest(bucket, key);
+		if (e != null && e.exists && !e.etag.isEmpty()) {
+			req.putCustomRequestHeader("If-None-Match", "\"" + e.etag + "\"");
+		}
+		try {
+			ObjectMetadata meta = s3.getObjectMetadata(req);
+			cache.put(bucket, key, meta.getContentLength(), meta.getETag(),
+					meta.getLastModified() == null ? 0 : meta.getLastModified().getTime());
+			return true;
+		} catch (AmazonServiceException ex) {
+			if (ex.getStatusCode() == 304) {
+				cache.touch(bucket, key, e);
+				return true;
+			}
+			if (ex.getStatusCode() == 404) {
+				cache.putMissing(bucket, key);
+				return false;
+			}
+			throw ex;
+		}
+	}
+
+	/**
+	 * head Objects through the AsyncS3 client, inflight requests pending at a
+	 * time; fresh cache entries answer without a request
+	 */
+	public boolean headAsync(String bucket, List<String> keys, int inflight) {
+		return eachAsync(keys, inflight, key -> {
+			MetadataCache.Entry e = cache == null ? null : cache.get(bucket, key);
+			if (e != null && cache.isFresh(e)) {
+				return CompletableFuture.completedFuture(e.exists);
+			}
+			return async.headObject(bucket, key).thenApply(meta -> {
+				if (cache != null) {
+					cache.put(bucket, key, meta.getContentLength(), meta.getETag(),
+							meta.getLastModified() == null ? 0 : meta.getLastModified().getTime());
+				}
+				return true;
+			}).exceptionally(t -> {
+				Throwable cause = AsyncS3.cause(t);
+				if (cause instanceof AmazonServiceException && ((AmazonServiceException) cause).getStatusCode() == 404) {
+					if (cache != null) {
+						cache.putMissing(bucket, key);
+					}
+					return false;
+				}
+				throw new CompletionException(cause);
+			});
+		}, (key, result) -> " head " + bucket + "/" + key + " " + result);
+	}
+
+	/**
+	 * delete Objects one DeleteObject request each through the AsyncS3 client,
+	 * inflight requests pending at a time
+	 */
+	public boolean deleteAsync(String bucket, List<String> keys, int inflight) {
+		return eachAsync(keys, inflight,
+				key -> async.deleteObject(bucket, key).whenComplete((v, t) -> forget(bucket, key)),
+				(key, v) -> " delete " + bucket + "/" + key);
+	}
+
+	/**
+	 * download Objects into the current directory through the AsyncS3 client,
+	 * inflight requests pending at a time. Each Object is written to a
+	 * temporary file and moved(or decompressed) into place off the client's
+	 * threads.
+	 */
+	public boolean downloadAsync(String bucket, List<String> keys, int inflight) {
+		return eachAsync(keys, inflight, key -> {
+			File target = new File(new File(key).getName()).getAbsoluteFile();
+			File temp = new File(target.getParentFile(), "." + target.getName() + ".s3java");
+			return async.getObject(bucket, key, temp).thenApplyAsync(meta -> {
+				Compression.Codec codec = decompress ? Compression.of(meta) : null;
+				try {
+					if (codec == null) {
+						if (fsync) {
+							force(temp.toPath());
+						}
+						Files.move(temp.toPath(), target.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+								java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+					} else {
+						try (InputStream in = codec.decompress(new java.io.FileInputStream(temp))) {
+							Files.copy(in, target.toPath(), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+						}
+						if (fsync) {
+							force(target.toPath());
+						}
+					}
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+				return codec;
+			}, rangePool()).whenComplete((codec, t) -> temp.delete());
+		}, (key, codec) -> " download " + new File(key).getName() + (codec != null ? " decompressed " + codec : ""));
+	}
+
+	private static void force(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * upload files(Key to file) one PutObject request each through the AsyncS3
+	 * client, inflight requests pending at a time
+	 */
+	public boolean uploadAsync(String bucket, Map<String, File> files, String contentType,
+			Map<String, String> metadata, int inflight) {
+		return eachAsync(new ArrayList<String>(files.keySet()), inflight,
+				key -> async.putObject(bucket, key, files.get(key), contentType, metadata)
+						.whenComplete((v, t) -> forget(bucket, key)),
+				(key, v) -> " upload " + bucket + "/" + key);
+	}
+
+	/**
+	 * listObjectsV2 through the AsyncS3 client, the next page is requested
+	 * before the current one prints
+	 */
+	public void listObjectsV2Async(String bucket, String prefix, boolean all) {
+		PrintWriter out = stdout();
+		try {
+			CompletableFuture<ListObjectsV2Result> page = async
+					.listObjectsV2(new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix));
+			while (page != null) {
+				ListObjectsV2Result result = page.join();
+				page = null;
+				if (all && result.isTruncated()) {
+					page = async.listObjectsV2(new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix)
+							.withContinuationToken(result.getNextContinuationToken()));
+				}
+				for (S3ObjectSummary o : result.getObjectSummaries()) {
+					remember(bucket, o);
+					out.print("* ");
+					out.println(o.getKey());
+				}
+				out.flush();
+			}
+		} catch (CompletionException e) {
+			Throwable cause = AsyncS3.cause(e);
+			throw cause instanceof RuntimeException ? (RuntimeException) cause : new RuntimeException(cause);
+		} finally {
+			out.flush();
+		}
+	}
+
+	// start op for every Key while at most inflight are pending, print a line per Key as it completes
+	private <T> boolean eachAsync(List<String> keys, int inflight, Function<String, CompletableFuture<T>> op,
+			BiFunction<String, T, String> line) {
+		int permits = Math.max(1, inflight);
+		Semaphore pending = new Semaphore(permits);
+		AtomicInteger failed = new AtomicInteger();
+		for (String key : keys) {
+			pending.acquireUninterruptibly();
+			CompletableFuture<T> future;
+			try {
+				future = op.apply(key);
+			} catch (RuntimeException e) {
+				future = new CompletableFuture<T>();
+				future.completeExceptionally(e);
+			}
+			future.whenComplete((result, t) -> {
+				if (t == null) {
+					System.out.println(java.time.Clock.systemUTC().instant() + line.apply(key, result));
+				} else {
+					Throwable cause = AsyncS3.cause(t);
+					System.err.println(key + ": " + (cause instanceof AmazonServiceException
+							? ((AmazonServiceException) cause).getErrorMessage()
+							: cause.getMessage()));
+					failed.incrementAndGet();
+				}
+				pending.release();
+			});
+		}
+		pending.acquireUninterruptibly(permits);
+		if (failed.get() > 0) {
+			return fail(failed.get() + " of " + keys.size() + " Objects failed");
+		}
+		return true;
+	}
+
+	/**
+	 * run a configured Bench against the Bucket and print its summary
+	 */
+	public boolean bench(Bench bench) {
+		try {
+			long errors = bench.run();
+			throttleSummary();
+			if (errors > 0) {
+				return fail("bench finished with errors");
+			}
+			return true;
+		} catch (AmazonServiceException e) {
+			return fail(e.getErrorMessage());
+		} catch (Exception e) {
+			return fail(e.getMessage());
+		}
+	}
+
+	/**
+	 * mirror dir to the Bucket prefix(upload) or the prefix to dir
+	 */
+	public boolean sync(Sync sync, boolean download) {
+		try {
+			long failed = download ? sync.download() : sync.upload();
+			throttleSummary();
+			if (failed > 0) {
+				return fail("sync failed");
+			}
+			return true;
+		} catch (AmazonServiceException e) {
+			return fail(e.getErrorMessage());
+		} catch (Exception e) {
+			return fail(e.getMessage());
 		}
 	}
 }
@@ -0,0 +1,251 @@
+package org.shvc.s3java;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side copy, no data goes through the client: CopyObject up to the
+ * threshold, above it a multipart upload of UploadPartCopy ranges with at
+ * most threads parts in flight across all copies. A prefix copy streams the
+ * listing into at most concurrency Object copies; a move deletes every
+ * source in DeleteObjects batches once its copy is done.
+ */
+public class ServerCopy {
+	// CopyObject limit
+	public static final long MAX_COPY_SIZE = 5L << 30;
+	public static final int MAX_PARTS = 10000;
+
+	private final AmazonS3 s3;
+	private final long threshold;
+	private final long partSize;
+	private final int threads;
+	private final Semaphore inflight;
+	private final ExecutorService parts;
+	private final AtomicLong copied = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private MetadataCache cache;
+
+	public ServerCopy(AmazonS3 s3, long threshold, long partSize, int threads) {
+		this.s3 = s3;
+		this.threshold = Math.min(Math.max(threshold, 0), MAX_COPY_SIZE);
+		this.partSize = Math.max(partSize, 5L << 20);
+		this.threads = Math.max(1, threads);
+		this.inflight = new Semaphore(this.threads);
+		this.parts = TaskRunner.newExecutor(this.threads);
+	}
+
+	// entries of overwritten and moved Objects are dropped
+	public void setCache(MetadataCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * copy an Object, its size and metadata from a HEAD
+	 */
+	public void copy(String srcBucket, String srcKey, String dstBucket, String dstKey)
+			throws IOException, InterruptedException {
+		ObjectMetadata meta = s3.getObjectMetadata(srcBucket, srcKey);
+		copy(srcBucket, srcKey, meta.getETag(), meta.getContentLength(), meta, dstBucket, dstKey);
+	}
+
+	/**
+	 * copy an Object of a listing, only a multipart copy needs a HEAD for the
+	 * metadata
+	 *
+	 * @param etag copy only this version of the source, null for any
+	 * @param meta source metadata, null to HEAD it if needed
+	 */
+	void copy(String srcBucket, String srcKey, String etag, long size, ObjectMetadata meta, String dstBucket,
+			String dstKey) throws IOException, InterruptedException {
+		if (size <= threshold) {
+			CopyObjectRequest req = new CopyObjectRequest(srcBucket, srcKey, dstBucket, dstKey);
+			if (etag != null) {
+				req.withMatchingETagConstraint(etag);
+			}
+			// null if the ETag constraint failed
+			if (s3.copyObject(req) == null) {
+				throw new IOException(srcBucket + "/" + srcKey + " changed while copying");
+			}
+		} else {
+			if (meta == null) {
+				meta = s3.getObjectMetadata(srcBucket, srcKey);
+				etag = etag == null ? meta.getETag() : etag;
+			}
+			copyParts(srcBucket, srcKey, etag, size, meta, dstBucket, dstKey);
+		}
+		if (cache != null) {
+			cache.remove(dstBucket, dstKey);
+		}
+		copied.incrementAndGet();
+		bytes.addAndGet(size);
+	}
+
+	private void copyParts(String srcBucket, String srcKey, String etag, long size, ObjectMetadata meta,
+			String dstBucket, String dstKey) throws IOException, InterruptedException {
+		// CopyObject keeps them, a new multipart upload takes what it is given
+		ObjectMetadata dstMeta = new ObjectMetadata();
+		dstMeta.setContentType(meta.getContentType());
+		dstMeta.setUserMetadata(meta.getUserMetadata());
+		if (meta.getCacheControl() != null) {
+			dstMeta.setCacheControl(meta.getCacheControl());
+		}
+		if (meta.getContentEncoding() != null) {
+			dstMeta.setContentEncoding(meta.getContentEncoding());
+		}
+		if (meta.getContentDisposition() != null) {
+			dstMeta.setContentDisposition(meta.getContentDisposition());
+		}
+		long part = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+		int count = (int) ((size + part - 1) / part);
+
+		String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(dstBucket, dstKey, dstMeta))
+				.getUploadId();
+		List<Future<CopyPartResult>> futures = new ArrayList<Future<CopyPartResult>>(count);
+		try {
+			for (int n = 1; n <= count; n++) {
+				long start = (n - 1) * part;
+				CopyPartRequest req = new CopyPartRequest().withSourceBucketName(srcBucket).withSourceKey(srcKey)
+						.withDestinationBucketName(dstBucket).withDestinationKey(dstKey).withUploadId(uploadId)
+						.withPartNumber(n).withFirstByte(start).withLastByte(Math.min(start + part, size) - 1);
+				if (etag != null) {
+					req.withMatchingETagConstraint(etag);
+				}
+				inflight.acquire();
+				futures.add(parts.submit(() -> {
+					try {
+						return s3.copyPart(req);
+					} finally {
+						inflight.release();
+					}
+				}));
+			}
+			List<PartETag> etags = new ArrayList<PartETag>(count);
+			for (Future<CopyPartResult> f : futures) {
+				CopyPartResult r = f.get();
+				if (r == null) {
+					throw new IOException(srcBucket + "/" + srcKey + " changed while copying");
+				}
+				etags.add(r.getPartETag());
+			}
+			CompleteMultipartUploadResult result = s3
+					.completeMultipartUpload(new CompleteMultipartUploadRequest(dstBucket, dstKey, uploadId, etags));
+			String expected = Checksum.compositeETag(etags);
+			if (expected != null && result.getETag() != null && result.getSSEAlgorithm() == null
+					&& !expected.equals(result.getETag())) {
+				throw new IOException(
+						"ETag mismatch: " + dstBucket + "/" + dstKey + " " + result.getETag() + ", expected " + expected);
+			}
+		} catch (ExecutionException e) {
+			drain(futures);
+			abortQuietly(dstBucket, dstKey, uploadId);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			drain(futures);
+			abortQuietly(dstBucket, dstKey, uploadId);
+			throw e;
+		}
+	}
+
+	/**
+	 * copy every Object with srcPrefix to dstPrefix + the rest of its Key,
+	 * concurrency Objects in flight
+	 *
+	 * @param move delete the sources that were copied
+	 * @return number of failed Objects
+	 */
+	public long copyPrefix(String srcBucket, String srcPrefix, String dstBucket, String dstPrefix, int concurrency,
+			boolean move) {
+		long start = System.nanoTime();
+		TaskRunner runner = new TaskRunner(concurrency);
+		BatchDeleter deleter = move ? new BatchDeleter(s3, srcBucket, 1) : null;
+		if (deleter != null) {
+			deleter.setCache(cache);
+		}
+		String op = move ? " move " : " copy ";
+		long failed = 0;
+		try {
+			ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(srcBucket).withPrefix(srcPrefix);
+			ListObjectsV2Result result;
+			do {
+				result = s3.listObjectsV2(req);
+				for (S3ObjectSummary o : result.getObjectSummaries()) {
+					String dstKey = dstPrefix + o.getKey().substring(srcPrefix.length());
+					runner.submit(o.getKey(), () -> {
+						copy(srcBucket, o.getKey(), o.getETag(), o.getSize(), null, dstBucket, dstKey);
+						if (deleter != null) {
+							synchronized (deleter) {
+								deleter.add(o.getKey());
+							}
+						}
+						System.out.println(java.time.Clock.systemUTC().instant() + op + srcBucket + "/" + o.getKey()
+								+ " " + dstBucket + "/" + dstKey);
+						return true;
+					});
+				}
+				req.setContinuationToken(result.getNextContinuationToken());
+			} while (result.isTruncated());
+		} catch (AmazonServiceException e) {
+			System.err.println(e.getErrorMessage());
+			failed++;
+		} finally {
+			failed += runner.await();
+			runner.shutdown();
+		}
+		if (deleter != null) {
+			failed += deleter.finish();
+		}
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		System.out.printf("%s%s%d Objects(%d bytes), %d failed in %.3fs(%.1f Objects/s, %.1f MB/s)%n",
+				java.time.Clock.systemUTC().instant(), op, copied.get(), bytes.get(), failed, seconds,
+				copied.get() / seconds, bytes.get() / seconds / (1 << 20));
+		return failed;
+	}
+
+	public void shutdown() {
+		parts.shutdownNow();
+	}
+
+	// wait for the parts still in flight before the upload is aborted
+	private static void drain(List<? extends Future<?>> futures) {
+		for (Future<?> f : futures) {
+			try {
+				f.get();
+			} catch (ExecutionException | InterruptedException e) {
+				// reported by the first failure
+			}
+		}
+	}
+
+	private void abortQuietly(String bucket, String key, String uploadId) {
+		try {
+			s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+		} catch (AmazonServiceException e) {
+			// already gone
+		}
+	}
+}
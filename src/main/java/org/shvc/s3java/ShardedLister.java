@@ -0,0 +1,220 @@
+package org.shvc.s3java;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * List a Bucket prefix as concurrent shards: one shard per common prefix
+ * discovered with a delimiter listing, plus one shard for the Objects
+ * directly under the prefix.
+ * In ordered mode pages are handed to the sink in key order from the
+ * calling thread, every shard buffers at most a few pages ahead of the
+ * sink. In unordered mode pages are handed over as soon as they arrive.
+ */
+public class ShardedLister {
+	public static final String DELIMITER = "/";
+
+	// pages a shard may list ahead of the sink in ordered mode
+	private static final int QUEUE_PAGES = 2;
+
+	private static final List<S3ObjectSummary> END = new ArrayList<S3ObjectSummary>(0);
+
+	private final AmazonS3 s3;
+	private final int concurrency;
+
+	public ShardedLister(AmazonS3 s3, int concurrency) {
+		this.s3 = s3;
+		this.concurrency = Math.max(1, concurrency);
+	}
+
+	/**
+	 * common prefixes one delimiter level below prefix, in key order
+	 */
+	public List<String> discover(String bucket, String prefix) {
+		List<String> prefixes = new ArrayList<String>();
+		ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix)
+				.withDelimiter(DELIMITER);
+		ListObjectsV2Result result;
+		do {
+			result = s3.listObjectsV2(req);
+			prefixes.addAll(result.getCommonPrefixes());
+			req.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+		return prefixes;
+	}
+
+	public void list(String bucket, String prefix, boolean ordered, Consumer<List<S3ObjectSummary>> sink)
+			throws Exception {
+		List<String> shards = discover(bucket, prefix);
+		if (ordered) {
+			listOrdered(bucket, prefix, shards, sink);
+		} else {
+			listUnordered(bucket, prefix, shards, sink);
+		}
+	}
+
+	// list one shard page by page, flat lists only the Objects directly under
+	// prefix
+	private void listShard(String bucket, String prefix, boolean flat, Consumer<List<S3ObjectSummary>> pages) {
+		ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+		if (flat) {
+			req.setDelimiter(DELIMITER);
+		}
+		ListObjectsV2Result result;
+		do {
+			result = s3.listObjectsV2(req);
+			if (!result.getObjectSummaries().isEmpty()) {
+				pages.accept(result.getObjectSummaries());
+			}
+			req.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+	}
+
+	private ExecutorService newPool(int threads) {
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "s3java-list-shard");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private void listUnordered(String bucket, String prefix, List<String> shards,
+			Consumer<List<S3ObjectSummary>> sink) throws Exception {
+		Consumer<List<S3ObjectSummary>> shared = page -> {
+			synchronized (sink) {
+				sink.accept(page);
+			}
+		};
+		ExecutorService pool = newPool(Math.min(concurrency, shards.size() + 1));
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(shards.size() + 1);
+			futures.add(pool.submit(() -> listShard(bucket, prefix, true, shared)));
+			for (String shard : shards) {
+				futures.add(pool.submit(() -> listShard(bucket, shard, false, shared)));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void listOrdered(String bucket, String prefix, List<String> shards,
+			Consumer<List<S3ObjectSummary>> sink) throws Exception {
+		AtomicReference<Exception> error = new AtomicReference<Exception>();
+		// the flat shard interleaves with all other shards and stays blocked on
+		// its queue until the sink catches up, give it a thread of its own
+		ExecutorService pool = newPool(Math.min(concurrency, shards.size()) + 1);
+		try {
+			BlockingQueue<List<S3ObjectSummary>> flat = submit(pool, bucket, prefix, true, error);
+			List<BlockingQueue<List<S3ObjectSummary>>> queues = new ArrayList<BlockingQueue<List<S3ObjectSummary>>>(
+					shards.size());
+			for (String shard : shards) {
+				queues.add(submit(pool, bucket, shard, false, error));
+			}
+
+			Cursor objects = new Cursor(flat, error);
+			for (int i = 0; i < shards.size(); i++) {
+				objects.drainBelow(shards.get(i), sink);
+				BlockingQueue<List<S3ObjectSummary>> queue = queues.get(i);
+				List<S3ObjectSummary> page;
+				while ((page = take(queue, error)) != END) {
+					sink.accept(page);
+				}
+				queues.set(i, null);
+			}
+			objects.drainBelow(null, sink);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private BlockingQueue<List<S3ObjectSummary>> submit(ExecutorService pool, String bucket, String prefix,
+			boolean flat, AtomicReference<Exception> error) {
+		BlockingQueue<List<S3ObjectSummary>> queue = new ArrayBlockingQueue<List<S3ObjectSummary>>(QUEUE_PAGES);
+		pool.execute(() -> {
+			try {
+				listShard(bucket, prefix, flat, page -> {
+					try {
+						queue.put(page);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("interrupted", e);
+					}
+				});
+			} catch (Exception e) {
+				error.compareAndSet(null, e);
+			} finally {
+				if (pool.isShutdown() || error.get() != null || Thread.currentThread().isInterrupted()) {
+					// listing failed or cancelled, the queue may be full and nobody taking from it
+					queue.offer(END);
+				} else {
+					try {
+						queue.put(END);
+					} catch (InterruptedException e) {
+						// cancelled while waiting, nobody is waiting for this shard any more
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		});
+		return queue;
+	}
+
+	private static List<S3ObjectSummary> take(BlockingQueue<List<S3ObjectSummary>> queue,
+			AtomicReference<Exception> error) throws Exception {
+		List<S3ObjectSummary> page = queue.take();
+		if (error.get() != null) {
+			throw error.get();
+		}
+		return page;
+	}
+
+	// walks the flat shard so its Objects can be merged between the other shards
+	private static class Cursor {
+		private final BlockingQueue<List<S3ObjectSummary>> queue;
+		private final AtomicReference<Exception> error;
+		private List<S3ObjectSummary> page;
+		private int index;
+
+		Cursor(BlockingQueue<List<S3ObjectSummary>> queue, AtomicReference<Exception> error) {
+			this.queue = queue;
+			this.error = error;
+		}
+
+		// hand every Object with a key below bound(all if null) to sink
+		void drainBelow(String bound, Consumer<List<S3ObjectSummary>> sink) throws Exception {
+			while (page != END) {
+				if (page == null || index == page.size()) {
+					page = take(queue, error);
+					index = 0;
+					continue;
+				}
+				int end = index;
+				while (end < page.size() && (bound == null || page.get(end).getKey().compareTo(bound) < 0)) {
+					end++;
+				}
+				if (end > index) {
+					sink.accept(page.subList(index, end));
+					index = end;
+				}
+				if (end < page.size()) {
+					return;
+				}
+			}
+		}
+	}
+}
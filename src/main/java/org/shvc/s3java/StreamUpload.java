@@ -0,0 +1,194 @@
+package org.shvc.s3java;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Upload of a stream of unknown length, e.g. stdin, in a fixed amount of
+ * memory. A stream that fits in one part is a single PUT with its
+ * Content-Length, a longer one a multipart upload with threads parts in
+ * flight. Parts are read into buffers of a pool shared by all uploads, the
+ * heap holds at most threads + 2 of them and a retry resends the buffer
+ * instead of reading the stream again.
+ */
+public class StreamUpload {
+	public static final int MAX_PARTS = 10000;
+	// byte[] size limit
+	public static final long MAX_PART_SIZE = Integer.MAX_VALUE - 8;
+
+	private static final BufferPool POOL = new BufferPool();
+
+	private final AmazonS3 s3;
+	private final int partSize;
+	private final int threads;
+
+	public StreamUpload(AmazonS3 s3, long partSize, int threads) {
+		if (partSize <= 0 || partSize > MAX_PART_SIZE) {
+			throw new IllegalArgumentException("part size " + partSize + " out of range(1B-2GB)");
+		}
+		this.s3 = s3;
+		this.partSize = (int) partSize;
+		this.threads = Math.max(1, threads);
+	}
+
+	public void upload(String bucket, String key, InputStream in, ObjectMetadata metadata)
+			throws IOException, InterruptedException {
+		byte[] buf = POOL.take(partSize);
+		int len = readFully(in, buf);
+		byte[] next = null;
+		int nextLen = 0;
+		if (len == buf.length) {
+			next = POOL.take(partSize);
+			nextLen = readFully(in, next);
+		}
+		if (nextLen == 0) {
+			POOL.give(next);
+			try {
+				metadata.setContentLength(len);
+				s3.putObject(new PutObjectRequest(bucket, key, new ByteArrayInputStream(buf, 0, len), metadata));
+			} finally {
+				POOL.give(buf);
+			}
+			System.out.println(java.time.Clock.systemUTC().instant() + " upload " + bucket + "/" + key);
+			return;
+		}
+
+		String uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata))
+				.getUploadId();
+		ExecutorService pool = TaskRunner.newExecutor(threads);
+		Semaphore inflight = new Semaphore(threads);
+		AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		List<Future<PartETag>> futures = new ArrayList<Future<PartETag>>();
+		try {
+			for (int part = 1; len > 0; part++) {
+				if (part > MAX_PARTS) {
+					throw new IOException("more than " + MAX_PARTS + " parts, use a larger part size");
+				}
+				inflight.acquire();
+				if (failure.get() != null) {
+					inflight.release();
+					break;
+				}
+				byte[] b = buf;
+				UploadPartRequest req = new UploadPartRequest().withBucketName(bucket).withKey(key)
+						.withUploadId(uploadId).withPartNumber(part)
+						.withInputStream(new ByteArrayInputStream(b, 0, len)).withPartSize(len)
+						.withLastPart(nextLen == 0);
+				futures.add(pool.submit(() -> {
+					try {
+						return s3.uploadPart(req).getPartETag();
+					} catch (Exception e) {
+						failure.compareAndSet(null, e);
+						throw e;
+					} finally {
+						POOL.give(b);
+						inflight.release();
+					}
+				}));
+				// read ahead while the part is sent, a full part may be the last one
+				buf = next;
+				len = nextLen;
+				if (buf != null && len == buf.length) {
+					next = POOL.take(partSize);
+					nextLen = readFully(in, next);
+				} else {
+					next = null;
+					nextLen = 0;
+				}
+			}
+			POOL.give(buf);
+			POOL.give(next);
+			List<PartETag> parts = new ArrayList<PartETag>(futures.size());
+			for (Future<PartETag> f : futures) {
+				parts.add(f.get());
+			}
+			CompleteMultipartUploadResult result = s3
+					.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, parts));
+			String etag = Checksum.compositeETag(parts);
+			if (etag != null && result.getETag() != null && result.getSSEAlgorithm() == null
+					&& !etag.equals(result.getETag())) {
+				throw new IOException(
+						"ETag mismatch: " + bucket + "/" + key + " " + result.getETag() + ", expected " + etag);
+			}
+		} catch (ExecutionException e) {
+			abortQuietly(bucket, key, uploadId);
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			abortQuietly(bucket, key, uploadId);
+			throw e;
+		} finally {
+			pool.shutdownNow();
+		}
+		System.out.println(java.time.Clock.systemUTC().instant() + " upload " + bucket + "/" + key + " "
+				+ futures.size() + " parts");
+	}
+
+	// read until buf is full or the stream ends
+	static int readFully(InputStream in, byte[] buf) throws IOException {
+		int n = 0;
+		while (n < buf.length) {
+			int r = in.read(buf, n, buf.length - n);
+			if (r < 0) {
+				break;
+			}
+			n += r;
+		}
+		return n;
+	}
+
+	private void abortQuietly(String bucket, String key, String uploadId) {
+		try {
+			s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+		} catch (AmazonServiceException e) {
+			// already gone
+		}
+	}
+
+	/**
+	 * part buffers kept for the next part and the next upload(batch and
+	 * daemon sessions), all of one size
+	 */
+	static final class BufferPool {
+		private final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+		private volatile int size;
+
+		byte[] take(int size) {
+			if (this.size != size) {
+				free.clear();
+				this.size = size;
+			}
+			byte[] buf = free.poll();
+			return buf != null && buf.length == size ? buf : new byte[size];
+		}
+
+		void give(byte[] buf) {
+			if (buf != null && buf.length == size) {
+				free.offer(buf);
+			}
+		}
+	}
+}
@@ -0,0 +1,856 @@
+package org.shvc.s3java;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * In-process S3 compatible stub server (path style only, no authentication).
+ * Objects are kept in memory, on the heap or in memory mapped files, enough
+ * of the API to run s3java against it. Latency and SlowDown errors can be
+ * injected to see how a client copes.
+ */
+public class StubServer {
+	static final class Obj {
+		// position 0, never moved: readers take a duplicate
+		final ByteBuffer data;
+		final String etag;
+		final long lastModified;
+		final Map<String, String> headers;
+		final long[] partSizes;
+
+		Obj(ByteBuffer data, String etag, Map<String, String> headers, long[] partSizes) {
+			this.data = data;
+			this.etag = etag;
+			this.lastModified = System.currentTimeMillis() / 1000 * 1000;
+			this.headers = headers;
+			this.partSizes = partSizes;
+		}
+	}
+
+	static final class Part {
+		final ByteBuffer data;
+		final String etag;
+		final long lastModified = System.currentTimeMillis();
+
+		Part(ByteBuffer data, String etag) {
+			this.data = data;
+			this.etag = etag;
+		}
+	}
+
+	static final class MultipartUpload {
+		final String bucket;
+		final String key;
+		final Map<String, String> headers;
+		final long initiated = System.currentTimeMillis();
+		final ConcurrentSkipListMap<Integer, Part> parts = new ConcurrentSkipListMap<Integer, Part>();
+
+		MultipartUpload(String bucket, String key, Map<String, String> headers) {
+			this.bucket = bucket;
+			this.key = key;
+			this.headers = headers;
+		}
+	}
+
+	static final class Reply {
+		int code = 200;
+		byte[] body;
+		// Object content, sent without a copy
+		ByteBuffer data;
+		final Map<String, String> headers = new HashMap<String, String>();
+	}
+
+	private final ConcurrentMap<String, ConcurrentSkipListMap<String, Obj>> buckets = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, Obj>>();
+	private final ConcurrentMap<String, MultipartUpload> uploads = new ConcurrentHashMap<String, MultipartUpload>();
+	private HttpServer server;
+	private ExecutorService pool;
+	private File dir;
+	private long latency;
+	private double throttle;
+
+	/**
+	 * keep Object data in files under dir mapped into memory, off the heap;
+	 * null(default) for byte arrays on the heap
+	 */
+	public void setStorage(File dir) {
+		this.dir = dir;
+	}
+
+	// delay every reply by millis
+	public void setLatency(long millis) {
+		this.latency = millis;
+	}
+
+	// answer this fraction(0-1) of requests with 503 SlowDown
+	public void setThrottle(double fraction) {
+		this.throttle = fraction;
+	}
+
+	public void createBucket(String bucket) {
+		buckets.putIfAbsent(bucket, new ConcurrentSkipListMap<String, Obj>());
+	}
+
+	public void start(String host, int port) throws IOException {
+		// without TCP_NODELAY a small reply waits for the client's delayed ACK(~40ms),
+		// read once when the first HttpServer is created
+		if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+			System.setProperty("sun.net.httpserver.nodelay", "true");
+		}
+		server = HttpServer.create(new InetSocketAddress(host, port), 1024);
+		pool = Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "s3java-stub");
+			t.setDaemon(true);
+			return t;
+		});
+		server.setExecutor(pool);
+		server.createContext("/", this::handle);
+		server.start();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		server.stop(0);
+		pool.shutdownNow();
+	}
+
+	public static void main(String[] args) throws IOException {
+		StubServer stub = new StubServer();
+		stub.start("127.0.0.1", args.length > 0 ? Integer.parseInt(args[0]) : 9000);
+		System.out.println("listen on http://127.0.0.1:" + stub.getPort());
+	}
+
+	private void handle(HttpExchange ex) throws IOException {
+		Reply reply;
+		try {
+			byte[] body = readBody(ex);
+			if (latency > 0) {
+				Thread.sleep(latency);
+			}
+			if (throttle > 0 && ThreadLocalRandom.current().nextDouble() < throttle) {
+				reply = error(503, "SlowDown", "Please reduce your request rate.");
+			} else {
+				reply = dispatch(ex, body);
+			}
+		} catch (org.xml.sax.SAXException e) {
+			// a body S3 wouldn't parse either(DOCTYPE included)
+			reply = error(400, "MalformedXML", String.valueOf(e.getMessage()));
+		} catch (Exception e) {
+			reply = error(500, "InternalError", String.valueOf(e.getMessage()));
+		}
+
+		Headers rsp = ex.getResponseHeaders();
+		rsp.set("x-amz-request-id", Long.toHexString(ThreadLocalRandom.current().nextLong()));
+		for (Map.Entry<String, String> h : reply.headers.entrySet()) {
+			rsp.set(h.getKey(), h.getValue());
+		}
+		boolean head = ex.getRequestMethod().equals("HEAD");
+		if (head || reply.body == null && reply.data == null || reply.code == 304 || reply.code == 204) {
+			if (!head) {
+				rsp.set("Content-Length", "0");
+			}
+			ex.sendResponseHeaders(reply.code, -1);
+		} else if (reply.data != null) {
+			ex.sendResponseHeaders(reply.code, reply.data.remaining() == 0 ? -1 : reply.data.remaining());
+			try (OutputStream out = ex.getResponseBody()) {
+				write(out, reply.data);
+			}
+		} else {
+			if (!rsp.containsKey("Content-Type")) {
+				rsp.set("Content-Type", "application/xml");
+			}
+			ex.sendResponseHeaders(reply.code, reply.body.length == 0 ? -1 : reply.body.length);
+			try (OutputStream out = ex.getResponseBody()) {
+				out.write(reply.body);
+			}
+		}
+		ex.close();
+	}
+
+	private Reply dispatch(HttpExchange ex, byte[] body) throws Exception {
+		String method = ex.getRequestMethod();
+		String path = ex.getRequestURI().getRawPath();
+		Map<String, String> query = parseQuery(ex.getRequestURI().getRawQuery());
+		Headers hdr = ex.getRequestHeaders();
+
+		String p = path.startsWith("/") ? path.substring(1) : path;
+		int slash = p.indexOf('/');
+		String bucket = decode(slash < 0 ? p : p.substring(0, slash));
+		String key = slash < 0 ? "" : decode(p.substring(slash + 1));
+
+		if (bucket.isEmpty()) {
+			return listBuckets();
+		}
+		if (key.isEmpty()) {
+			switch (method) {
+				case "PUT":
+					createBucket(bucket);
+					return new Reply();
+				case "HEAD":
+					return buckets.containsKey(bucket) ? new Reply() : error(404, "NoSuchBucket", bucket);
+				case "DELETE":
+					if (!buckets.containsKey(bucket)) {
+						return error(404, "NoSuchBucket", bucket);
+					}
+					if (!buckets.get(bucket).isEmpty()) {
+						return error(409, "BucketNotEmpty", bucket);
+					}
+					buckets.remove(bucket);
+					return status(204);
+				case "POST":
+					if (query.containsKey("delete")) {
+						return deleteObjects(bucket, body);
+					}
+					break;
+				case "GET":
+					if (query.containsKey("uploads")) {
+						return listUploads(bucket, query);
+					}
+					if (query.containsKey("location")) {
+						return xml(200, "<LocationConstraint/>");
+					}
+					return listObjects(bucket, query);
+				default:
+					break;
+			}
+			return error(405, "MethodNotAllowed", method);
+		}
+
+		ConcurrentSkipListMap<String, Obj> objects = buckets.get(bucket);
+		if (objects == null) {
+			return error(404, "NoSuchBucket", bucket);
+		}
+		switch (method) {
+			case "PUT":
+				if (query.containsKey("uploadId")) {
+					return uploadPart(query, hdr, body);
+				}
+				if (hdr.containsKey("x-amz-copy-source")) {
+					return copyObject(objects, key, hdr);
+				}
+				objects.put(key, new Obj(store(body), md5Hex(body), userHeaders(hdr), null));
+				return etag(new Reply(), objects.get(key).etag);
+			case "POST":
+				if (query.containsKey("uploads")) {
+					String id = UUID.randomUUID().toString().replace("-", "");
+					uploads.put(id, new MultipartUpload(bucket, key, userHeaders(hdr)));
+					return xml(200, "<InitiateMultipartUploadResult><Bucket>" + esc(bucket) + "</Bucket><Key>"
+							+ esc(key) + "</Key><UploadId>" + id + "</UploadId></InitiateMultipartUploadResult>");
+				}
+				if (query.containsKey("uploadId")) {
+					return completeUpload(objects, query.get("uploadId"), body);
+				}
+				break;
+			case "GET":
+				if (query.containsKey("uploadId")) {
+					return listParts(query.get("uploadId"));
+				}
+				return getObject(objects.get(key), query, hdr, true);
+			case "HEAD":
+				return getObject(objects.get(key), query, hdr, false);
+			case "DELETE":
+				if (query.containsKey("uploadId")) {
+					return uploads.remove(query.get("uploadId")) == null ? error(404, "NoSuchUpload", key) : status(204);
+				}
+				objects.remove(key);
+				return status(204);
+			default:
+				break;
+		}
+		return error(405, "MethodNotAllowed", method);
+	}
+
+	private Reply getObject(Obj o, Map<String, String> query, Headers hdr, boolean withBody) {
+		if (o == null) {
+			return error(404, "NoSuchKey", "The specified key does not exist.");
+		}
+		String ifMatch = hdr.getFirst("If-Match");
+		if (ifMatch != null && !unquote(ifMatch).equals(o.etag)) {
+			return error(412, "PreconditionFailed", "At least one of the pre-conditions you specified did not hold");
+		}
+		String ifNoneMatch = hdr.getFirst("If-None-Match");
+		if (ifNoneMatch != null && unquote(ifNoneMatch).equals(o.etag)) {
+			Reply r = status(304);
+			return etag(r, o.etag);
+		}
+
+		long size = o.data.remaining();
+		long start = 0;
+		long end = size - 1;
+		boolean partial = false;
+		if (query.containsKey("partNumber") && o.partSizes != null) {
+			int n = Integer.parseInt(query.get("partNumber"));
+			if (n < 1 || n > o.partSizes.length) {
+				return error(416, "InvalidPartNumber", "The requested partnumber is not satisfiable");
+			}
+			for (int i = 0; i < n - 1; i++) {
+				start += o.partSizes[i];
+			}
+			end = start + o.partSizes[n - 1] - 1;
+			partial = true;
+		}
+		String range = hdr.getFirst("Range");
+		if (range != null && range.startsWith("bytes=") && !partial) {
+			String spec = range.substring(6);
+			int dash = spec.indexOf('-');
+			String a = spec.substring(0, dash);
+			String b = spec.substring(dash + 1);
+			if (a.isEmpty()) {
+				start = Math.max(0, size - Long.parseLong(b));
+			} else {
+				start = Long.parseLong(a);
+				if (!b.isEmpty()) {
+					end = Math.min(end, Long.parseLong(b));
+				}
+			}
+			if (start >= size) {
+				return error(416, "InvalidRange", "The requested range is not satisfiable");
+			}
+			partial = true;
+		}
+
+		Reply r = new Reply();
+		etag(r, o.etag);
+		r.headers.putAll(o.headers);
+		if (!r.headers.containsKey("Content-Type")) {
+			r.headers.put("Content-Type", "binary/octet-stream");
+		}
+		r.headers.put("Last-Modified", httpDate(o.lastModified));
+		r.headers.put("Accept-Ranges", "bytes");
+		if (o.partSizes != null) {
+			r.headers.put("x-amz-mp-parts-count", String.valueOf(o.partSizes.length));
+		}
+		int len = (int) (end - start + 1);
+		if (partial) {
+			r.code = 206;
+			r.headers.put("Content-Range", "bytes " + start + "-" + end + "/" + size);
+		}
+		r.headers.put("Content-Length", String.valueOf(len));
+		if (withBody) {
+			r.data = range(o.data, (int) start, len);
+		}
+		return r;
+	}
+
+	private Reply copyObject(ConcurrentSkipListMap<String, Obj> objects, String key, Headers hdr) {
+		Obj src = copySource(hdr.getFirst("x-amz-copy-source"));
+		if (src == null) {
+			return error(404, "NoSuchKey", "The specified key does not exist.");
+		}
+		Map<String, String> headers = src.headers;
+		if ("REPLACE".equals(hdr.getFirst("x-amz-metadata-directive"))) {
+			headers = userHeaders(hdr);
+		}
+		Obj o = new Obj(src.data, src.etag, headers, src.partSizes);
+		objects.put(key, o);
+		return xml(200, "<CopyObjectResult><LastModified>" + isoDate(o.lastModified) + "</LastModified><ETag>&quot;"
+				+ o.etag + "&quot;</ETag></CopyObjectResult>");
+	}
+
+	private Obj copySource(String source) {
+		String src = decode(source);
+		if (src.startsWith("/")) {
+			src = src.substring(1);
+		}
+		int slash = src.indexOf('/');
+		if (slash < 0) {
+			return null;
+		}
+		ConcurrentSkipListMap<String, Obj> objects = buckets.get(src.substring(0, slash));
+		return objects == null ? null : objects.get(src.substring(slash + 1));
+	}
+
+	private Reply uploadPart(Map<String, String> query, Headers hdr, byte[] body) throws IOException {
+		MultipartUpload mpu = uploads.get(query.get("uploadId"));
+		if (mpu == null) {
+			return error(404, "NoSuchUpload", "The specified upload does not exist.");
+		}
+		int n = Integer.parseInt(query.get("partNumber"));
+		String copySource = hdr.getFirst("x-amz-copy-source");
+		if (copySource != null) {
+			Obj src = copySource(copySource);
+			if (src == null) {
+				return error(404, "NoSuchKey", "The specified key does not exist.");
+			}
+			int start = 0;
+			int end = src.data.remaining() - 1;
+			String range = hdr.getFirst("x-amz-copy-source-range");
+			if (range != null && range.startsWith("bytes=")) {
+				String[] se = range.substring(6).split("-");
+				start = Integer.parseInt(se[0]);
+				end = Integer.parseInt(se[1]);
+			}
+			// Object data is never modified, the part shares it
+			ByteBuffer data = range(src.data, start, end - start + 1);
+			Part part = new Part(data, md5Hex(data));
+			mpu.parts.put(n, part);
+			return xml(200, "<CopyPartResult><LastModified>" + isoDate(part.lastModified)
+					+ "</LastModified><ETag>&quot;" + part.etag + "&quot;</ETag></CopyPartResult>");
+		}
+		Part part = new Part(store(body), md5Hex(body));
+		mpu.parts.put(n, part);
+		return etag(new Reply(), part.etag);
+	}
+
+	private Reply completeUpload(ConcurrentSkipListMap<String, Obj> objects, String uploadId, byte[] body)
+			throws Exception {
+		MultipartUpload mpu = uploads.get(uploadId);
+		if (mpu == null) {
+			return error(404, "NoSuchUpload", "The specified upload does not exist.");
+		}
+		Document doc = parseXml(body);
+		NodeList parts = doc.getElementsByTagName("Part");
+		List<ByteBuffer> data = new ArrayList<ByteBuffer>(parts.getLength());
+		ByteArrayOutputStream md5s = new ByteArrayOutputStream();
+		long[] sizes = new long[parts.getLength()];
+		for (int i = 0; i < parts.getLength(); i++) {
+			Element e = (Element) parts.item(i);
+			int n = Integer.parseInt(text(e, "PartNumber"));
+			Part part = mpu.parts.get(n);
+			if (part == null || !unquote(text(e, "ETag")).equals(part.etag)) {
+				return error(400, "InvalidPart", "One or more of the specified parts could not be found.");
+			}
+			data.add(part.data);
+			md5s.write(hexToBytes(part.etag));
+			sizes[i] = part.data.remaining();
+		}
+		String etag = md5Hex(md5s.toByteArray()) + "-" + parts.getLength();
+		objects.put(mpu.key, new Obj(store(data), etag, mpu.headers, sizes));
+		uploads.remove(uploadId);
+		return xml(200, "<CompleteMultipartUploadResult><Location>/" + esc(mpu.bucket) + "/" + esc(mpu.key)
+				+ "</Location><Bucket>" + esc(mpu.bucket) + "</Bucket><Key>" + esc(mpu.key) + "</Key><ETag>&quot;"
+				+ etag + "&quot;</ETag></CompleteMultipartUploadResult>");
+	}
+
+	private Reply listParts(String uploadId) {
+		MultipartUpload mpu = uploads.get(uploadId);
+		if (mpu == null) {
+			return error(404, "NoSuchUpload", "The specified upload does not exist.");
+		}
+		StringBuilder sb = new StringBuilder("<ListPartsResult><Bucket>").append(esc(mpu.bucket))
+				.append("</Bucket><Key>").append(esc(mpu.key)).append("</Key><UploadId>").append(uploadId)
+				.append("</UploadId><MaxParts>10000</MaxParts><IsTruncated>false</IsTruncated>");
+		for (Map.Entry<Integer, Part> e : mpu.parts.entrySet()) {
+			sb.append("<Part><PartNumber>").append(e.getKey()).append("</PartNumber><LastModified>")
+					.append(isoDate(e.getValue().lastModified)).append("</LastModified><ETag>&quot;")
+					.append(e.getValue().etag).append("&quot;</ETag><Size>").append(e.getValue().data.remaining())
+					.append("</Size></Part>");
+		}
+		return xml(200, sb.append("</ListPartsResult>").toString());
+	}
+
+	private Reply listUploads(String bucket, Map<String, String> query) {
+		String prefix = query.getOrDefault("prefix", "");
+		StringBuilder sb = new StringBuilder("<ListMultipartUploadsResult><Bucket>").append(esc(bucket))
+				.append("</Bucket><IsTruncated>false</IsTruncated>");
+		for (Map.Entry<String, MultipartUpload> e : uploads.entrySet()) {
+			MultipartUpload mpu = e.getValue();
+			if (mpu.bucket.equals(bucket) && mpu.key.startsWith(prefix)) {
+				sb.append("<Upload><Key>").append(esc(mpu.key)).append("</Key><UploadId>").append(e.getKey())
+						.append("</UploadId><Initiated>").append(isoDate(mpu.initiated))
+						.append("</Initiated></Upload>");
+			}
+		}
+		return xml(200, sb.append("</ListMultipartUploadsResult>").toString());
+	}
+
+	private Reply deleteObjects(String bucket, byte[] body) throws Exception {
+		ConcurrentSkipListMap<String, Obj> objects = buckets.get(bucket);
+		if (objects == null) {
+			return error(404, "NoSuchBucket", bucket);
+		}
+		Document doc = parseXml(body);
+		boolean quiet = "true".equals(text(doc.getDocumentElement(), "Quiet"));
+		NodeList list = doc.getElementsByTagName("Object");
+		if (list.getLength() > 1000) {
+			return error(400, "MalformedXML", "too many keys");
+		}
+		StringBuilder sb = new StringBuilder("<DeleteResult>");
+		for (int i = 0; i < list.getLength(); i++) {
+			String key = text((Element) list.item(i), "Key");
+			objects.remove(key);
+			if (!quiet) {
+				sb.append("<Deleted><Key>").append(esc(key)).append("</Key></Deleted>");
+			}
+		}
+		return xml(200, sb.append("</DeleteResult>").toString());
+	}
+
+	private Reply listBuckets() {
+		StringBuilder sb = new StringBuilder(
+				"<ListAllMyBucketsResult><Owner><ID>stub</ID><DisplayName>stub</DisplayName></Owner><Buckets>");
+		for (String b : new java.util.TreeSet<String>(buckets.keySet())) {
+			sb.append("<Bucket><Name>").append(esc(b)).append("</Name><CreationDate>")
+					.append(isoDate(System.currentTimeMillis())).append("</CreationDate></Bucket>");
+		}
+		return xml(200, sb.append("</Buckets></ListAllMyBucketsResult>").toString());
+	}
+
+	private Reply listObjects(String bucket, Map<String, String> query) {
+		ConcurrentSkipListMap<String, Obj> objects = buckets.get(bucket);
+		if (objects == null) {
+			return error(404, "NoSuchBucket", bucket);
+		}
+		boolean v2 = "2".equals(query.get("list-type"));
+		boolean url = "url".equals(query.get("encoding-type"));
+		String prefix = query.getOrDefault("prefix", "");
+		String delimiter = query.getOrDefault("delimiter", "");
+		int maxKeys = Integer.parseInt(query.getOrDefault("max-keys", "1000"));
+		String after = v2 ? query.getOrDefault("continuation-token", query.getOrDefault("start-after", ""))
+				: query.getOrDefault("marker", "");
+
+		NavigableMap<String, Obj> view = after.isEmpty() ? objects.tailMap(prefix, true)
+				: objects.tailMap(after.compareTo(prefix) > 0 ? after : prefix, !(after.compareTo(prefix) > 0));
+		StringBuilder contents = new StringBuilder();
+		StringBuilder prefixes = new StringBuilder();
+		String last = null;
+		String lastPrefix = null;
+		int count = 0;
+		boolean truncated = false;
+		for (Map.Entry<String, Obj> e : view.entrySet()) {
+			String k = e.getKey();
+			if (!k.startsWith(prefix)) {
+				break;
+			}
+			if (!delimiter.isEmpty()) {
+				int pos = k.indexOf(delimiter, prefix.length());
+				if (pos >= 0) {
+					String cp = k.substring(0, pos + delimiter.length());
+					if (cp.equals(lastPrefix) || (!after.isEmpty() && after.startsWith(cp))) {
+						continue;
+					}
+					if (count == maxKeys) {
+						truncated = true;
+						break;
+					}
+					prefixes.append("<CommonPrefixes><Prefix>").append(enc(cp, url)).append("</Prefix></CommonPrefixes>");
+					lastPrefix = cp;
+					last = cp;
+					count++;
+					continue;
+				}
+			}
+			if (count == maxKeys) {
+				truncated = true;
+				break;
+			}
+			Obj o = e.getValue();
+			contents.append("<Contents><Key>").append(enc(k, url)).append("</Key><LastModified>")
+					.append(isoDate(o.lastModified)).append("</LastModified><ETag>&quot;").append(o.etag)
+					.append("&quot;</ETag><Size>").append(o.data.remaining())
+					.append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+			last = k;
+			count++;
+		}
+
+		StringBuilder sb = new StringBuilder("<ListBucketResult><Name>").append(esc(bucket)).append("</Name><Prefix>")
+				.append(enc(prefix, url)).append("</Prefix><MaxKeys>").append(maxKeys).append("</MaxKeys>");
+		if (!delimiter.isEmpty()) {
+			sb.append("<Delimiter>").append(enc(delimiter, url)).append("</Delimiter>");
+		}
+		if (url) {
+			sb.append("<EncodingType>url</EncodingType>");
+		}
+		sb.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+		if (v2) {
+			sb.append("<KeyCount>").append(count).append("</KeyCount>");
+			if (query.containsKey("continuation-token")) {
+				sb.append("<ContinuationToken>").append(esc(query.get("continuation-token")))
+						.append("</ContinuationToken>");
+			}
+			if (truncated) {
+				sb.append("<NextContinuationToken>").append(esc(last)).append("</NextContinuationToken>");
+			}
+		} else {
+			sb.append("<Marker>").append(enc(after, url)).append("</Marker>");
+			if (truncated) {
+				sb.append("<NextMarker>").append(enc(last, url)).append("</NextMarker>");
+			}
+		}
+		sb.append(contents).append(prefixes).append("</ListBucketResult>");
+		return xml(200, sb.toString());
+	}
+
+	private ByteBuffer store(byte[] body) throws IOException {
+		return dir == null ? ByteBuffer.wrap(body) : map(Collections.singletonList(ByteBuffer.wrap(body)));
+	}
+
+	// the concatenation of parts
+	private ByteBuffer store(List<ByteBuffer> parts) throws IOException {
+		if (dir != null) {
+			return map(parts);
+		}
+		int size = 0;
+		for (ByteBuffer p : parts) {
+			size += p.remaining();
+		}
+		ByteBuffer all = ByteBuffer.allocate(size);
+		for (ByteBuffer p : parts) {
+			all.put(p.duplicate());
+		}
+		((Buffer) all).flip();
+		return all;
+	}
+
+	// a file under dir mapped read only; it is unlinked at once, the pages go when the mapping is collected
+	private ByteBuffer map(List<ByteBuffer> parts) throws IOException {
+		long size = 0;
+		for (ByteBuffer p : parts) {
+			size += p.remaining();
+		}
+		if (size == 0) {
+			return ByteBuffer.allocate(0);
+		}
+		File f = File.createTempFile("s3java-stub", ".obj", dir);
+		try (RandomAccessFile file = new RandomAccessFile(f, "rw"); FileChannel ch = file.getChannel()) {
+			for (ByteBuffer p : parts) {
+				ByteBuffer d = p.duplicate();
+				while (d.hasRemaining()) {
+					ch.write(d);
+				}
+			}
+			return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		} finally {
+			if (!f.delete()) {
+				f.deleteOnExit();
+			}
+		}
+	}
+
+	private static ByteBuffer range(ByteBuffer data, int start, int len) {
+		ByteBuffer d = data.duplicate();
+		((Buffer) d).position(start);
+		((Buffer) d).limit(start + len);
+		return d.slice();
+	}
+
+	// straight from the array of a heap buffer, through a small buffer from a mapped one
+	private static void write(OutputStream out, ByteBuffer data) throws IOException {
+		if (data.hasArray()) {
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+			return;
+		}
+		byte[] buf = new byte[Math.min(64 << 10, data.remaining())];
+		while (data.hasRemaining()) {
+			int n = Math.min(buf.length, data.remaining());
+			data.get(buf, 0, n);
+			out.write(buf, 0, n);
+		}
+	}
+
+	private static byte[] readBody(HttpExchange ex) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (InputStream in = ex.getRequestBody()) {
+			byte[] buf = new byte[64 << 10];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+		}
+		byte[] body = out.toByteArray();
+		String sha = ex.getRequestHeaders().getFirst("x-amz-content-sha256");
+		if (sha != null && sha.startsWith("STREAMING-")) {
+			return decodeChunked(body);
+		}
+		return body;
+	}
+
+	// aws-chunked: hex-size;chunk-signature=...\r\n data \r\n
+	private static byte[] decodeChunked(byte[] body) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int pos = 0;
+		while (pos < body.length) {
+			int eol = pos;
+			while (eol + 1 < body.length && !(body[eol] == '\r' && body[eol + 1] == '\n')) {
+				eol++;
+			}
+			String line = new String(body, pos, eol - pos, StandardCharsets.US_ASCII);
+			int semi = line.indexOf(';');
+			int size = Integer.parseInt(semi < 0 ? line : line.substring(0, semi), 16);
+			if (size == 0) {
+				break;
+			}
+			out.write(body, eol + 2, size);
+			pos = eol + 2 + size + 2;
+		}
+		return out.toByteArray();
+	}
+
+	private static Map<String, String> userHeaders(Headers hdr) {
+		Map<String, String> m = new HashMap<String, String>();
+		for (Map.Entry<String, List<String>> e : hdr.entrySet()) {
+			String name = e.getKey().toLowerCase(Locale.ROOT);
+			if (name.startsWith("x-amz-meta-") || name.equals("content-type") || name.equals("content-encoding")
+					|| name.equals("content-disposition") || name.equals("cache-control")
+					|| name.startsWith("x-amz-checksum-")) {
+				m.put(name.equals("content-type") ? "Content-Type" : name, e.getValue().get(0));
+			}
+		}
+		return m;
+	}
+
+	private static Map<String, String> parseQuery(String raw) {
+		Map<String, String> m = new HashMap<String, String>();
+		if (raw == null || raw.isEmpty()) {
+			return m;
+		}
+		for (String kv : raw.split("&")) {
+			int eq = kv.indexOf('=');
+			if (eq < 0) {
+				m.put(decodeQuery(kv), "");
+			} else {
+				m.put(decodeQuery(kv.substring(0, eq)), decodeQuery(kv.substring(eq + 1)));
+			}
+		}
+		return m;
+	}
+
+	private static Document parseXml(byte[] body) throws Exception {
+		DocumentBuilderFactory f = DocumentBuilderFactory.newInstance();
+		// request bodies come from the network: no DTDs, so no external entities
+		f.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+		f.setExpandEntityReferences(false);
+		return f.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+	}
+
+	private static String text(Element e, String tag) {
+		NodeList l = e.getElementsByTagName(tag);
+		return l.getLength() == 0 ? "" : l.item(0).getTextContent();
+	}
+
+	private static Reply xml(int code, String body) {
+		Reply r = new Reply();
+		r.code = code;
+		r.body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + body).getBytes(StandardCharsets.UTF_8);
+		return r;
+	}
+
+	private static Reply status(int code) {
+		Reply r = new Reply();
+		r.code = code;
+		return r;
+	}
+
+	private static Reply etag(Reply r, String etag) {
+		r.headers.put("ETag", "\"" + etag + "\"");
+		return r;
+	}
+
+	private static Reply error(int code, String errorCode, String message) {
+		return xml(code, "<Error><Code>" + errorCode + "</Code><Message>" + esc(message) + "</Message></Error>");
+	}
+
+	private static String unquote(String s) {
+		return s.replace("\"", "");
+	}
+
+	private static String esc(String s) {
+		return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+	}
+
+	private static String enc(String s, boolean url) {
+		if (!url) {
+			return esc(s);
+		}
+		try {
+			return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// a + of a path is itself
+	private static String decode(String s) {
+		return decodeQuery(s.replace("+", "%2B"));
+	}
+
+	// a + of a query string is a space, the SDK sends a prefix of "a b" as a+b
+	private static String decodeQuery(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String md5Hex(byte[] data) {
+		return md5Hex(ByteBuffer.wrap(data));
+	}
+
+	static String md5Hex(ByteBuffer data) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			md.update(data.duplicate());
+			byte[] d = md.digest();
+			StringBuilder sb = new StringBuilder(32);
+			for (byte b : d) {
+				sb.append(String.format("%02x", b));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] hexToBytes(String hex) {
+		byte[] b = new byte[hex.length() / 2];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return b;
+	}
+
+	private static String isoDate(long millis) {
+		SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return f.format(new Date(millis));
+	}
+
+	private static String httpDate(long millis) {
+		SimpleDateFormat f = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return f.format(new Date(millis));
+	}
+}
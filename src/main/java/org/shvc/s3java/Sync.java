@@ -0,0 +1,423 @@
+package org.shvc.s3java;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.transfer.TransferManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Incremental one-way mirror between a local directory and a Bucket prefix.
+ * The local tree is walked into a map, the remote prefix is listed page by
+ * page and every key is diffed as it arrives, so only the local side is held
+ * in memory. A file is transferred when it is missing on the other side,
+ * differs in size, or is newer at the source; with checksum the mtime test
+ * is replaced by comparing the file's MD5 with the ETag, multipart ETags
+ * included. Transfers run on a TaskRunner while the listing goes on.
+ */
+public class Sync {
+	// local file state from the tree walk
+	static final class Entry {
+		final long size;
+		final long mtime;
+
+		Entry(long size, long mtime) {
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+
+	private final S3Cli cli;
+	private final AmazonS3 s3;
+	private final String bucket;
+	private final String prefix;
+	private final File dir;
+	private final TaskRunner runner;
+	private long partSize = Main.DEFAULT_PART_SIZE << 20;
+	private int threads = S3Cli.DEFAULT_MPU_THREADS;
+	private boolean delete = false;
+	private boolean checksum = false;
+	private boolean dryRun = false;
+
+	private final AtomicLong compared = new AtomicLong();
+	private final AtomicLong transferred = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong deleted = new AtomicLong();
+	private long failed;
+
+	public Sync(S3Cli cli, String bucket, String prefix, File dir, int concurrency) {
+		this.cli = cli;
+		this.s3 = cli.getS3();
+		this.bucket = bucket;
+		this.prefix = prefix.isEmpty() || prefix.endsWith("/") ? prefix : prefix + "/";
+		this.dir = dir;
+		this.runner = new TaskRunner(concurrency);
+	}
+
+	// files transferred(or that would be, on a dry run)
+	long getTransferred() {
+		return transferred.get();
+	}
+
+	/**
+	 * multipart part size and TransferManager threads of uploads, the part
+	 * size is also the first guess when checking multipart ETags
+	 */
+	public void setPartSize(long partSize, int threads) {
+		this.partSize = partSize;
+		this.threads = Math.max(threads, runner.getParallel());
+	}
+
+	// remove what only exists at the destination
+	public void setDelete(boolean delete) {
+		this.delete = delete;
+	}
+
+	// compare content(MD5 against ETag) instead of mtime
+	public void setChecksum(boolean checksum) {
+		this.checksum = checksum;
+	}
+
+	// print what would be transferred or deleted without doing it
+	public void setDryRun(boolean dryRun) {
+		this.dryRun = dryRun;
+	}
+
+	private Map<String, Entry> walk() throws IOException {
+		Map<String, Entry> files = new HashMap<String, Entry>();
+		if (!dir.isDirectory()) {
+			return files;
+		}
+		Path root = dir.toPath();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					String rel = root.relativize(file).toString().replace(File.separatorChar, '/');
+					files.put(rel, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				System.err.println(file + ": " + e.getMessage());
+				failed++;
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return files;
+	}
+
+	private interface RemoteVisitor {
+		void accept(String rel, S3ObjectSummary o) throws Exception;
+	}
+
+	private void list(RemoteVisitor visitor) throws Exception {
+		ListObjectsV2Request req = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+		ListObjectsV2Result result;
+		do {
+			result = s3.listObjectsV2(req);
+			for (S3ObjectSummary o : result.getObjectSummaries()) {
+				cli.remember(bucket, o);
+				// skip "directory" marker Objects
+				if (!o.getKey().endsWith("/")) {
+					visitor.accept(o.getKey().substring(prefix.length()), o);
+				}
+			}
+			req.setContinuationToken(result.getNextContinuationToken());
+		} while (result.isTruncated());
+	}
+
+	private File local(String rel) {
+		return new File(dir, rel.replace('/', File.separatorChar));
+	}
+
+	// a Key with .. or absolute segments must not be written outside dir
+	private boolean inside(String rel) {
+		for (String segment : rel.split("/")) {
+			if (segment.equals("..")) {
+				return false;
+			}
+		}
+		Path root = dir.toPath().toAbsolutePath().normalize();
+		Path path = root.resolve(rel.replace('/', File.separatorChar)).normalize();
+		return path.startsWith(root) && !path.equals(root) && !new File(rel).isAbsolute();
+	}
+
+	/**
+	 * mirror dir to the prefix
+	 *
+	 * @return number of failures
+	 */
+	public long upload() throws Exception {
+		long start = System.nanoTime();
+		Map<String, Entry> files = walk();
+		TransferManager manager = dryRun ? null : cli.transferManager(partSize, threads);
+		BatchDeleter deleter = delete && !dryRun ? new BatchDeleter(s3, bucket, runner.getParallel()) : null;
+		if (deleter != null) {
+			deleter.setCache(cli.getCache());
+		}
+		try {
+			list((rel, o) -> {
+				Entry local = files.remove(rel);
+				if (local == null) {
+					if (delete) {
+						print("delete " + bucket + "/" + o.getKey());
+						if (deleter != null) {
+							deleter.add(o.getKey());
+						}
+						deleted.incrementAndGet();
+					}
+					return;
+				}
+				compared.incrementAndGet();
+				if (local.size != o.getSize()) {
+					submit(rel, () -> {
+						if (compressed(o, local.size) && local.mtime <= o.getLastModified().getTime()) {
+							return true;
+						}
+						return put(manager, rel, local);
+					});
+				} else if (checksum) {
+					submit(rel, () -> {
+						if (!sameContent(local(rel), o.getSize(), o.getETag())) {
+							return put(manager, rel, local);
+						}
+						return true;
+					});
+				} else if (local.mtime > o.getLastModified().getTime()) {
+					upload(manager, rel, local);
+				}
+			});
+			for (Map.Entry<String, Entry> e : files.entrySet()) {
+				upload(manager, e.getKey(), e.getValue());
+			}
+		} finally {
+			failed += runner.await();
+			runner.shutdown();
+			if (deleter != null) {
+				failed += deleter.finish();
+			}
+		}
+		summary("upload", start);
+		return failed;
+	}
+
+	private void upload(TransferManager manager, String rel, Entry local) {
+		submit(rel, () -> put(manager, rel, local));
+	}
+
+	private boolean put(TransferManager manager, String rel, Entry local) throws Exception {
+		print("upload " + bucket + "/" + prefix + rel);
+		if (manager != null) {
+			try {
+				manager.upload(bucket, prefix + rel, local(rel)).waitForCompletion();
+			} finally {
+				cli.forget(bucket, prefix + rel);
+			}
+			bytes.addAndGet(local.size);
+		}
+		transferred.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * mirror the prefix to dir
+	 *
+	 * @return number of failures
+	 */
+	public long download() throws Exception {
+		long start = System.nanoTime();
+		Map<String, Entry> files = walk();
+		try {
+			list((rel, o) -> {
+				if (!inside(rel)) {
+					System.err.println(bucket + "/" + o.getKey() + ": outside " + dir);
+					failed++;
+					return;
+				}
+				Entry local = files.remove(rel);
+				if (local != null) {
+					compared.incrementAndGet();
+				}
+				if (local == null) {
+					get(rel, o);
+				} else if (local.size != o.getSize()) {
+					submit(rel, () -> {
+						if (compressed(o, local.size) && o.getLastModified().getTime() <= local.mtime) {
+							return true;
+						}
+						return fetch(rel, o);
+					});
+				} else if (checksum) {
+					submit(rel, () -> {
+						if (!sameContent(local(rel), o.getSize(), o.getETag())) {
+							return fetch(rel, o);
+						}
+						return true;
+					});
+				} else if (o.getLastModified().getTime() > local.mtime) {
+					get(rel, o);
+				}
+			});
+		} finally {
+			failed += runner.await();
+			runner.shutdown();
+		}
+		if (delete) {
+			for (String rel : files.keySet()) {
+				print("delete " + local(rel));
+				if (!dryRun && !local(rel).delete()) {
+					System.err.println("can't delete " + local(rel));
+					failed++;
+					continue;
+				}
+				deleted.incrementAndGet();
+			}
+		}
+		summary("download", start);
+		return failed;
+	}
+
+	private void get(String rel, S3ObjectSummary o) {
+		submit(rel, () -> fetch(rel, o));
+	}
+
+	private boolean fetch(String rel, S3ObjectSummary o) throws Exception {
+		print("download " + local(rel));
+		if (!dryRun) {
+			cli.download(bucket, o.getKey(), local(rel), o.getLastModified().getTime());
+			bytes.addAndGet(o.getSize());
+		}
+		transferred.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * whether o was uploaded with --compress from a file of size bytes, one
+	 * HEAD as the listing only has the compressed size. The ETag is of the
+	 * compressed bytes, so such an Object is compared by mtime even with
+	 * checksum.
+	 */
+	private boolean compressed(S3ObjectSummary o, long size) {
+		return Compression.size(s3.getObjectMetadata(bucket, o.getKey())) == size;
+	}
+
+	private void submit(String rel, java.util.concurrent.Callable<Boolean> task) {
+		runner.submit(rel, () -> {
+			try {
+				return task.call();
+			} catch (AmazonServiceException e) {
+				System.err.println(rel + ": " + e.getErrorMessage());
+				return false;
+			}
+		});
+	}
+
+	private void print(String action) {
+		System.out.println(java.time.Clock.systemUTC().instant() + (dryRun ? " (dry run) " : " ") + action);
+	}
+
+	private void summary(String direction, long start) {
+		double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+		System.out.printf("%s sync %s %d compared, %d transferred(%.1f MB), %d deleted, %d failed in %.3fs%n",
+				java.time.Clock.systemUTC().instant(), direction, compared.get(), transferred.get(),
+				bytes.get() / 1048576.0, deleted.get(), failed, seconds);
+	}
+
+	/**
+	 * whether file matches an ETag: the MD5 of a single part upload, or
+	 * md5(part md5s)-N of a multipart upload. The part size of a multipart
+	 * ETag is not recorded, so the configured part size and the usual whole
+	 * MB sizes that give N parts are tried.
+	 */
+	boolean sameContent(File file, long size, String etag) throws IOException {
+		etag = etag.replace("\"", "");
+		int dash = etag.indexOf('-');
+		if (dash < 0) {
+			return etag.equalsIgnoreCase(multipartETag(file, 0));
+		}
+		int parts = Integer.parseInt(etag.substring(dash + 1));
+		long guess = (size + parts - 1) / parts;
+		long mb = 1 << 20;
+		long[] candidates = { partSize, (guess + mb - 1) / mb * mb };
+		for (int i = 0; i < candidates.length; i++) {
+			long ps = candidates[i];
+			if (ps <= 0 || (i > 0 && ps == candidates[0]) || (size + ps - 1) / ps != parts) {
+				continue;
+			}
+			if (etag.equalsIgnoreCase(multipartETag(file, ps))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// hex MD5 of file if partSize is 0, otherwise the multipart ETag
+	static String multipartETag(File file, long partSize) throws IOException {
+		try {
+			MessageDigest whole = MessageDigest.getInstance("MD5");
+			MessageDigest part = MessageDigest.getInstance("MD5");
+			ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+			int parts = 0;
+			long inPart = 0;
+			try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				while (ch.read(buf) >= 0) {
+					((Buffer) buf).flip();
+					while (buf.hasRemaining()) {
+						int n = buf.remaining();
+						if (partSize > 0) {
+							n = (int) Math.min(n, partSize - inPart);
+						}
+						part.update(buf.array(), buf.position(), n);
+						((Buffer) buf).position(buf.position() + n);
+						inPart += n;
+						if (partSize > 0 && inPart == partSize) {
+							whole.update(part.digest());
+							parts++;
+							inPart = 0;
+						}
+					}
+					((Buffer) buf).clear();
+				}
+			}
+			if (partSize <= 0) {
+				return hex(part.digest());
+			}
+			if (inPart > 0 || parts == 0) {
+				whole.update(part.digest());
+				parts++;
+			}
+			return hex(whole.digest()) + "-" + parts;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] digest) {
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,102 @@
+package org.shvc.s3java;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Run per-key operations on a shared executor with at most parallel
+ * operations in flight, and aggregate their results.
+ * A task succeeds when it returns true, a false result or an exception is
+ * recorded as a failure of that key.
+ */
+public class TaskRunner {
+	private final ExecutorService executor;
+	private final int parallel;
+	private final Semaphore permits;
+	private final AtomicLong succeeded = new AtomicLong();
+	private final ConcurrentLinkedQueue<String> failed = new ConcurrentLinkedQueue<String>();
+
+	public TaskRunner(int parallel) {
+		this.parallel = Math.max(1, parallel);
+		this.permits = new Semaphore(this.parallel);
+		this.executor = newExecutor(this.parallel);
+	}
+
+	// virtual threads(JDK 21+) when the JVM supports them, otherwise a bounded pool
+	static ExecutorService newExecutor(int threads) {
+		try {
+			Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) m.invoke(null);
+		} catch (Exception e) {
+			ThreadFactory factory = r -> {
+				Thread t = new Thread(r, "s3java-worker");
+				t.setDaemon(true);
+				return t;
+			};
+			return Executors.newFixedThreadPool(threads, factory);
+		}
+	}
+
+	public int getParallel() {
+		return parallel;
+	}
+
+	/**
+	 * submit a task, blocks while parallel tasks are already in flight
+	 */
+	public void submit(String name, Callable<Boolean> task) {
+		permits.acquireUninterruptibly();
+		try {
+			executor.execute(() -> {
+				try {
+					if (Boolean.TRUE.equals(task.call())) {
+						succeeded.incrementAndGet();
+					} else {
+						failed.add(name);
+					}
+				} catch (Exception e) {
+					System.err.println(name + ": " + e.getMessage());
+					failed.add(name);
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * wait for all submitted tasks, print a summary of failed keys and return
+	 * the number of failures since the last call
+	 */
+	public int await() {
+		permits.acquireUninterruptibly(parallel);
+		permits.release(parallel);
+
+		List<String> failures = new ArrayList<String>();
+		String name;
+		while ((name = failed.poll()) != null) {
+			failures.add(name);
+		}
+		long ok = succeeded.getAndSet(0);
+		if (!failures.isEmpty()) {
+			System.err.println(java.time.Clock.systemUTC().instant() + " " + ok + " succeeded, " + failures.size()
+					+ " failed: " + String.join(" ", failures));
+		}
+		return failures.size();
+	}
+
+	public void shutdown() {
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,274 @@
+package org.shvc.s3java;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.handlers.HandlerAfterAttemptContext;
+import com.amazonaws.handlers.HandlerBeforeAttemptContext;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.http.HttpMethodName;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Client side flow control shared by every request of a client: an ops/s
+ * and a bytes/s token bucket, an AIMD concurrency limit that backs off on
+ * throttling responses, and a retry budget with full jitter backoff. As a
+ * RequestHandler2 it wraps every attempt of the blocking client, the async
+ * backend calls before, attempted and release itself. Every part is
+ * optional.
+ */
+public class Throttle extends RequestHandler2 {
+	// retry budget: a retry costs RETRY_COST tokens(TIMEOUT_COST after a timeout), a success returns one
+	static final int RETRY_COST = 5;
+	static final int TIMEOUT_COST = 10;
+	static final long BASE_DELAY = 100;
+	static final long THROTTLED_BASE_DELAY = 500;
+	static final long MAX_BACKOFF = 20_000;
+
+	private RateLimiter ops;
+	private RateLimiter bytes;
+	private AdaptiveLimiter concurrency;
+	private long budgetCapacity;
+	private long budget;
+
+	private final AtomicLong throttled = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong retriesDenied = new AtomicLong();
+
+	// operations per second, 0 for no limit
+	public void setOpsRate(double rate) {
+		this.ops = rate > 0 ? new RateLimiter(rate) : null;
+	}
+
+	// request and response payload bytes per second, 0 for no limit
+	public void setBytesRate(double rate) {
+		this.bytes = rate > 0 ? new RateLimiter(rate) : null;
+	}
+
+	// AIMD concurrency limit between 1 and max, 0 for none
+	public void setAdaptive(int max) {
+		this.concurrency = max > 0 ? new AdaptiveLimiter(1, max) : null;
+	}
+
+	// retry tokens shared by all requests, 0 for no budget
+	public synchronized void setRetryBudget(long tokens) {
+		this.budgetCapacity = tokens;
+		this.budget = tokens;
+	}
+
+	/**
+	 * wait for a slot and the tokens of an attempt sending requestBytes
+	 */
+	public void before(long requestBytes) {
+		if (concurrency != null) {
+			concurrency.acquire();
+		}
+		if (ops != null) {
+			ops.acquire(1);
+		}
+		if (bytes != null) {
+			// also waits out the debt of earlier responses
+			bytes.acquire(requestBytes);
+		}
+	}
+
+	/**
+	 * an attempt is done: responseBytes are charged to the bandwidth(the
+	 * next requests wait for them), throttling shrinks the concurrency limit
+	 * and a success returns a retry token
+	 */
+	public void attempted(boolean throttled, boolean success, long responseBytes) {
+		if (bytes != null && responseBytes > 0) {
+			bytes.reserve(responseBytes);
+		}
+		if (throttled) {
+			this.throttled.incrementAndGet();
+		}
+		if (concurrency != null) {
+			concurrency.adjust(throttled);
+		}
+		if (success) {
+			synchronized (this) {
+				if (budget < budgetCapacity) {
+					budget++;
+				}
+			}
+		}
+	}
+
+	// give back the slot taken by before
+	public void release() {
+		if (concurrency != null) {
+			concurrency.release();
+		}
+	}
+
+	/**
+	 * take the rate tokens of a retry without waiting, a caller that keeps
+	 * its slot between attempts adds the returned nanoseconds to the backoff
+	 */
+	public long reserve(long requestBytes) {
+		long wait = 0;
+		if (ops != null) {
+			wait = ops.reserve(1);
+		}
+		if (bytes != null) {
+			wait = Math.max(wait, bytes.reserve(requestBytes));
+		}
+		return wait;
+	}
+
+	/**
+	 * take the tokens of a retry from the budget
+	 *
+	 * @return false if the budget is used up and the error should be returned
+	 */
+	public boolean retry(Throwable cause) {
+		if (budgetCapacity > 0) {
+			long cost = isTimeout(cause) ? TIMEOUT_COST : RETRY_COST;
+			synchronized (this) {
+				if (budget < cost) {
+					retriesDenied.incrementAndGet();
+					return false;
+				}
+				budget -= cost;
+			}
+		}
+		retries.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * full jitter: a random delay up to base * 2^retries, a longer base after
+	 * a throttling response
+	 */
+	public static long backoff(int retriesAttempted, boolean throttled) {
+		long base = throttled ? THROTTLED_BASE_DELAY : BASE_DELAY;
+		long ceiling = Math.min(MAX_BACKOFF, base << Math.min(retriesAttempted, 16));
+		return ThreadLocalRandom.current().nextLong(ceiling + 1);
+	}
+
+	public static boolean isThrottling(int status, Throwable e) {
+		if (status == 503 || status == 429) {
+			return true;
+		}
+		return e instanceof SdkBaseException && RetryUtils.isThrottlingException((SdkBaseException) e);
+	}
+
+	private static boolean isTimeout(Throwable e) {
+		while (e != null) {
+			if (e instanceof SocketTimeoutException || e instanceof InterruptedIOException) {
+				return true;
+			}
+			e = e.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * the SDK's retry conditions with this budget and full jitter backoff
+	 */
+	public RetryPolicy retryPolicy(int maxErrorRetry) {
+		int max = maxErrorRetry >= 0 ? maxErrorRetry : PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY;
+		// the SDK asks again, to report an error that ran out of retries, don't charge twice
+		ThreadLocal<Object[]> last = new ThreadLocal<Object[]>();
+		return new RetryPolicy((AmazonWebServiceRequest request, AmazonClientException e, int retriesAttempted) -> {
+			if (!PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request, e, retriesAttempted)) {
+				return false;
+			}
+			if (retriesAttempted >= max) {
+				return true;
+			}
+			Object[] decision = last.get();
+			if (decision == null || decision[0] != e) {
+				decision = new Object[] { e, retry(e) };
+				last.set(decision);
+			}
+			return (Boolean) decision[1];
+		}, (AmazonWebServiceRequest request, AmazonClientException e, int retriesAttempted) -> {
+			return backoff(retriesAttempted, isThrottling(0, e));
+		}, max, false);
+	}
+
+	@Override
+	public void beforeAttempt(HandlerBeforeAttemptContext context) {
+		before(requestBytes(context.getRequest()));
+	}
+
+	@Override
+	public void afterAttempt(HandlerAfterAttemptContext context) {
+		Response<?> response = context.getResponse();
+		Exception e = context.getException();
+		int status = 0;
+		long length = 0;
+		if (response != null && response.getHttpResponse() != null) {
+			status = response.getHttpResponse().getStatusCode();
+			length = contentLength(response.getHttpResponse().getHeader("Content-Length"));
+		} else if (e instanceof AmazonServiceException) {
+			status = ((AmazonServiceException) e).getStatusCode();
+		}
+		boolean get = context.getRequest().getHttpMethod() == HttpMethodName.GET;
+		attempted(isThrottling(status, e), e == null, get ? length : 0);
+		release();
+	}
+
+	// payload of a request, the SDK streams a PutObject file without Content-Length
+	static long requestBytes(Request<?> request) {
+		long length = contentLength(request.getHeaders().get("Content-Length"));
+		if (length == 0 && request.getOriginalRequest() instanceof PutObjectRequest) {
+			PutObjectRequest put = (PutObjectRequest) request.getOriginalRequest();
+			if (put.getFile() != null) {
+				length = put.getFile().length();
+			} else if (put.getMetadata() != null) {
+				length = put.getMetadata().getContentLength();
+			}
+		}
+		return length;
+	}
+
+	private static long contentLength(String value) {
+		if (value == null) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * throttling responses, retries taken and denied by the budget, and the
+	 * current concurrency limit
+	 */
+	public String summary() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(throttled.get()).append(" throttled, ").append(retries.get()).append(" retries");
+		if (budgetCapacity > 0) {
+			sb.append(", ").append(retriesDenied.get()).append(" denied by budget");
+		}
+		if (concurrency != null) {
+			sb.append(", concurrency limit ").append(concurrency.getLimit());
+		}
+		return sb.toString();
+	}
+
+	public long getThrottled() {
+		return throttled.get();
+	}
+
+	public long getRetries() {
+		return retries.get();
+	}
+}
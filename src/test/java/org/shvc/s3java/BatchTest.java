@@ -0,0 +1,51 @@
+package org.shvc.s3java;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchTest {
+	@Test
+	public void words() {
+		assertEquals(Arrays.asList("head", "bkt/k1", "k2"), Batch.split("  head\tbkt/k1   k2 "));
+	}
+
+	@Test
+	public void blankAndComments() {
+		assertEquals(Collections.emptyList(), Batch.split(""));
+		assertEquals(Collections.emptyList(), Batch.split("   "));
+		assertEquals(Collections.emptyList(), Batch.split("  # ls bkt"));
+	}
+
+	@Test
+	public void leadingProgramName() {
+		assertEquals(Arrays.asList("ls", "bkt"), Batch.split("s3java ls bkt"));
+		assertEquals(Arrays.asList("ls", "s3java"), Batch.split("ls s3java"));
+	}
+
+	@Test
+	public void singleQuotesAreLiteral() {
+		assertEquals(Arrays.asList("cat", "bkt/a b\\c\"d"), Batch.split("cat 'bkt/a b\\c\"d'"));
+		assertEquals(Arrays.asList("x", ""), Batch.split("x ''"));
+	}
+
+	@Test
+	public void doubleQuotesAndEscapes() {
+		assertEquals(Arrays.asList("cat", "bkt/a \"b\" c"), Batch.split("cat \"bkt/a \\\"b\\\" c\""));
+		assertEquals(Arrays.asList("cat", "bkt/a b"), Batch.split("cat bkt/a\\ b"));
+		assertEquals(Arrays.asList("x", "#not-a-comment"), Batch.split("x #not-a-comment"));
+	}
+
+	@Test
+	public void quotesJoinWords() {
+		assertEquals(Arrays.asList("put", "bkt/dir name/k"), Batch.split("put bkt/'dir name'/k"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unterminatedQuote() {
+		Batch.split("cat 'bkt/a");
+	}
+}
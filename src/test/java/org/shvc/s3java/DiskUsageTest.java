@@ -0,0 +1,42 @@
+package org.shvc.s3java;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DiskUsageTest {
+	@Test
+	public void totalOnly() {
+		assertEquals("", DiskUsage.row("", 0, "a/b/c"));
+		assertEquals("logs/", DiskUsage.row("logs/", 0, "logs/2024/01/a"));
+	}
+
+	@Test
+	public void levelsBelowRoot() {
+		assertEquals("a/", DiskUsage.row("", 1, "a/b/c"));
+		assertEquals("a/b/", DiskUsage.row("", 2, "a/b/c"));
+		assertEquals("logs/2024/", DiskUsage.row("logs/", 1, "logs/2024/01/a"));
+		assertEquals("logs/2024/01/", DiskUsage.row("logs/", 2, "logs/2024/01/a"));
+	}
+
+	@Test
+	public void objectsCountInTheirPrefix() {
+		// a Key without more delimiters stays in the deepest prefix it has
+		assertEquals("", DiskUsage.row("", 2, "top"));
+		assertEquals("a/", DiskUsage.row("", 3, "a/b"));
+		assertEquals("logs/", DiskUsage.row("logs/", 1, "logs/x"));
+	}
+
+	@Test
+	public void rootWithoutDelimiter() {
+		// a prefix that isn't a directory: its first level ends at the next delimiter
+		assertEquals("lo", DiskUsage.row("lo", 0, "logs/a"));
+		assertEquals("logs/", DiskUsage.row("lo", 1, "logs/a"));
+	}
+
+	@Test
+	public void doubleDelimiters() {
+		assertEquals("a/", DiskUsage.row("", 1, "a//b"));
+		assertEquals("a//", DiskUsage.row("", 2, "a//b"));
+	}
+}
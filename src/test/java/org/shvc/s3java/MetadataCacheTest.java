@@ -0,0 +1,58 @@
+package org.shvc.s3java;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetadataCacheTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	@Test
+	public void plainStringsAreKept() {
+		String s = "dir/key with spaces+%.txt";
+		assertSame(s, MetadataCache.escape(s));
+		assertSame(s, MetadataCache.unescape(s));
+	}
+
+	@Test
+	public void escapeRoundTrip() {
+		String[] keys = { "a\tb", "line\nbreak", "cr\r", "back\\slash", "\\t literal", "trailing\\", "\\\\n",
+				"mixed\t\\n\n\r\\" };
+		for (String key : keys) {
+			String escaped = MetadataCache.escape(key);
+			assertFalse(key, escaped.contains("\t") || escaped.contains("\n") || escaped.contains("\r"));
+			assertEquals(key, MetadataCache.unescape(escaped));
+		}
+	}
+
+	@Test
+	public void entriesSurviveReopen() throws Exception {
+		File dir = tmp.newFolder();
+		String key = "k\t1\n\\";
+		MetadataCache cache = new MetadataCache(dir, "http://127.0.0.1:9000", 60000, 100);
+		cache.put("bkt", key, 42, "etag\t", 1000);
+		cache.putMissing("bkt", "gone");
+		cache.put("bkt", "removed", 1, "e", 1);
+		cache.remove("bkt", "removed");
+		cache.close();
+
+		cache = new MetadataCache(dir, "http://127.0.0.1:9000", 60000, 100);
+		MetadataCache.Entry e = cache.get("bkt", key);
+		assertTrue(e.exists);
+		assertEquals(42, e.size);
+		assertEquals("etag\t", e.etag);
+		assertEquals(1000, e.lastModified);
+		assertFalse(cache.get("bkt", "gone").exists);
+		assertNull(cache.get("bkt", "removed"));
+		cache.close();
+	}
+}
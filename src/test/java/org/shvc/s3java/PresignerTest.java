@@ -0,0 +1,103 @@
+package org.shvc.s3java;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.HttpMethod;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.junit.Test;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Presigner must produce the URLs of the SDK's generatePresignedUrl, compared
+ * parameter by parameter since the query order may differ
+ */
+public class PresignerTest {
+	private static final AWSCredentials CREDENTIALS = new BasicAWSCredentials("AKIDEXAMPLE", "secret/+key=");
+	private static final String REGION = "us-east-1";
+	private static final long MINUTES = 60;
+
+	private static final String[] KEYS = { "plain.txt", "dir/sub/file", "a//b", "/leading", "trailing/", "100%",
+			"a%2Fb", "with space", "a+b", "~t_-.", "uni-é中", "emoji-😀", "mixed 😀+%/x" };
+	private static final String[] BUCKETS = { "bucket", "my.bucket", "Not_DNS", "UPPER" };
+	private static final String[] ENDPOINTS = { "http://127.0.0.1:9000", "https://s3.example.com",
+			"http://s3.example.com:8080", "https://s3.example.com:443" };
+
+	@Test
+	public void signV4() {
+		compare(false);
+	}
+
+	@Test
+	public void signV2() {
+		compare(true);
+	}
+
+	private static void compare(boolean signV2) {
+		for (String endpoint : ENDPOINTS) {
+			for (boolean pathStyle : new boolean[] { true, false }) {
+				AmazonS3 s3 = client(endpoint, pathStyle, signV2);
+				Presigner presigner = new Presigner(endpoint, REGION, CREDENTIALS, pathStyle, signV2, MINUTES);
+				for (String bucket : BUCKETS) {
+					for (String key : KEYS) {
+						for (HttpMethod method : new HttpMethod[] { HttpMethod.GET, HttpMethod.PUT }) {
+							String where = endpoint + " pathStyle=" + pathStyle + " " + method + " " + bucket + "/"
+									+ key;
+							String[] urls = presign(s3, presigner, method, bucket, key, signV2);
+							assertEquals(where, params(urls[1]), params(urls[0]));
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static AmazonS3 client(String endpoint, boolean pathStyle, boolean signV2) {
+		ClientConfiguration cfg = new ClientConfiguration();
+		if (signV2) {
+			cfg.setSignerOverride("S3SignerType");
+		}
+		return AmazonS3ClientBuilder.standard().withClientConfiguration(cfg).withPathStyleAccessEnabled(pathStyle)
+				.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, REGION))
+				.withCredentials(new AWSStaticCredentialsProvider(CREDENTIALS)).build();
+	}
+
+	/**
+	 * Presigner's and the SDK's URL signed within the same second, so their
+	 * dates and expiries agree
+	 */
+	private static String[] presign(AmazonS3 s3, Presigner presigner, HttpMethod method, String bucket, String key,
+			boolean signV2) {
+		while (true) {
+			long now = System.currentTimeMillis();
+			String mine = presigner.presign(method, bucket, key);
+			// V2 puts the expiration itself in the URL; V4 the seconds from now, rounded down
+			Date expiration = signV2 ? new Date((now / 1000 + MINUTES * 60) * 1000)
+					: new Date(now + MINUTES * 60 * 1000 + 999);
+			String sdk = s3.generatePresignedUrl(bucket, key, expiration, method).toString();
+			if (System.currentTimeMillis() / 1000 == now / 1000) {
+				return new String[] { mine, sdk };
+			}
+		}
+	}
+
+	// scheme, host and path, then the query parameters by name
+	private static Map<String, String> params(String url) {
+		Map<String, String> m = new TreeMap<String, String>();
+		int q = url.indexOf('?');
+		m.put("", url.substring(0, q));
+		for (String kv : url.substring(q + 1).split("&")) {
+			int eq = kv.indexOf('=');
+			m.put(kv.substring(0, eq), kv.substring(eq + 1));
+		}
+		return m;
+	}
+}
@@ -0,0 +1,101 @@
+package org.shvc.s3java;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * download --concurrency against the StubServer. Downloads go to the
+ * working directory under the Key's name, removed after each test.
+ */
+public class RangedDownloadTest {
+	private static final String KEY = "ranged/s3java-ranged-test.bin";
+	private static final File TARGET = new File("s3java-ranged-test.bin");
+	private static final File TEMP = new File("." + TARGET.getName() + ".s3java");
+
+	private static StubServer stub;
+	private static AmazonS3 s3;
+
+	@BeforeClass
+	public static void startStub() throws IOException {
+		stub = new StubServer();
+		stub.createBucket("bkt");
+		stub.start("127.0.0.1", 0);
+		s3 = AmazonS3ClientBuilder.standard().withPathStyleAccessEnabled(true)
+				.withEndpointConfiguration(
+						new AwsClientBuilder.EndpointConfiguration("http://127.0.0.1:" + stub.getPort(), "us-east-1"))
+				.withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("root", "ChangeMe")))
+				.build();
+	}
+
+	@AfterClass
+	public static void stopStub() {
+		s3.shutdown();
+		stub.stop();
+	}
+
+	@After
+	public void cleanUp() {
+		TARGET.delete();
+		TEMP.delete();
+	}
+
+	private static byte[] put(String key, int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		ObjectMetadata meta = new ObjectMetadata();
+		meta.setContentLength(size);
+		s3.putObject("bkt", key, new ByteArrayInputStream(data), meta);
+		return data;
+	}
+
+	@Test
+	public void rangesMakeTheObject() throws Exception {
+		// 3.5 parts of 1MB, the last Range short
+		byte[] data = put(KEY, (7 << 20) / 2);
+		S3Cli cli = new S3Cli(s3);
+		cli.setExitOnError(false);
+		assertTrue(cli.getObject("bkt", KEY, null, 1 << 20, 3));
+		assertArrayEquals(data, Files.readAllBytes(TARGET.toPath()));
+		assertFalse(TEMP.exists());
+	}
+
+	@Test
+	public void smallObjectInOneRequest() throws Exception {
+		byte[] data = put(KEY, 1000);
+		S3Cli cli = new S3Cli(s3);
+		cli.setExitOnError(false);
+		assertTrue(cli.getObject("bkt", KEY, null, 1 << 20, 3));
+		assertArrayEquals(data, Files.readAllBytes(TARGET.toPath()));
+	}
+
+	@Test
+	public void failureKeepsTheOldFile() throws Exception {
+		Files.write(TARGET.toPath(), "good".getBytes(StandardCharsets.UTF_8));
+		S3Cli cli = new S3Cli(s3);
+		cli.setExitOnError(false);
+		assertFalse(cli.getObject("bkt", "ranged/missing/" + TARGET.getName(), null, 1 << 20, 3));
+		assertEquals(1, cli.getFailures());
+		assertEquals("good", new String(Files.readAllBytes(TARGET.toPath()), StandardCharsets.UTF_8));
+		assertFalse(TEMP.exists());
+	}
+}
@@ -0,0 +1,122 @@
+package org.shvc.s3java;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SyncTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static StubServer stub;
+	private static AmazonS3 s3;
+
+	@BeforeClass
+	public static void startStub() throws IOException {
+		stub = new StubServer();
+		stub.createBucket("bkt");
+		stub.start("127.0.0.1", 0);
+		s3 = AmazonS3ClientBuilder.standard().withPathStyleAccessEnabled(true)
+				.withEndpointConfiguration(
+						new AwsClientBuilder.EndpointConfiguration("http://127.0.0.1:" + stub.getPort(), "us-east-1"))
+				.withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("root", "ChangeMe")))
+				.build();
+	}
+
+	@AfterClass
+	public static void stopStub() {
+		s3.shutdown();
+		stub.stop();
+	}
+
+	private File file(File dir, String name, int size, long seed) throws IOException {
+		byte[] data = new byte[size];
+		new Random(seed).nextBytes(data);
+		File f = new File(dir, name);
+		f.getParentFile().mkdirs();
+		Files.write(f.toPath(), data);
+		// Last-Modified has whole seconds, a file written in the second of its upload would look newer
+		f.setLastModified(System.currentTimeMillis() - 3600 * 1000);
+		return f;
+	}
+
+	@Test
+	public void singlePartETagIsMd5() throws Exception {
+		File f = file(tmp.getRoot(), "one", 100000, 1);
+		assertEquals(hex(MessageDigest.getInstance("MD5").digest(Files.readAllBytes(f.toPath()))),
+				Sync.multipartETag(f, 0));
+	}
+
+	@Test
+	public void multipartETag() throws Exception {
+		int partSize = 64 << 10;
+		for (int size : new int[] { partSize, partSize + 1, 3 * partSize, 3 * partSize - 7 }) {
+			File f = file(tmp.getRoot(), "mpu" + size, size, size);
+			byte[] data = Files.readAllBytes(f.toPath());
+			MessageDigest md5s = MessageDigest.getInstance("MD5");
+			int parts = 0;
+			for (int off = 0; off < size; off += partSize) {
+				md5s.update(MessageDigest.getInstance("MD5")
+						.digest(Arrays.copyOfRange(data, off, Math.min(off + partSize, size))));
+				parts++;
+			}
+			assertEquals("size " + size, hex(md5s.digest()) + "-" + parts, Sync.multipartETag(f, partSize));
+		}
+	}
+
+	@Test
+	public void uploadThenDownload() throws Exception {
+		File src = tmp.newFolder("src");
+		file(src, "a.bin", 1000, 1);
+		file(src, "dir/b.bin", 70000, 2);
+		file(src, "dir/sub/c d.bin", 0, 3);
+		S3Cli cli = new S3Cli(s3);
+		cli.setExitOnError(false);
+
+		Sync up = new Sync(cli, "bkt", "sync/", src, 4);
+		assertTrue(cli.sync(up, false));
+		assertEquals(3, up.getTransferred());
+		// nothing changed, nothing to send
+		Sync again = new Sync(cli, "bkt", "sync/", src, 4);
+		assertTrue(cli.sync(again, false));
+		assertEquals(0, again.getTransferred());
+
+		File dst = tmp.newFolder("dst");
+		Sync down = new Sync(cli, "bkt", "sync/", dst, 4);
+		assertTrue(cli.sync(down, true));
+		assertEquals(3, down.getTransferred());
+		for (String rel : new String[] { "a.bin", "dir/b.bin", "dir/sub/c d.bin" }) {
+			assertArrayEquals(rel, Files.readAllBytes(new File(src, rel).toPath()),
+					Files.readAllBytes(new File(dst, rel).toPath()));
+		}
+		Sync downAgain = new Sync(cli, "bkt", "sync/", dst, 4);
+		assertTrue(cli.sync(downAgain, true));
+		assertEquals(0, downAgain.getTransferred());
+	}
+
+	private static String hex(byte[] b) {
+		StringBuilder sb = new StringBuilder();
+		for (byte x : b) {
+			sb.append(String.format("%02x", x));
+		}
+		return sb.toString();
+	}
+}